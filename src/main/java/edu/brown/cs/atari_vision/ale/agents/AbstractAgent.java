@@ -19,9 +19,11 @@ package edu.brown.cs.atari_vision.ale.agents;
 
 
 import edu.brown.cs.atari_vision.ale.gui.AgentGUI;
+import edu.brown.cs.atari_vision.ale.io.ALEBackend;
 import edu.brown.cs.atari_vision.ale.io.ALEDriver;
 import edu.brown.cs.atari_vision.ale.io.Actions;
 import edu.brown.cs.atari_vision.ale.io.ConsoleRAM;
+import edu.brown.cs.atari_vision.ale.io.NativeALEDriver;
 import edu.brown.cs.atari_vision.ale.io.RLData;
 import org.bytedeco.javacpp.opencv_core.*;
 
@@ -37,12 +39,14 @@ public abstract class AbstractAgent {
     /** The UI used for displaying images and receiving actions */
     protected AgentGUI ui;
     /** The I/O object used to communicate with ALE */
-    protected ALEDriver io;
+    protected ALEBackend io;
 
     /** Parameters */
     protected String rom;
     /** Whether to use a GUI */
     protected boolean useGUI;
+    /** Whether to run ALE in-process rather than as a FIFO subprocess */
+    protected boolean inProcess;
 
     /** Create a new agent that communicates with ALE via stdin/out and
      *    uses the graphical user interface.
@@ -60,9 +64,17 @@ public abstract class AbstractAgent {
      * @param useGUI If true, a GUI is used to display received screen data.
      */
     public AbstractAgent(String rom, boolean useGUI) {
+        this(rom, useGUI, false);
+    }
+
+    /**
+     * @param inProcess If true, ALE is run inside the JVM (see NativeALEDriver) instead of as a subprocess.
+     */
+    public AbstractAgent(String rom, boolean useGUI, boolean inProcess) {
         this.useGUI = useGUI;
         this.rom = rom;
-        
+        this.inProcess = inProcess;
+
         init();
     }
 
@@ -87,13 +99,13 @@ public abstract class AbstractAgent {
 
         try {
             // Initialize the pipes; use named pipes if requested
-            io = new ALEDriver(rom);
+            io = inProcess ? new NativeALEDriver(rom) : new ALEDriver(rom);
 
             // Determine which information to request from ALE
             io.setUpdateScreen(useGUI || wantsScreenData());
             io.setUpdateRam(wantsRamData());
             io.setUpdateRL(wantsRLData());
-            io.initPipes();
+            io.init();
         }
         catch (IOException e) {
             System.err.println ("Could not initialize pipes: "+e.getMessage());
@@ -6,9 +6,12 @@ import burlap.mdp.core.state.State;
 import burlap.mdp.singleagent.environment.Environment;
 import burlap.mdp.singleagent.environment.EnvironmentOutcome;
 import edu.brown.cs.atari_vision.ale.gui.AgentGUI;
+import edu.brown.cs.atari_vision.ale.io.ALEBackend;
 import edu.brown.cs.atari_vision.ale.io.ALEDriver;
 import edu.brown.cs.atari_vision.ale.io.Actions;
 import edu.brown.cs.atari_vision.ale.io.RLData;
+import edu.brown.cs.atari_vision.ale.io.SnapshotALEBackend;
+import edu.brown.cs.atari_vision.ale.io.StartStateCache;
 import edu.brown.cs.atari_vision.ale.movie.MovieGenerator;
 import edu.brown.cs.atari_vision.ale.screen.NTSCPalette;
 import edu.brown.cs.atari_vision.ale.screen.ScreenConverter;
@@ -28,7 +31,7 @@ public class ALEEnvironment<StateT extends State> implements Environment {
     /** The UI used for displaying images and receiving actions */
     private AgentGUI ui;
     /** The I/O object used to communicate with ALE */
-    public ALEDriver io;
+    public ALEBackend io;
 
     protected ScreenConverter screenConverter;
 
@@ -42,16 +45,27 @@ public class ALEEnvironment<StateT extends State> implements Environment {
 
     /** Parameters */
     protected boolean useGUI;
-    protected String rom;
 
     public boolean training = true;
 
+    /** Episode start states, if the backend supports snapshots and the cache was enabled */
+    protected StartStateCache startStates;
+
+    protected final int noop = Actions.map("player_a_noop");
+
     public ALEEnvironment(Domain domain, ALEStateGenerator stateGenerator, String rom, boolean useGUI) {
         this(domain, stateGenerator, rom, 1, useGUI);
     }
 
     public ALEEnvironment(Domain domain, ALEStateGenerator stateGenerator, String rom, int frameSkip, boolean useGUI) {
-        this.rom = rom;
+        this(domain, stateGenerator, new ALEDriver(rom, frameSkip), useGUI);
+    }
+
+    /** Creates an environment around a driver that has been constructed, but not yet initialized.
+     *   This lets the caller pick the backend (FIFO subprocess or in-process) and driver options
+     *   (such as grayscale screens) before the emulator is set up.
+     */
+    public ALEEnvironment(Domain domain, ALEStateGenerator stateGenerator, ALEBackend io, boolean useGUI) {
         this.useGUI = useGUI;
         if (this.useGUI) {
             // Create the GUI
@@ -59,7 +73,7 @@ public class ALEEnvironment<StateT extends State> implements Environment {
         }
 
         // Create the relevant I/O objects
-        initIO(frameSkip);
+        initIO(io);
 
         screenConverter = new ScreenConverter();
 
@@ -146,19 +160,50 @@ public class ALEEnvironment<StateT extends State> implements Environment {
 
     @Override
     public void resetEnvironment() {
+        resetEnvironment(0);
+    }
+
+    /** Resets the environment and then performs the given number of no-op actions.
+     *   When the game itself is reset and start states are cached, the result is restored
+     *   from the cache instead.
+     */
+    public void resetEnvironment(int numNoops) {
         if (currentLives <= 0 || !training) {
-            // perform reset action
-            io.act(Actions.map("system_reset"));
+            if (startStates != null && numNoops <= startStates.maxNoops()) {
+                startStates.restore(numNoops);
+                numNoops = 0;
+            } else {
+                // perform reset action
+                io.act(Actions.map("system_reset"));
+            }
             RLData rlData = io.getRLData();
             currentLives = rlData.lives;
         }
 
+        for (int i = 0; i < numNoops; i++) {
+            io.act(noop);
+        }
+
         isTerminal = false;
 
         // reset initialState
         currentState = stateGenerator.initialState(io.getScreen());
     }
 
+    /** Caches the states reached by resetting the game and performing up to maxNoops no-ops,
+     *   if the backend can snapshot the emulator.
+     *
+     * @return whether the cache is used
+     */
+    public boolean enableStartStateCache(int maxNoops) {
+        if (!(io instanceof SnapshotALEBackend)) {
+            return false;
+        }
+
+        startStates = new StartStateCache((SnapshotALEBackend)io, maxNoops);
+        return true;
+    }
+
     public void setStateGenerator(ALEStateGenerator<StateT> stateGenerator) {
         this.stateGenerator = stateGenerator;
     }
@@ -172,19 +217,16 @@ public class ALEEnvironment<StateT extends State> implements Environment {
     /** Initialize the I/O object.
      *
      */
-    protected void initIO(int frameSkip) {
-        io = null;
+    protected void initIO(ALEBackend io) {
+        this.io = io;
 
         try {
-            // Initialize the pipes; use named pipes if requested
-            io = new ALEDriver(rom, frameSkip);
-
             // Determine which information to request from ALE
             io.setUpdateScreen(true);
             io.setUpdateRL(true);
             io.setUpdateRam(false);
             io.setPoolingType(POOLING_TYPE_MAX);
-            io.initPipes();
+            io.init();
         }
         catch (IOException e) {
             System.err.println ("Could not initialize pipes: "+e.getMessage());
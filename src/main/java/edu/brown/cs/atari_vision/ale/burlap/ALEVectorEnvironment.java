@@ -0,0 +1,262 @@
+package edu.brown.cs.atari_vision.ale.burlap;
+
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.ale.io.Actions;
+import edu.brown.cs.atari_vision.ale.io.PipelinedALEDriver;
+import edu.brown.cs.atari_vision.ale.io.RLData;
+import edu.brown.cs.atari_vision.caffe.preprocess.DirectPreProcessor;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.io.IOException;
+
+import static edu.brown.cs.atari_vision.ale.io.ALEDriver.PoolingType.POOLING_TYPE_MAX;
+
+/**
+ * Steps N ALE processes in lockstep. Every action is first sent to all of the emulators,
+ * and only then are their responses read, so the N emulators run concurrently while the
+ * caller waits on the slowest one.
+ *
+ * Slots are reset automatically when their game ends; the frame returned for such a slot
+ * is then the first frame of its next episode.
+ */
+public class ALEVectorEnvironment {
+
+    /** The results of a batch step. Owned by the environment and overwritten by the next step. */
+    public static class BatchOutcome {
+        /** The reward each slot received */
+        public final int[] rewards;
+        /** Whether each slot's episode ended with this step */
+        public final boolean[] terminals;
+        /** The number of lives of each slot after this step */
+        public final int[] lives;
+        /** The preprocessed frame of every slot, slot i starting at i * preProcessor.outputSize() */
+        public final BytePointer frames;
+
+        public BatchOutcome(int numSlots, int frameSize) {
+            rewards = new int[numSlots];
+            terminals = new boolean[numSlots];
+            lives = new int[numSlots];
+            frames = (new BytePointer((long)numSlots * frameSize)).zero();
+        }
+    }
+
+    protected final ALEDriver[] drivers;
+    protected final PreProcessor preProcessor;
+    protected final BatchOutcome outcome;
+    /** Whether all drivers are pipelined, in which case actions are handed off to their I/O threads */
+    protected final boolean pipelined;
+
+    /** If true, losing a life ends the slot's episode (the game itself only resets on game over) */
+    public boolean terminateOnLifeLoss = true;
+
+    protected final int systemReset = Actions.map("system_reset");
+
+    /** Scratch buffer of per-slot actions used for resets */
+    protected final int[] resetActions;
+    protected final boolean[] needsReset;
+
+    public ALEVectorEnvironment(String rom, int numSlots, int frameSkip, ALEDriver.ScreenType screenType, PreProcessor preProcessor) {
+        this(createDrivers(rom, numSlots, frameSkip, screenType, false), preProcessor);
+    }
+
+    /**
+     * @param pipelined whether to give every ALE process its own I/O thread (see {@link PipelinedALEDriver})
+     */
+    public ALEVectorEnvironment(String rom, int numSlots, int frameSkip, ALEDriver.ScreenType screenType, PreProcessor preProcessor, boolean pipelined) {
+        this(createDrivers(rom, numSlots, frameSkip, screenType, pipelined), preProcessor);
+    }
+
+    /** Creates a vector environment from drivers that have been constructed but not initialized. */
+    public ALEVectorEnvironment(ALEDriver[] drivers, PreProcessor preProcessor) {
+        this.drivers = drivers;
+        this.preProcessor = preProcessor;
+        this.outcome = new BatchOutcome(drivers.length, preProcessor.outputSize());
+        this.resetActions = new int[drivers.length];
+        this.needsReset = new boolean[drivers.length];
+
+        boolean allPipelined = true;
+        for (ALEDriver io : drivers) {
+            initIO(io);
+            allPipelined &= io instanceof PipelinedALEDriver;
+        }
+        this.pipelined = allPipelined;
+
+        reset();
+    }
+
+    protected static ALEDriver[] createDrivers(String rom, int numSlots, int frameSkip, ALEDriver.ScreenType screenType, boolean pipelined) {
+        ALEDriver[] drivers = new ALEDriver[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            drivers[i] = pipelined ? new PipelinedALEDriver(rom, frameSkip) : new ALEDriver(rom, frameSkip);
+            drivers[i].setScreenType(screenType);
+        }
+        return drivers;
+    }
+
+    protected void initIO(ALEDriver io) {
+        try {
+            io.setUpdateScreen(true);
+            io.setUpdateRL(true);
+            io.setUpdateRam(false);
+            io.setPoolingType(POOLING_TYPE_MAX);
+            io.initPipes();
+        }
+        catch (IOException e) {
+            System.err.println ("Could not initialize pipes: "+e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    public int numSlots() {
+        return drivers.length;
+    }
+
+    public ALEDriver getDriver(int slot) {
+        return drivers[slot];
+    }
+
+    public BatchOutcome getOutcome() {
+        return outcome;
+    }
+
+    /** Resets every slot and returns their first frames. */
+    public BatchOutcome reset() {
+        for (int i = 0; i < drivers.length; i++) {
+            resetActions[i] = systemReset;
+            needsReset[i] = true;
+        }
+        actAll(resetActions, needsReset);
+
+        for (int i = 0; i < drivers.length; i++) {
+            RLData rlData = drivers[i].getRLData();
+            outcome.rewards[i] = 0;
+            outcome.terminals[i] = false;
+            outcome.lives[i] = rlData.lives;
+            storeFrame(i);
+        }
+
+        return outcome;
+    }
+
+    /** Performs one action in every slot. Slots whose game is over are reset before returning.
+     *
+     * @param actions the ALE action (see {@link Actions#map(String)}) for each slot
+     * @return the outcome, which is reused by the next call
+     */
+    public BatchOutcome step(int[] actions) {
+        if (actions.length != drivers.length) {
+            throw new IllegalArgumentException(String.format("Expected %d actions but got %d", drivers.length, actions.length));
+        }
+
+        boolean closed = actAll(actions, null);
+        if (closed) {
+            throw new IllegalStateException("An ALE process closed its FIFO stream");
+        }
+
+        boolean anyReset = false;
+        for (int i = 0; i < drivers.length; i++) {
+            RLData rlData = drivers[i].getRLData();
+
+            outcome.rewards[i] = rlData.reward;
+            outcome.terminals[i] = rlData.isTerminal ||
+                    (terminateOnLifeLoss && rlData.lives < outcome.lives[i]);
+            outcome.lives[i] = rlData.lives;
+
+            needsReset[i] = rlData.isTerminal;
+            resetActions[i] = systemReset;
+            anyReset |= needsReset[i];
+        }
+
+        // Reset the finished games together, so their emulators run concurrently too
+        if (anyReset) {
+            actAll(resetActions, needsReset);
+            for (int i = 0; i < drivers.length; i++) {
+                if (needsReset[i]) {
+                    outcome.lives[i] = drivers[i].getRLData().lives;
+                }
+            }
+        }
+
+        for (int i = 0; i < drivers.length; i++) {
+            storeFrame(i);
+        }
+
+        return outcome;
+    }
+
+    /** Runs one act() on every selected driver, interleaving them frame by frame (or handing the
+     *   actions to their I/O threads, for pipelined drivers).
+     *
+     * @param selected which slots to act in, or null for all of them
+     * @return true if any FIFO stream was closed
+     */
+    protected boolean actAll(int[] actions, boolean[] selected) {
+        boolean err = false;
+
+        if (pipelined) {
+            // Each driver's I/O thread interleaves its frames on its own, and decodes in parallel
+            for (int i = 0; i < drivers.length; i++) {
+                if (selected == null || selected[i]) {
+                    ((PipelinedALEDriver)drivers[i]).submitAction(actions[i]);
+                }
+            }
+            for (int i = 0; i < drivers.length; i++) {
+                if (selected == null || selected[i]) {
+                    err |= ((PipelinedALEDriver)drivers[i]).awaitObservation();
+                }
+            }
+            return err;
+        }
+
+        for (int i = 0; i < drivers.length; i++) {
+            if (selected == null || selected[i]) {
+                drivers[i].beginAct();
+            }
+        }
+
+        int numFrames = drivers[0].framesPerAct();
+        for (int f = 0; f < numFrames; f++) {
+            for (int i = 0; i < drivers.length; i++) {
+                if (selected == null || selected[i]) {
+                    drivers[i].sendAction(actions[i]);
+                }
+            }
+            for (int i = 0; i < drivers.length; i++) {
+                if (selected == null || selected[i]) {
+                    err |= drivers[i].receiveFrame(f);
+                }
+            }
+        }
+
+        for (int i = 0; i < drivers.length; i++) {
+            if (selected == null || selected[i]) {
+                drivers[i].endAct();
+            }
+        }
+
+        return err;
+    }
+
+    /** Preprocesses the current screen of the given slot into its part of the outcome frames. */
+    protected void storeFrame(int slot) {
+        long frameSize = preProcessor.outputSize();
+        BytePointer slotData = outcome.frames.position(slot * frameSize);
+
+        if (preProcessor instanceof DirectPreProcessor) {
+            ((DirectPreProcessor)preProcessor).convertScreenToData(drivers[slot].getScreen(), slotData);
+        } else {
+            BytePointer data = preProcessor.convertScreenToData(drivers[slot].getScreen());
+            slotData.put(data.limit(frameSize));
+        }
+
+        outcome.frames.position(0);
+    }
+
+    /** Closes all of the ALE processes. */
+    public void close() {
+        for (ALEDriver io : drivers) {
+            io.close();
+        }
+    }
+}
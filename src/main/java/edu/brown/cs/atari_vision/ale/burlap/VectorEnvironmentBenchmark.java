@@ -0,0 +1,76 @@
+package edu.brown.cs.atari_vision.ale.burlap;
+
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.caffe.preprocess.FusedDQNPreProcessor;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+
+import java.util.Random;
+
+/**
+ * Plays random actions in an {@link ALEVectorEnvironment} of 1, 2, 4, ... up to maxSlots ALE processes and reports
+ * the emulator frames per second of each, and the speedup over a single process, to see how far the environment
+ * scales with the cores of a machine before the caller becomes the bottleneck.
+ *
+ * Usage: VectorEnvironmentBenchmark [rom [maxSlots [seconds [pipelined]]]]
+ */
+public class VectorEnvironmentBenchmark {
+
+    static final int FRAME_SKIP = 4;
+    static final int WARMUP_STEPS = 100;
+
+    public static void main(String[] args) {
+        String rom = args.length > 0 ? args[0] : "breakout.bin";
+        int maxSlots = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        boolean pipelined = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        Loader.load(opencv_core.class);
+
+        System.out.printf("%s, frame skip %d, %s drivers, %d cores\n", rom, FRAME_SKIP,
+                pipelined ? "pipelined" : "plain", Runtime.getRuntime().availableProcessors());
+
+        double singleFramesPerSecond = 0;
+        int numSlots = 1;
+        while (true) {
+            ALEVectorEnvironment env = new ALEVectorEnvironment(rom, numSlots, FRAME_SKIP,
+                    ALEDriver.ScreenType.SCREEN_TYPE_PALETTE_PAIR, new FusedDQNPreProcessor(), pipelined);
+
+            Random rng = new Random(0);
+            int[] actions = new int[numSlots];
+            for (int step = 0; step < WARMUP_STEPS; step++) {
+                step(env, actions, rng);
+            }
+
+            long steps = 0;
+            long start = System.nanoTime();
+            long end = start + (long)(seconds * 1e9);
+            while (System.nanoTime() < end) {
+                step(env, actions, rng);
+                steps++;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            env.close();
+
+            double framesPerSecond = steps * numSlots * FRAME_SKIP / elapsed;
+            if (numSlots == 1) {
+                singleFramesPerSecond = framesPerSecond;
+            }
+            double speedup = framesPerSecond / singleFramesPerSecond;
+            System.out.printf("%3d slots: %10.0f frames/s, %5.2fx a single process (%3.0f%% per slot)\n",
+                    numSlots, framesPerSecond, speedup, 100 * speedup / numSlots);
+
+            if (numSlots >= maxSlots) {
+                break;
+            }
+            numSlots = Math.min(2 * numSlots, maxSlots);
+        }
+    }
+
+    static void step(ALEVectorEnvironment env, int[] actions, Random rng) {
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = rng.nextInt(18);
+        }
+        env.step(actions);
+    }
+}
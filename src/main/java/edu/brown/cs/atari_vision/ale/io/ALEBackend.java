@@ -0,0 +1,48 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.io.IOException;
+
+/**
+ * The operations an agent or environment needs from an emulator, regardless of whether ALE runs as a
+ * FIFO subprocess ({@link ALEDriver}) or in-process ({@link NativeALEDriver}).
+ */
+public interface ALEBackend {
+
+    void setUpdateScreen(boolean updateScreen);
+
+    void setUpdateRam(boolean updateRam);
+
+    void setUpdateRL(boolean updateRL);
+
+    void setPoolingType(ALEDriver.PoolingType poolingType);
+
+    /** Sets the format screens are decoded into. Must be set before {@link #init()}. */
+    void setScreenType(ALEDriver.ScreenType screenType);
+
+    ALEDriver.ScreenType getScreenType();
+
+    /** Starts the emulator and receives the initial observation. Options must be set before. */
+    void init() throws IOException;
+
+    /** Performs an action for getFrameSkip() frames.
+     *
+     * @return true if the emulator went away
+     */
+    boolean act(int act);
+
+    /** The (pooled) screen of the last action, in the format given by the screen type */
+    Mat getScreen();
+
+    ConsoleRAM getRAM();
+
+    /** The RL data accumulated over the frames of the last action */
+    RLData getRLData();
+
+    boolean wantsTerminate();
+
+    int getFrameSkip();
+
+    void close();
+}
@@ -7,16 +7,17 @@ import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.opencv_core.*;
 
-import java.awt.*;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 
 /**
  * Created by MelRod on 5/23/16.
  */
-public class ALEDriver {
+public class ALEDriver implements ALEBackend {
 
     static final String ALE_FILE = "./ale";
     static final String ROM_DIR = "roms/";
@@ -29,23 +30,36 @@ public class ALEDriver {
     /** Data structure holding the raw frame data. If pooling != 0, pool over these frames **/
     Mat frameA;
     Mat frameB;
-    PoolingType poolingType;
+    PoolingType poolingType = PoolingType.POOLING_TYPE_NONE;
     public enum PoolingType {
         POOLING_TYPE_NONE,
         POOLING_TYPE_MAX,
         POOLING_TYPE_MEAN
     }
+    /** The format screens are decoded into */
+    ScreenType screenType = ScreenType.SCREEN_TYPE_BGR;
+    public enum ScreenType {
+        /** CV_8UC3 BGR colors */
+        SCREEN_TYPE_BGR,
+        /** CV_8UC1 luminance */
+        SCREEN_TYPE_GRAY,
+        /** CV_8UC2 palette indices of the two most recent frames, one per channel. Pooling is
+         *  left to the consumer (see FusedDQNPreProcessor), so the pooling type is ignored. */
+        SCREEN_TYPE_PALETTE_PAIR
+    }
     /** Data structure holding colors */
     ColorPalette colorPalette = new NTSCPalette();
     /** Data structure holding the RAM data */
     protected ConsoleRAM ram;
-    /** Data structure holding RL data */
+    /** Data structure holding RL data, accumulated over the frames of the last act() */
     protected RLData rlData;
+    /** RL data of the most recently received frame */
+    protected RLData frameRLData;
     /** Whether termination was requested from the I/O channel */
     protected boolean terminateRequested;
 
     /** Input object */
-    protected final BufferedReader in;
+    protected final ALELineReader in;
     /** Output object */
     protected final PrintStream out;
 
@@ -53,6 +67,8 @@ public class ALEDriver {
     protected boolean updateScreen, updateRam, updateRLData;
     /** We will request that ALE sends data every 'frameskip' frames. */
     protected int frameskip;
+    /** Whether ALE repeats the actions itself, rather than the driver repeating them once per frame */
+    protected final boolean nativeFrameSkip;
 
     /** The action we send for player B (always noop in this case) */
     protected final int playerBAction = Actions.map("player_b_noop");
@@ -60,34 +76,64 @@ public class ALEDriver {
     /** A state variable used to track of whether we should receive or send data */
     protected boolean hasObserved;
 
+    /** Whether the last line read from ALE holds observation data */
+    protected boolean lineHasData;
+
     protected boolean useRLE = true;
 
+    /** In SCREEN_TYPE_PALETTE_PAIR mode, the channel the next decoded frame is written to */
+    protected int paletteChannel;
+
     public ALEDriver(String rom) {
         this(rom, 1);
     }
 
     public ALEDriver(String rom, int frameskip) {
+        this(rom, frameskip, false);
+    }
+
+    /**
+     * @param nativeFrameSkip if true, ALE skips the frames itself (see {@link #isNativeFrameSkip()})
+     */
+    public ALEDriver(String rom, int frameskip, boolean nativeFrameSkip) {
+        this(startALE(rom, nativeFrameSkip ? frameskip : 0), frameskip, nativeFrameSkip);
+    }
+
+    /** Drives an ALE process that has already been started, e.g. with {@link #aleCommand(String, int)}.
+     *   If nativeFrameSkip is set, the process must have been started with the same frame skip.
+     */
+    public ALEDriver(Process process, int frameskip, boolean nativeFrameSkip) {
+        this.process = process;
         this.frameskip = frameskip;
-        startALE(rom);
+        this.nativeFrameSkip = nativeFrameSkip;
 
-        in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        in = new ALELineReader(process.getInputStream());
         out = new PrintStream(new BufferedOutputStream(process.getOutputStream()));
     }
 
-    private void startALE(String rom) {
-        ProcessBuilder pb = new ProcessBuilder(
+    /** The command line used to start ALE.
+     *
+     * @param frameSkip the number of frames ALE repeats every action for, or 0 to leave frame skipping to the driver
+     */
+    public static List<String> aleCommand(String rom, int frameSkip) {
+        return Arrays.asList(
                 ALE_FILE,
                 "-game_controller", "fifo",
-                "-frame_skip", "0",
+                "-frame_skip", String.valueOf(frameSkip),
                 "-repeat_action_probability", "0",
                 "-disable_color_averaging", "true",
-                (new File(ROM_DIR, rom)).getPath())
+                (new File(ROM_DIR, rom)).getPath());
+    }
+
+    private static Process startALE(String rom, int frameSkip) {
+        ProcessBuilder pb = new ProcessBuilder(aleCommand(rom, frameSkip))
                 .redirectError(new File(ALE_ERROR_FILE));
 
         try {
-            process = pb.start();
+            return pb.start();
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
@@ -114,14 +160,38 @@ public class ALEDriver {
         this.poolingType = poolingType;
     }
 
+    /** Sets the format screens are decoded into. Must be set before {@link #initPipes()}.
+     */
+    public void setScreenType(ScreenType screenType) {
+        this.screenType = screenType;
+    }
+
+    public ScreenType getScreenType() {
+        return screenType;
+    }
+
+    @Override
+    public void init() throws IOException {
+        initPipes();
+    }
+
     /** A blocking method that sends initial information to ALE. See the
      *   documentation for protocol details.
      *
      */
     public void initPipes() throws IOException {
+        if (poolsAcrossActs()) {
+            throw new IllegalStateException("Native frame skip only sends the last frame of an act, so it cannot be " +
+                    "combined with pooling: the screen would be pooled with the previous act's frame instead of the " +
+                    "second to last frame. Skip frames in the driver, or turn pooling off.");
+        }
+
         // Read in the width and height of the screen
         // Format: <width>-<height>\n
-        String line = in.readLine();
+        if (!in.readLine()) {
+            throw new IOException("ALE closed the stream before sending the screen size");
+        }
+        String line = in.lineAsString();
         String[] tokens = line.split("-");
         int width = Integer.parseInt(tokens[0]);
         int height = Integer.parseInt(tokens[1]);
@@ -132,11 +202,20 @@ public class ALEDriver {
         }
 
         // Create the data structures used to store received information
-        screen = new Mat(height, width, CV_8UC3);
-        frameA = new Mat(height, width, CV_8UC3);
-        frameB = new Mat(height, width, CV_8UC3);
+        if (screenType == ScreenType.SCREEN_TYPE_PALETTE_PAIR) {
+            // Both frames are decoded into their own channel of the screen
+            screen = (new Mat(height, width, CV_8UC2)).put(Scalar.all(0));
+            frameA = screen;
+            frameB = screen;
+        } else {
+            int matType = screenType == ScreenType.SCREEN_TYPE_GRAY ? CV_8UC1 : CV_8UC3;
+            screen = new Mat(height, width, matType);
+            frameA = new Mat(height, width, matType);
+            frameB = new Mat(height, width, matType);
+        }
         ram = new ConsoleRAM();
         rlData = new RLData();
+        frameRLData = new RLData();
 
         // Now send back our preferences
         // Format: <wants-screen>,<wants-ram>,<frame-skip>,<wants-rldata>\n
@@ -145,12 +224,32 @@ public class ALEDriver {
 
         // Initial observe
         observe(null);
+        rlData.isTerminal = frameRLData.isTerminal;
+        rlData.lives = frameRLData.lives;
     }
 
     public int getFrameSkip() {
         return frameskip;
     }
 
+    /** With native frame skip, ALE repeats every action for 'frameskip' frames, summing the rewards
+     *   and keeping the terminal flag of the skipped frames, and sends only the last frame. This
+     *   takes one FIFO round trip per act() instead of one per frame. As the skipped frames are never
+     *   seen, pooling would pool with the last frame of the previous act() instead, so native frame
+     *   skip requires POOLING_TYPE_NONE and a screen type other than SCREEN_TYPE_PALETTE_PAIR.
+     */
+    public boolean isNativeFrameSkip() {
+        return nativeFrameSkip;
+    }
+
+    /** Whether the screen would be pooled with a frame from the previous act(), see {@link #isNativeFrameSkip()} */
+    protected boolean poolsAcrossActs() {
+        if (!nativeFrameSkip || frameskip <= 1) {
+            return false;
+        }
+        return poolingType != PoolingType.POOLING_TYPE_NONE || screenType == ScreenType.SCREEN_TYPE_PALETTE_PAIR;
+    }
+
     /** Returns the screen matrix from ALE.
      *
      * @return
@@ -187,59 +286,92 @@ public class ALEDriver {
         else
             hasObserved = true;
 
-        String line = null;
+        if (readObservation()) {
+            return true;
+        }
+        decodeObservation(outputFrame);
+
+        return false;
+    }
+
+    /** Reads the next line from ALE, without decoding it yet.
+     *
+     * @return true if the FIFO stream was closed
+     */
+    protected boolean readObservation() {
+        lineHasData = false;
 
         // First read in a new line from ALE
         try {
-            line = in.readLine();
-            if (line == null) return true;
+            if (!in.readLine()) return true;
         }
         catch (IOException e) {
             return true;
         }
 
         // Catch the special keyword 'DIE'
-        if (line.equals("DIE")) {
+        if (in.lineEquals("DIE")) {
             terminateRequested = true;
             return false;
         }
 
         // Ignore blank lines (still send an action)
-        if (line.length() > 0) {
+        lineHasData = in.length() > 0;
+        return false;
+    }
+
+    /** Decodes the line read by the last readObservation(). The line stays valid
+     *   until the next call to readObservation(), even if an action was sent since.
+     */
+    protected void decodeObservation(Mat outputFrame) {
+        if (lineHasData) {
             // The data format is:
             // <ram-string>:<screen-string>:<rl-data-string>:\n
             //  Some of these elements may be missing, in which case the separating
             //  colons are not sent. For example, if we only want ram and rl data,
             //  the format is <ram>:<rl-data>:
+            //  The sections are decoded in place, straight out of the input buffer.
 
-            String[] tokens = line.split(":");
-
-            int tokenIndex = 0;
+            int start = in.start();
+            int end;
 
             // If necessary, first read the RAM data
             if (updateRam) {
-                readRam(tokens[tokenIndex++]);
+                end = in.indexOf(':', start);
+                readRam(start, end);
+                start = end + 1;
+            }
+
+            // If the screen is not wanted, skip over it without scanning it: the RL data is
+            //  the last section of the line
+            if (updateScreen && outputFrame == null) {
+                if (updateRLData) {
+                    end = in.end();
+                    if (end > start && in.buffer().get(end - 1) == ':') {
+                        end--;
+                    }
+                    readRLData(in.lastIndexOf(':', end) + 1, end);
+                }
+                return;
             }
 
             // Then update the screen
             if (updateScreen) {
-                String screenString = tokens[tokenIndex++];
+                end = in.indexOf(':', start);
 
-                if (outputFrame != null) {
-                    if (useRLE)
-                        readScreenRLE(screenString, outputFrame);
-                    else
-                        readScreenMatrix(screenString, outputFrame);
-                }
+                if (useRLE)
+                    readScreenRLE(start, end, outputFrame);
+                else
+                    readScreenMatrix(start, end, outputFrame);
+                start = end + 1;
             }
 
             // Finally obtain RL data
             if (updateRLData) {
-                readRLData(tokens[tokenIndex++]);
+                end = in.indexOf(':', start);
+                readRLData(start, end);
             }
         }
-
-        return false;
     }
 
     /** After a call to observe(), send back the necessary action.
@@ -248,6 +380,29 @@ public class ALEDriver {
      * @return
      */
     public boolean act(int act) {
+        beginAct();
+
+        boolean err = false;
+        for (int f = 0; f < framesPerAct(); f++) {
+            sendAction(act);
+            err |= receiveFrame(f);
+        }
+
+        endAct();
+        return err;
+    }
+
+    /** The number of emulator frames, and so FIFO round trips, that make up one act(). */
+    public int framesPerAct() {
+        return nativeFrameSkip ? 1 : Math.max(frameskip, 1);
+    }
+
+    /** Starts a new action. act(a) is equivalent to beginAct(), then sendAction(a) followed by
+     *   receiveFrame(f) for every f < framesPerAct(), then endAct(). Calling these separately
+     *   lets several drivers send their actions before any of them blocks on a response, so
+     *   that their emulators run concurrently.
+     */
+    public void beginAct() {
         // Ensure that we called observe() last
         if (!hasObserved) {
             throw new RuntimeException("act() called before observe().");
@@ -255,58 +410,84 @@ public class ALEDriver {
         else
             hasObserved = false;
 
-        boolean err = false;
-        if (frameskip <= 1) {
+        prepareAct();
+    }
+
+    /** Sets up the frame buffers and RL data for a new action */
+    protected void prepareAct() {
+        if (framesPerAct() <= 1) {
             // Swap frameA and B
             Mat frameC = frameA;
             frameA = frameB;
             frameB = frameC;
+        }
 
-            sendAction(act);
-            err |= observe(frameA);
-        } else {
-            RLData rlData = new RLData();
-            for (int f = 0; f < frameskip - 2; f++) {
-                err |= actHelper(act, null, rlData);
-            }
-            err |= actHelper(act, frameB, rlData);
-            err |= actHelper(act, frameA, rlData);
+        rlData.reward = 0;
+        rlData.isTerminal = false;
+    }
 
-            this.rlData = rlData;
-        }
+    /** Receives the response to the f-th sendAction() of the current action.
+     *   Only the last two frames are decoded, for pooling.
+     *
+     * @return true if the FIFO stream was closed
+     */
+    public boolean receiveFrame(int f) {
+        hasObserved = false;
+        boolean err = observe(frameFor(f));
+        accumulateRLData();
 
-        poolFrames();
         return err;
     }
 
-    private boolean actHelper(int act, Mat frame, RLData rlData) {
-        boolean err;
+    /** The frame the f-th frame of an action is decoded into, or null if it is not needed */
+    protected Mat frameFor(int f) {
+        int numFrames = framesPerAct();
+        if (f == numFrames - 1) {
+            return frameA;
+        } else if (f == numFrames - 2) {
+            return frameB;
+        }
+        return null;
+    }
 
-        sendAction(act); hasObserved = false;
-        err = observe(frame);
-        rlData.reward += this.rlData.reward;
-        rlData.isTerminal |= this.rlData.isTerminal;
-        rlData.lives = this.rlData.lives;
+    /** Adds the RL data of the last received frame to that of the current action */
+    protected void accumulateRLData() {
+        rlData.reward += frameRLData.reward;
+        rlData.isTerminal |= frameRLData.isTerminal;
+        rlData.lives = frameRLData.lives;
+    }
 
-        return err;
+    /** Finishes the current action by pooling its last two frames into the screen. */
+    public void endAct() {
+        poolFrames();
     }
 
     protected void poolFrames() {
-        if (frameB == null) {
-            screen = frameA;
+        if (screenType == ScreenType.SCREEN_TYPE_PALETTE_PAIR) {
             return;
         }
+        screen = poolFrames(poolingType, frameA, frameB, screen);
+    }
+
+    /** Pools the two most recent frames into 'screen'.
+     *
+     * @return the pooled screen, which is frameA itself if there is nothing to pool
+     */
+    static Mat poolFrames(PoolingType poolingType, Mat frameA, Mat frameB, Mat screen) {
+        if (frameB == null) {
+            return frameA;
+        }
         switch (poolingType) {
             case POOLING_TYPE_NONE:
-                screen = frameA;
-                break;
+                return frameA;
             case POOLING_TYPE_MAX:
                 max(frameA, frameB, screen);
-                break;
+                return screen;
             case POOLING_TYPE_MEAN:
                 addWeighted(frameA, 0.5, frameB, 0.5, 0, screen);
-                break;
+                return screen;
         }
+        return screen;
     }
 
     /** Helper function to send out an action to ALE */
@@ -317,108 +498,207 @@ public class ALEDriver {
         out.flush();
     }
 
-    /** Read in RL data from a given line.
+    /** Read in RL data from the input buffer.
      *
-     * @param line
+     * @param start index of the first byte of the RL data section
+     * @param end index one past the last byte of the section
      */
-    public void readRLData(String line) {
+    public void readRLData(int start, int end) {
         // Parse RL data
-        // Format: <is-terminal>:<reward>\n
-        String[] tokens = line.split(",");
+        // Format: <is-terminal>,<reward>,<lives>
+        ByteBuffer line = in.buffer();
 
-        // Parse the terminal bit
-        rlData.isTerminal = (Integer.parseInt(tokens[0]) == 1);
-        rlData.reward = Integer.parseInt(tokens[1]);
-        rlData.lives = Integer.parseInt(tokens[2]);
+        int comma = in.indexOf(',', start);
+        frameRLData.isTerminal = (parseInt(line, start, comma) == 1);
+
+        start = comma + 1;
+        comma = in.indexOf(',', start);
+        frameRLData.reward = parseInt(line, start, comma);
+
+        start = comma + 1;
+        comma = Math.min(in.indexOf(',', start), end);
+        frameRLData.lives = parseInt(line, start, comma);
     }
 
-    /** Reads the console RAM from a string
-     * @param line The RAM-part of the string sent by ALE.
+    /** Reads the console RAM from the input buffer.
+     *
+     * @param start index of the first byte of the RAM section
+     * @param end index one past the last byte of the section
      */
-    public void readRam(String line) {
-        int offset = 0;
+    public void readRam(int start, int end) {
+        ByteBuffer line = in.buffer();
+        int offset = start;
 
         // Read in all of the RAM
         // Format: <r0><r1><r2>...<r127>
         //  where ri is 2 characters representing an integer between 0 and 0xFF
-        for (int ptr = 0; ptr < ConsoleRAM.RAM_SIZE; ptr++) {
-            int v = Integer.parseInt(line.substring(offset, offset + 2), 16);
-            ram.ram[ptr] = v;
+        for (int ptr = 0; ptr < ConsoleRAM.RAM_SIZE && offset + 1 < end; ptr++) {
+            ram.ram[ptr] = byteAt(line, offset);
 
             offset += 2;
         }
     }
 
-    /** Reads the screen matrix update from a string. The string only contains the
-     *   pixels that differ from the previous frame.
+    /** Reads the full screen matrix from the input buffer, one hex-encoded
+     *   palette index per pixel.
      *
-     * @param line The screen part of the string sent by ALE.
+     * @param start index of the first byte of the screen section
+     * @param end index one past the last byte of the section
+     * @param frame the frame to decode into
      */
-    public void readScreenMatrix(String line, Mat frame) {
-        BytePointer screenData = frame.data();
-        int position = 0;
+    public void readScreenMatrix(int start, int end, Mat frame) {
+        ByteBuffer line = in.buffer();
+        ByteBuffer screenData = frameBuffer(frame);
+        int numPixels = frame.rows() * frame.cols();
 
-        byte[] buffer = new byte[frame.rows() * frame.cols() * frame.channels()];
-
-        int ptr = 0;
+        int ptr = start;
 
         // 0.3 protocol - send everything
-        for (int y = 0; y < frame.rows(); y++)
-            for (int x = 0; x < frame.cols(); x++) {
-                int v = byteAt(line, ptr);
+        if (frame.channels() == 2) {
+            int position = nextPaletteChannel();
+            for (int p = 0; p < numPixels && ptr + 1 < end; p++) {
+                screenData.put(position, (byte)byteAt(line, ptr));
+                position += 2;
+                ptr += 2;
+            }
+        } else if (frame.channels() == 1) {
+            byte[] luminance = colorPalette.luminanceTable();
+            for (int p = 0; p < numPixels && ptr + 1 < end; p++) {
+                screenData.put(p, luminance[byteAt(line, ptr)]);
+                ptr += 2;
+            }
+        } else {
+            byte[] bgr = colorPalette.bgrTable();
+            int position = 0;
+            for (int p = 0; p < numPixels && ptr + 1 < end; p++) {
+                int v = 3 * byteAt(line, ptr);
 
-                Color c = colorPalette.get(v);
-                buffer[position] = (byte)c.getBlue();
-                buffer[position + 1] = (byte)c.getGreen();
-                buffer[position + 2] = (byte)c.getRed();
+                screenData.put(position, bgr[v]);
+                screenData.put(position + 1, bgr[v + 1]);
+                screenData.put(position + 2, bgr[v + 2]);
 
                 position += 3;
-
                 ptr += 2;
             }
-
-        screenData.put(buffer);
+        }
     }
 
-    /** Parses a hex byte in the given String, at position 'ptr'. */
-    private int byteAt(String line, int ptr) {
-        int ld = line.charAt(ptr+1);
-        int hd = line.charAt(ptr);
-
-        if (ld >= 'A') ld -= 'A' - 10;
-        else ld -= '0';
-        if (hd >= 'A') hd -= 'A' - 10;
-        else hd -= '0';
+    /** Read in a run-length encoded screen. ALE 0.3-0.4
+     *
+     * @param start index of the first byte of the screen section
+     * @param end index one past the last byte of the section
+     * @param frame the frame to decode into
+     */
+    public void readScreenRLE(int start, int end, Mat frame) {
+        ByteBuffer line = in.buffer();
+        ByteBuffer screenData = frameBuffer(frame);
+        int frameSize = screenData.capacity();
 
-        return (hd << 4) + ld;
+        int position = 0;
+        int ptr = start;
+
+        if (frame.channels() == 2) {
+            position = nextPaletteChannel();
+            while (ptr + 3 < end) {
+                // Read in the next run
+                byte v = (byte)byteAt(line, ptr);
+                int l = byteAt(line, ptr + 2);
+                ptr += 4;
+
+                int runEnd = Math.min(position + 2*l, frameSize);
+                while (position < runEnd) {
+                    screenData.put(position, v);
+                    position += 2;
+                }
+            }
+        } else if (frame.channels() == 1) {
+            byte[] luminance = colorPalette.luminanceTable();
+            while (ptr + 3 < end) {
+                // Read in the next run
+                byte y = luminance[byteAt(line, ptr)];
+                int l = byteAt(line, ptr + 2);
+                ptr += 4;
+
+                int runEnd = Math.min(position + l, frameSize);
+                while (position < runEnd) {
+                    screenData.put(position++, y);
+                }
+            }
+        } else {
+            byte[] bgr = colorPalette.bgrTable();
+            while (ptr + 3 < end) {
+                // Read in the next run
+                int v = 3 * byteAt(line, ptr);
+                int l = byteAt(line, ptr + 2);
+                ptr += 4;
+
+                byte b = bgr[v];
+                byte g = bgr[v + 1];
+                byte r = bgr[v + 2];
+
+                int runEnd = Math.min(position + 3*l, frameSize);
+                while (position < runEnd) {
+                    screenData.put(position, b);
+                    screenData.put(position + 1, g);
+                    screenData.put(position + 2, r);
+
+                    position += 3;
+                }
+            }
+        }
     }
 
-    /** Read in a run-length encoded screen. ALE 0.3-0.4 */
-    public void readScreenRLE(String line, Mat frame) {
+    /** Returns the channel the next palette pair frame goes to, and alternates it. The two
+     *   channels are only ever max-pooled, so their order does not matter.
+     */
+    private int nextPaletteChannel() {
+        int channel = paletteChannel;
+        paletteChannel ^= 1;
+        return channel;
+    }
 
-        BytePointer screenData = frame.data();
-        int position = 0;
+    /** Wraps the native data of the given frame, so that it can be written without an intermediate copy. */
+    protected static ByteBuffer frameBuffer(Mat frame) {
+        long frameSize = frame.rows() * frame.cols() * frame.channels();
+        BytePointer data = frame.data();
+        data.capacity(frameSize);
+        return data.asBuffer();
+    }
 
-        byte[] buffer = new byte[frame.rows() * frame.cols() * frame.channels()];
+    /** Maps ASCII hex digits to their value */
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte)0);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte)(10 + i);
+            HEX_VALUES['a' + i] = (byte)(10 + i);
+        }
+    }
 
-        int ptr = 0;
+    /** Parses a hex byte in the given buffer, at position 'ptr'. */
+    private static int byteAt(ByteBuffer line, int ptr) {
+        int hd = HEX_VALUES[line.get(ptr) & 0x7F];
+        int ld = HEX_VALUES[line.get(ptr + 1) & 0x7F];
 
-        while (ptr < line.length()) {
-            // Read in the next run
-            int v = byteAt(line, ptr);
-            int l = byteAt(line, ptr + 2);
-            ptr += 4;
+        return (hd << 4) + ld;
+    }
 
-            Color c = colorPalette.get(v);
-            for (int i = 0; i < l; i++) {
-                buffer[position] = (byte)c.getBlue();
-                buffer[position + 1] = (byte)c.getGreen();
-                buffer[position + 2] = (byte)c.getRed();
+    /** Parses a (possibly negative) decimal integer in [start, end) of the given buffer. */
+    private static int parseInt(ByteBuffer line, int start, int end) {
+        boolean negative = false;
+        if (start < end && line.get(start) == '-') {
+            negative = true;
+            start++;
+        }
 
-                position += 3;
-            }
+        int v = 0;
+        for (int i = start; i < end; i++) {
+            v = v*10 + (line.get(i) - '0');
         }
 
-        screenData.put(buffer);
+        return negative ? -v : v;
     }
 }
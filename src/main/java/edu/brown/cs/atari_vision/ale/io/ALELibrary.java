@@ -0,0 +1,76 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.annotation.*;
+
+/**
+ * JavaCPP binding for the parts of the ALE C++ library (ale_interface.hpp) that {@link NativeALEDriver}
+ * uses. The JNI glue is generated from this class by the JavaCPP builder, against an installed ALE:
+ *
+ *   java -jar javacpp.jar -classpath target/classes -Dplatform.includepath=$ALE/src -Dplatform.linkpath=$ALE \
+ *        edu.brown.cs.atari_vision.ale.io.ALELibrary
+ *
+ * and the resulting library must be on java.library.path along with libale.
+ */
+@Platform(include = "ale_interface.hpp", link = "ale")
+public class ALELibrary {
+    static { Loader.load(); }
+
+    @Name("ALEScreen")
+    public static class ALEScreen extends Pointer {
+        static { Loader.load(); }
+        public ALEScreen(Pointer p) { super(p); }
+
+        /** The palette indices of the screen, row by row */
+        public native @Cast("unsigned char*") BytePointer getArray();
+        public native @Cast("size_t") long height();
+        public native @Cast("size_t") long width();
+    }
+
+    @Name("ALERAM")
+    public static class ALERAM extends Pointer {
+        static { Loader.load(); }
+        public ALERAM(Pointer p) { super(p); }
+
+        public native @Cast("const unsigned char*") BytePointer array();
+        public native @Cast("size_t") long size();
+    }
+
+    /** A full copy of the emulator state */
+    @Name("ALEState")
+    public static class ALEState extends Pointer {
+        static { Loader.load(); }
+        public ALEState(Pointer p) { super(p); }
+    }
+
+    @Name("ALEInterface")
+    public static class ALEInterface extends Pointer {
+        static { Loader.load(); }
+        public ALEInterface() { allocate(); }
+        private native void allocate();
+
+        public native void setInt(@StdString String key, int value);
+        public native void setFloat(@StdString String key, float value);
+        public native void setBool(@StdString String key, @Cast("bool") boolean value);
+
+        /** Applies the settings and loads the game. Settings made afterwards have no effect. */
+        public native void loadROM(@StdString String romFile);
+
+        /** Emulates one frame (or frame_skip frames) and returns the reward */
+        public native @Cast("reward_t") int act(@Cast("Action") int action);
+        public native @Cast("bool") boolean game_over();
+        public native void reset_game();
+        public native int lives();
+
+        public native @Const @ByRef ALEScreen getScreen();
+        public native @Const @ByRef ALERAM getRAM();
+
+        public native void saveState();
+        public native void loadState();
+
+        public native @ByVal ALEState cloneState();
+        public native void restoreState(@Const @ByRef ALEState state);
+    }
+}
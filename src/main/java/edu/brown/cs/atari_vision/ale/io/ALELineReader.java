@@ -0,0 +1,153 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/** Reads newline terminated messages sent by ALE as raw bytes. The most recent
+ *   line is kept in a reusable direct buffer so that it can be decoded in place,
+ *   without ever building a String out of it.
+ */
+public class ALELineReader {
+
+    /** Large enough for a full, non run-length encoded 210x160 screen plus RAM */
+    static final int INITIAL_CAPACITY = 1 << 17;
+
+    /** The channel we read ALE's output from */
+    protected final ReadableByteChannel channel;
+
+    /** Holds the bytes read so far. Valid data lies between 0 and the buffer's limit. */
+    protected ByteBuffer buffer;
+
+    /** Bounds of the current line. lineEnd is the index of the terminating newline. */
+    protected int lineStart, lineEnd;
+
+    /** Index of the first byte after the current line */
+    protected int next;
+
+    public ALELineReader(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    public ALELineReader(ReadableByteChannel channel) {
+        this.channel = channel;
+
+        buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        buffer.limit(0);
+    }
+
+    /** Blocks until a full line has been received. The line can then be accessed
+     *   through {@link #buffer()}, {@link #start()} and {@link #end()}.
+     *
+     * @return false if the stream was closed before a full line was read
+     */
+    public boolean readLine() throws IOException {
+        int scanned = next;
+
+        while (true) {
+            int limit = buffer.limit();
+            for (int i = scanned; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    lineStart = next;
+                    lineEnd = i;
+                    next = i + 1;
+                    return true;
+                }
+            }
+
+            // We need more data; the unread bytes are moved to the start of the buffer
+            int shift = next;
+            if (!fill()) {
+                return false;
+            }
+            scanned = limit - shift;
+        }
+    }
+
+    /** Reads more data from the channel, discarding everything before 'next'. */
+    private boolean fill() throws IOException {
+        if (next > 0) {
+            buffer.position(next);
+            buffer.compact();
+            next = 0;
+        } else {
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+
+        if (!buffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        int numRead = channel.read(buffer);
+        buffer.flip();
+
+        return numRead >= 0;
+    }
+
+    /** The buffer holding the current line. Only use absolute get methods on it. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Index of the first byte of the current line */
+    public int start() {
+        return lineStart;
+    }
+
+    /** Index one past the last byte of the current line (the newline is excluded) */
+    public int end() {
+        return lineEnd;
+    }
+
+    public int length() {
+        return lineEnd - lineStart;
+    }
+
+    /** Returns the index of the first occurrence of c in [from, end()), or end() if there is none. */
+    public int indexOf(char c, int from) {
+        for (int i = from; i < lineEnd; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return lineEnd;
+    }
+
+    /** Returns the index of the last occurrence of c in [start(), before), or start() - 1 if there is none. */
+    public int lastIndexOf(char c, int before) {
+        for (int i = before - 1; i >= lineStart; i--) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return lineStart - 1;
+    }
+
+    /** Returns whether the current line is exactly the given ASCII string. */
+    public boolean lineEquals(String s) {
+        if (s.length() != length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer.get(lineStart + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Copies the current line into a String. Only meant for the handshake, not for observations. */
+    public String lineAsString() {
+        byte[] bytes = new byte[length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(lineStart + i);
+        }
+        return new String(bytes);
+    }
+}
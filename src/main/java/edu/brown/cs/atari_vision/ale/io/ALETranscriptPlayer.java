@@ -0,0 +1,152 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stands in for an ALE process by replaying a transcript written by {@link ALETranscriptRecorder}.
+ * ALE's side of the conversation is served as fast as the consumer reads it, so the decoding and
+ * preprocessing paths can be measured and tested without an emulator or ROM.
+ *
+ * What the consumer sends is counted but otherwise ignored: the replay only stays meaningful if
+ * the consumer makes the same calls as the recorded session (same settings, frame skip and number
+ * of actions). Once the transcript is exhausted, the stream is closed, as if ALE had exited.
+ */
+public class ALETranscriptPlayer extends Process {
+
+    protected final DataInputStream transcript;
+
+    protected final InputStream in;
+    protected final OutputStream out;
+
+    /** Number of bytes left in the current OUTPUT record */
+    protected int remaining;
+    protected boolean finished;
+
+    /** Bytes recorded as sent to ALE, and bytes actually sent by the consumer */
+    protected long recordedInputBytes, inputBytes;
+
+    public ALETranscriptPlayer(File transcriptFile) throws IOException {
+        transcript = new DataInputStream(new GZIPInputStream(new FileInputStream(transcriptFile), 1 << 16));
+        if (transcript.readInt() != ALETranscriptRecorder.MAGIC) {
+            transcript.close();
+            throw new IOException("Not an ALE transcript: " + transcriptFile);
+        }
+
+        in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (!nextOutput()) {
+                    return -1;
+                }
+                remaining--;
+                return transcript.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!nextOutput()) {
+                    return -1;
+                }
+                int numRead = transcript.read(b, off, Math.min(len, remaining));
+                if (numRead < 0) {
+                    throw new EOFException("Truncated ALE transcript");
+                }
+                remaining -= numRead;
+                return numRead;
+            }
+        };
+
+        out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                inputBytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                inputBytes += len;
+            }
+        };
+    }
+
+    /** Skips to the next OUTPUT record if the current one is used up.
+     *
+     * @return false at the end of the transcript
+     */
+    protected boolean nextOutput() throws IOException {
+        while (remaining == 0) {
+            if (finished) {
+                return false;
+            }
+
+            int tag;
+            try {
+                tag = transcript.readByte();
+            } catch (EOFException e) {
+                finished = true;
+                transcript.close();
+                return false;
+            }
+            int length = transcript.readInt();
+
+            if (tag == ALETranscriptRecorder.OUTPUT) {
+                remaining = length;
+            } else if (tag == ALETranscriptRecorder.INPUT) {
+                recordedInputBytes += length;
+                transcript.skipBytes(length);
+            } else {
+                throw new IOException("Corrupt ALE transcript: unknown record " + tag);
+            }
+        }
+        return true;
+    }
+
+    /** The number of bytes the recorded session sent to ALE, up to the current replay position */
+    public long getRecordedInputBytes() {
+        return recordedInputBytes;
+    }
+
+    /** The number of bytes the consumer sent so far */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() {
+        return 0;
+    }
+
+    @Override
+    public int exitValue() {
+        return 0;
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            finished = true;
+            transcript.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
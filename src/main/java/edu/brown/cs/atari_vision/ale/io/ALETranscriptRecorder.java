@@ -0,0 +1,129 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wraps an ALE process and records all of its FIFO traffic (the handshake, every observation and
+ * every action) into a gzip compressed transcript, which {@link ALETranscriptPlayer} can replay
+ * without an emulator. Pass it to {@link ALEDriver#ALEDriver(Process, int, boolean)} in place of
+ * the process itself.
+ *
+ * A transcript is the magic number followed by records, in the order the bytes crossed the pipe:
+ * a tag (OUTPUT for bytes sent by ALE, INPUT for bytes sent to it), the length and the bytes.
+ */
+public class ALETranscriptRecorder extends Process {
+
+    static final int MAGIC = 0x414C4554; // "ALET"
+    static final byte OUTPUT = 'O';
+    static final byte INPUT = 'I';
+
+    protected final Process process;
+    protected final DataOutputStream transcript;
+
+    protected final InputStream in;
+    protected final OutputStream out;
+
+    protected boolean closed;
+
+    public ALETranscriptRecorder(Process process, File transcriptFile) throws IOException {
+        this.process = process;
+        this.transcript = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(transcriptFile), 1 << 16));
+        this.transcript.writeInt(MAGIC);
+
+        in = new FilterInputStream(process.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    record(OUTPUT, new byte[]{(byte)b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int numRead = super.read(b, off, len);
+                if (numRead > 0) {
+                    record(OUTPUT, b, off, numRead);
+                }
+                return numRead;
+            }
+        };
+
+        out = new FilterOutputStream(process.getOutputStream()) {
+            @Override
+            public void write(int b) throws IOException {
+                record(INPUT, new byte[]{(byte)b}, 0, 1);
+                super.out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                record(INPUT, b, off, len);
+                super.out.write(b, off, len);
+            }
+        };
+    }
+
+    /** Starts ALE with the given ROM (see {@link ALEDriver#aleCommand(String, int)}) and records its session. */
+    public static ALETranscriptRecorder start(String rom, int nativeFrameSkip, File transcriptFile) throws IOException {
+        Process process = new ProcessBuilder(ALEDriver.aleCommand(rom, nativeFrameSkip))
+                .redirectError(new File(ALEDriver.ALE_ERROR_FILE))
+                .start();
+        return new ALETranscriptRecorder(process, transcriptFile);
+    }
+
+    /** Observations are read and actions written from different threads by the pipelined driver */
+    protected synchronized void record(byte tag, byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            return;
+        }
+        transcript.writeByte(tag);
+        transcript.writeInt(len);
+        transcript.write(b, off, len);
+    }
+
+    /** Finishes the transcript file. Called by destroy(), and safe to call more than once. */
+    public synchronized void finish() throws IOException {
+        if (!closed) {
+            closed = true;
+            transcript.close();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return process.getErrorStream();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        return process.waitFor();
+    }
+
+    @Override
+    public int exitValue() {
+        return process.exitValue();
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        process.destroy();
+    }
+}
@@ -0,0 +1,304 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import edu.brown.cs.atari_vision.ale.screen.ColorPalette;
+import edu.brown.cs.atari_vision.ale.screen.NTSCPalette;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Runs ALE inside the JVM through {@link ALELibrary}, instead of as a FIFO subprocess. Screens are
+ * read straight out of the emulator's frame buffer, so there is no text encoding, no pipe and no
+ * context switch per frame.
+ *
+ * Behaves like an {@link ALEDriver} with the same settings: actions are repeated for 'frameskip'
+ * frames, and the last two frames are pooled into the screen.
+ */
+public class NativeALEDriver implements SnapshotALEBackend {
+
+    protected final ALELibrary.ALEInterface ale;
+
+    protected final int frameskip;
+
+    /** Palette indices of the last emulated frame */
+    protected BytePointer screenData;
+
+    Mat screen;
+    Mat frameA;
+    Mat frameB;
+    ALEDriver.PoolingType poolingType = ALEDriver.PoolingType.POOLING_TYPE_NONE;
+    ALEDriver.ScreenType screenType = ALEDriver.ScreenType.SCREEN_TYPE_BGR;
+    ColorPalette colorPalette = new NTSCPalette();
+
+    protected final ConsoleRAM ram = new ConsoleRAM();
+    protected final RLData rlData = new RLData();
+
+    protected boolean updateScreen, updateRam, updateRLData;
+
+    /** In SCREEN_TYPE_PALETTE_PAIR mode, the channel the next decoded frame is written to */
+    protected int paletteChannel;
+
+    /** The emulator state along with the decoded frames, so that pooling continues exactly as it would have */
+    protected static class NativeSnapshot implements Snapshot {
+        ALELibrary.ALEState state;
+        Mat screen;
+        Mat frameA;
+        Mat frameB;
+        int paletteChannel;
+        final RLData rlData = new RLData();
+        final ConsoleRAM ram = new ConsoleRAM();
+
+        @Override
+        public void release() {
+            state.deallocate();
+        }
+    }
+
+    protected final int systemReset = Actions.map("system_reset");
+    protected final int saveState = Actions.map("save_state");
+    protected final int loadState = Actions.map("load_state");
+
+    public NativeALEDriver(String rom) {
+        this(rom, 1);
+    }
+
+    public NativeALEDriver(String rom, int frameskip) {
+        this.frameskip = frameskip;
+
+        // The same settings the FIFO driver starts ALE with
+        ale = new ALELibrary.ALEInterface();
+        ale.setInt("frame_skip", 1);
+        ale.setFloat("repeat_action_probability", 0);
+        ale.setBool("color_averaging", false);
+        ale.loadROM((new File(ALEDriver.ROM_DIR, rom)).getPath());
+    }
+
+    @Override
+    public void setUpdateScreen(boolean updateScreen) {
+        this.updateScreen = updateScreen;
+    }
+
+    @Override
+    public void setUpdateRam(boolean updateRam) {
+        this.updateRam = updateRam;
+    }
+
+    @Override
+    public void setUpdateRL(boolean updateRL) {
+        this.updateRLData = updateRL;
+    }
+
+    @Override
+    public void setPoolingType(ALEDriver.PoolingType poolingType) {
+        this.poolingType = poolingType;
+    }
+
+    @Override
+    public void setScreenType(ALEDriver.ScreenType screenType) {
+        this.screenType = screenType;
+    }
+
+    @Override
+    public ALEDriver.ScreenType getScreenType() {
+        return screenType;
+    }
+
+    @Override
+    public void init() throws IOException {
+        ALELibrary.ALEScreen aleScreen = ale.getScreen();
+        int width = (int)aleScreen.width();
+        int height = (int)aleScreen.height();
+        screenData = new BytePointer((long)width * height);
+
+        if (screenType == ALEDriver.ScreenType.SCREEN_TYPE_PALETTE_PAIR) {
+            screen = (new Mat(height, width, CV_8UC2)).put(Scalar.all(0));
+            frameA = screen;
+            frameB = screen;
+        } else {
+            int matType = screenType == ALEDriver.ScreenType.SCREEN_TYPE_GRAY ? CV_8UC1 : CV_8UC3;
+            screen = (new Mat(height, width, matType)).put(Scalar.all(0));
+            frameA = (new Mat(height, width, matType)).put(Scalar.all(0));
+            frameB = (new Mat(height, width, matType)).put(Scalar.all(0));
+        }
+
+        if (updateScreen) {
+            readScreen(frameA);
+            if (screen != frameA) {
+                frameA.copyTo(screen);
+            }
+        }
+        rlData.isTerminal = ale.game_over();
+        rlData.lives = ale.lives();
+        if (updateRam) {
+            readRam();
+        }
+    }
+
+    @Override
+    public boolean act(int act) {
+        int numFrames = Math.max(frameskip, 1);
+
+        if (numFrames <= 1) {
+            // Swap frameA and B
+            Mat frameC = frameA;
+            frameA = frameB;
+            frameB = frameC;
+        }
+
+        rlData.reward = 0;
+        rlData.isTerminal = false;
+        for (int f = 0; f < numFrames; f++) {
+            rlData.reward += emulate(act);
+            rlData.isTerminal |= ale.game_over();
+
+            if (updateScreen) {
+                if (f == numFrames - 1) {
+                    readScreen(frameA);
+                } else if (f == numFrames - 2) {
+                    readScreen(frameB);
+                }
+            }
+        }
+        rlData.lives = ale.lives();
+
+        if (updateScreen && screenType != ALEDriver.ScreenType.SCREEN_TYPE_PALETTE_PAIR) {
+            screen = ALEDriver.poolFrames(poolingType, frameA, frameB, screen);
+        }
+        if (updateRam) {
+            readRam();
+        }
+
+        return false;
+    }
+
+    /** Emulates a single frame, handling the special actions the FIFO controller handles inside ALE */
+    protected int emulate(int act) {
+        if (act == systemReset) {
+            ale.reset_game();
+            return 0;
+        } else if (act == saveState) {
+            ale.saveState();
+            return 0;
+        } else if (act == loadState) {
+            ale.loadState();
+            return 0;
+        }
+        return ale.act(act);
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        NativeSnapshot snapshot = new NativeSnapshot();
+        snapshot.state = ale.cloneState();
+        snapshot.screen = screen.clone();
+        snapshot.frameA = frameA.clone();
+        snapshot.frameB = frameB.clone();
+        snapshot.paletteChannel = paletteChannel;
+        snapshot.rlData.isTerminal = rlData.isTerminal;
+        snapshot.rlData.lives = rlData.lives;
+        System.arraycopy(ram.ram, 0, snapshot.ram.ram, 0, ConsoleRAM.RAM_SIZE);
+        return snapshot;
+    }
+
+    @Override
+    public void restore(Snapshot s) {
+        NativeSnapshot snapshot = (NativeSnapshot)s;
+        ale.restoreState(snapshot.state);
+
+        // In palette pair mode, all three are the same Mat
+        snapshot.frameA.copyTo(frameA);
+        snapshot.frameB.copyTo(frameB);
+        if (screen != frameA && screen != frameB) {
+            snapshot.screen.copyTo(screen);
+        }
+        paletteChannel = snapshot.paletteChannel;
+
+        rlData.reward = 0;
+        rlData.isTerminal = snapshot.rlData.isTerminal;
+        rlData.lives = snapshot.rlData.lives;
+        System.arraycopy(snapshot.ram.ram, 0, ram.ram, 0, ConsoleRAM.RAM_SIZE);
+    }
+
+    /** Copies the palette indices of the current frame into the given buffer, which must hold
+     *   width * height bytes, starting at its position.
+     */
+    public void getScreen(BytePointer buffer) {
+        ALELibrary.ALEScreen aleScreen = ale.getScreen();
+        long size = aleScreen.width() * aleScreen.height();
+        buffer.put(aleScreen.getArray().capacity(size));
+    }
+
+    /** Decodes the current frame into the given frame, according to the screen type */
+    protected void readScreen(Mat frame) {
+        getScreen(screenData);
+        ByteBuffer indices = screenData.asBuffer();
+        ByteBuffer out = ALEDriver.frameBuffer(frame);
+        int numPixels = indices.capacity();
+
+        if (frame.channels() == 2) {
+            int position = paletteChannel;
+            paletteChannel ^= 1;
+            for (int p = 0; p < numPixels; p++) {
+                out.put(position, indices.get(p));
+                position += 2;
+            }
+        } else if (frame.channels() == 1) {
+            byte[] luminance = colorPalette.luminanceTable();
+            for (int p = 0; p < numPixels; p++) {
+                out.put(p, luminance[indices.get(p) & 0xFF]);
+            }
+        } else {
+            byte[] bgr = colorPalette.bgrTable();
+            int position = 0;
+            for (int p = 0; p < numPixels; p++) {
+                int v = 3 * (indices.get(p) & 0xFF);
+                out.put(position, bgr[v]);
+                out.put(position + 1, bgr[v + 1]);
+                out.put(position + 2, bgr[v + 2]);
+                position += 3;
+            }
+        }
+    }
+
+    protected void readRam() {
+        BytePointer aleRam = ale.getRAM().array();
+        for (int i = 0; i < ConsoleRAM.RAM_SIZE; i++) {
+            ram.ram[i] = aleRam.get(i) & 0xFF;
+        }
+    }
+
+    @Override
+    public Mat getScreen() {
+        return screen;
+    }
+
+    @Override
+    public ConsoleRAM getRAM() {
+        return ram;
+    }
+
+    @Override
+    public RLData getRLData() {
+        return rlData;
+    }
+
+    @Override
+    public boolean wantsTerminate() {
+        return false;
+    }
+
+    @Override
+    public int getFrameSkip() {
+        return frameskip;
+    }
+
+    @Override
+    public void close() {
+        ale.deallocate();
+    }
+}
@@ -0,0 +1,255 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * An ALEDriver that talks to ALE from a dedicated I/O thread. The caller only hands off
+ * actions ({@link #submitAction(int)}) and claims the resulting observations
+ * ({@link #awaitObservation()}); reading, decoding and pooling all happen on the I/O thread,
+ * into a small ring of preallocated slots.
+ *
+ * Within an action, the I/O thread sends the next frame's action as soon as a frame has been
+ * read and before decoding it, so that with frameskip > 1 the emulator runs while Java decodes.
+ * Submitting an action before doing other work (e.g. a learning update) and claiming it
+ * afterwards overlaps the whole action with that work.
+ *
+ * Once initPipes() has returned, the frame level methods (beginAct(), sendAction(),
+ * receiveFrame(), endAct() and observe()) belong to the I/O thread and must not be called.
+ * getScreen(), getRLData() and getRAM() return the most recently claimed observation,
+ * which stays valid until the next call to awaitObservation().
+ */
+public class PipelinedALEDriver extends ALEDriver {
+
+    static final int DEFAULT_NUM_SLOTS = 3;
+
+    /** A completed observation */
+    protected static class Slot {
+        Mat screen;
+        final RLData rlData = new RLData();
+        final ConsoleRAM ram = new ConsoleRAM();
+        boolean terminateRequested;
+        /** Whether the FIFO stream was closed while performing the action */
+        boolean closed;
+        /** An exception thrown by the I/O thread while performing the action */
+        RuntimeException error;
+    }
+
+    protected final int numSlots;
+
+    /** Actions submitted but not yet started by the I/O thread */
+    protected BlockingQueue<Integer> actions;
+    /** Slots the I/O thread may write into */
+    protected BlockingQueue<Slot> freeSlots;
+    /** Slots holding completed observations, in the order their actions were submitted */
+    protected BlockingQueue<Slot> completedSlots;
+    /** The observation currently held by the caller */
+    protected Slot claimed;
+
+    protected Thread ioThread;
+    protected volatile boolean closing;
+
+    public PipelinedALEDriver(String rom) {
+        this(rom, 1);
+    }
+
+    public PipelinedALEDriver(String rom, int frameskip) {
+        this(rom, frameskip, DEFAULT_NUM_SLOTS);
+    }
+
+    /**
+     * @param numSlots the size of the observation ring. At least 2: one for the caller, one for the I/O thread.
+     *                 Each additional slot lets the I/O thread complete one more action ahead of the caller.
+     */
+    public PipelinedALEDriver(String rom, int frameskip, int numSlots) {
+        this(rom, frameskip, false, numSlots);
+    }
+
+    public PipelinedALEDriver(String rom, int frameskip, boolean nativeFrameSkip, int numSlots) {
+        super(rom, frameskip, nativeFrameSkip);
+        this.numSlots = checkNumSlots(numSlots);
+    }
+
+    public PipelinedALEDriver(Process process, int frameskip, boolean nativeFrameSkip, int numSlots) {
+        super(process, frameskip, nativeFrameSkip);
+        this.numSlots = checkNumSlots(numSlots);
+    }
+
+    private static int checkNumSlots(int numSlots) {
+        if (numSlots < 2) {
+            throw new IllegalArgumentException("A pipelined driver needs at least 2 slots, got " + numSlots);
+        }
+        return numSlots;
+    }
+
+    @Override
+    public void initPipes() throws IOException {
+        super.initPipes();
+
+        actions = new ArrayBlockingQueue<>(numSlots);
+        freeSlots = new ArrayBlockingQueue<>(numSlots);
+        completedSlots = new ArrayBlockingQueue<>(numSlots);
+
+        for (int i = 0; i < numSlots; i++) {
+            Slot slot = new Slot();
+            slot.screen = (new Mat(screen.rows(), screen.cols(), screen.type())).put(Scalar.all(0));
+            if (i == 0) {
+                claimed = slot;
+            } else {
+                freeSlots.add(slot);
+            }
+        }
+        storeObservation(claimed, false);
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runIO();
+            }
+        }, "ALE I/O");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /** Hands an action off to the I/O thread, without waiting for it to be performed. Every
+     *   submitted action must be claimed with {@link #awaitObservation()}, in order. At most
+     *   numSlots actions can be waiting for the I/O thread to start them.
+     */
+    public void submitAction(int act) {
+        if (!actions.offer(act)) {
+            throw new IllegalStateException("More than " + numSlots + " actions queued without awaiting their observations");
+        }
+    }
+
+    /** Blocks until the oldest submitted action has been performed, and claims its observation.
+     *   The previously claimed observation is handed back to the I/O thread.
+     *
+     * @return true if the FIFO stream was closed
+     */
+    public boolean awaitObservation() {
+        Slot completed;
+        try {
+            completed = completedSlots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for ALE", e);
+        }
+
+        freeSlots.add(claimed);
+        claimed = completed;
+
+        if (claimed.error != null) {
+            throw new RuntimeException("The ALE I/O thread failed", claimed.error);
+        }
+        return claimed.closed;
+    }
+
+    @Override
+    public boolean act(int act) {
+        submitAction(act);
+        return awaitObservation();
+    }
+
+    @Override
+    public Mat getScreen() {
+        return claimed.screen;
+    }
+
+    @Override
+    public RLData getRLData() {
+        return claimed.rlData;
+    }
+
+    @Override
+    public ConsoleRAM getRAM() {
+        return claimed.ram;
+    }
+
+    @Override
+    public boolean wantsTerminate() {
+        return claimed.terminateRequested;
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        if (ioThread != null) {
+            ioThread.interrupt();
+        }
+        super.close();
+    }
+
+    /** The I/O thread's main loop: performs submitted actions one at a time. */
+    protected void runIO() {
+        try {
+            while (!closing) {
+                int act = actions.take();
+                Slot slot = freeSlots.take();
+
+                try {
+                    slot.error = null;
+                    storeObservation(slot, performAction(act, slot));
+                } catch (RuntimeException e) {
+                    slot.error = e;
+                }
+
+                completedSlots.put(slot);
+            }
+        } catch (InterruptedException e) {
+            // close() was called
+        }
+    }
+
+    /** Performs a full action, leaving the pooled screen in the slot.
+     *
+     * @return true if the FIFO stream was closed
+     */
+    protected boolean performAction(int act, Slot slot) {
+        prepareAct();
+
+        int numFrames = framesPerAct();
+        sendAction(act);
+        for (int f = 0; f < numFrames; f++) {
+            if (readObservation()) {
+                return true;
+            }
+
+            // Let ALE emulate the next frame while we decode this one
+            if (f + 1 < numFrames) {
+                sendAction(act);
+            }
+
+            decodeObservation(frameFor(f));
+            accumulateRLData();
+        }
+
+        if (screenType == ScreenType.SCREEN_TYPE_PALETTE_PAIR) {
+            // Both frames live in the driver's own screen; it must persist between actions
+            screen.copyTo(slot.screen);
+        } else {
+            // Pool straight into the slot
+            screen = slot.screen;
+            poolFrames();
+            if (screen != slot.screen) {
+                screen.copyTo(slot.screen);
+            }
+        }
+
+        return false;
+    }
+
+    /** Copies the state of the last action, except for the screen, into the slot */
+    protected void storeObservation(Slot slot, boolean closed) {
+        slot.rlData.reward = rlData.reward;
+        slot.rlData.isTerminal = rlData.isTerminal;
+        slot.rlData.lives = rlData.lives;
+        System.arraycopy(ram.ram, 0, slot.ram.ram, 0, ConsoleRAM.RAM_SIZE);
+        slot.terminateRequested = terminateRequested;
+        slot.closed = closed;
+    }
+}
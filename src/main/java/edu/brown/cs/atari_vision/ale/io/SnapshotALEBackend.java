@@ -0,0 +1,20 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+/**
+ * A backend that can capture the emulator state and go back to it later, any number of times.
+ */
+public interface SnapshotALEBackend extends ALEBackend {
+
+    /** An opaque snapshot, holding native memory until released */
+    interface Snapshot {
+        void release();
+    }
+
+    /** Captures the emulator state, along with the current observation. */
+    Snapshot snapshot();
+
+    /** Restores a snapshot. The observation (screen, RAM, lives and terminal flag) is that of
+     *   the snapshot, with a reward of 0.
+     */
+    void restore(Snapshot snapshot);
+}
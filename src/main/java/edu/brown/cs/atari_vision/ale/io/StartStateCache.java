@@ -0,0 +1,67 @@
+package edu.brown.cs.atari_vision.ale.io;
+
+/**
+ * Caches the states reached by a game reset followed by 0 to maxNoops no-op actions, so that
+ * episodes with random no-op starts begin with a single restore, rather than replaying the reset
+ * (and the game's reset animation) and every no-op.
+ *
+ * Snapshots are taken lazily, the first time each prefix is asked for.
+ */
+public class StartStateCache {
+
+    protected final SnapshotALEBackend io;
+    protected final SnapshotALEBackend.Snapshot[] snapshots;
+
+    protected final int systemReset = Actions.map("system_reset");
+    protected final int noop = Actions.map("player_a_noop");
+
+    public StartStateCache(SnapshotALEBackend io, int maxNoops) {
+        this.io = io;
+        this.snapshots = new SnapshotALEBackend.Snapshot[maxNoops + 1];
+    }
+
+    public int maxNoops() {
+        return snapshots.length - 1;
+    }
+
+    /** Puts the emulator in the state reached by resetting the game and then performing numNoops no-ops. */
+    public void restore(int numNoops) {
+        if (numNoops < 0 || numNoops > maxNoops()) {
+            throw new IllegalArgumentException(String.format("Can only restore 0 to %d no-ops, not %d", maxNoops(), numNoops));
+        }
+
+        if (snapshots[numNoops] == null) {
+            // Continue from the longest prefix we already have
+            int start = numNoops;
+            while (start >= 0 && snapshots[start] == null) {
+                start--;
+            }
+
+            if (start < 0) {
+                io.act(systemReset);
+                snapshots[0] = io.snapshot();
+                start = 0;
+            } else {
+                io.restore(snapshots[start]);
+            }
+
+            for (int n = start + 1; n <= numNoops; n++) {
+                io.act(noop);
+                snapshots[n] = io.snapshot();
+            }
+        }
+
+        // Even right after taking it, so the observation is the same whether or not it was cached
+        io.restore(snapshots[numNoops]);
+    }
+
+    /** Releases all of the snapshots. The cache can still be used afterwards. */
+    public void clear() {
+        for (int i = 0; i < snapshots.length; i++) {
+            if (snapshots[i] != null) {
+                snapshots[i].release();
+                snapshots[i] = null;
+            }
+        }
+    }
+}
@@ -32,6 +32,11 @@ public abstract class ColorPalette {
     /** How many entries our map contains. */
     protected int numEntries;
 
+    /** The same map packed as consecutive blue, green, red bytes (OpenCV's channel order). */
+    protected byte[] bgr;
+    /** The 8-bit luminance of each entry, computed the same way as OpenCV's BGR2GRAY. */
+    protected byte[] luminance;
+
     /** Create a color palette used to display the screen. The currently available
      *   choices are NTSC (128 colors) and SECAM (8 colors).
      *
@@ -52,6 +57,8 @@ public abstract class ColorPalette {
      */
     public ColorPalette() {
         map = new Color[MAX_ENTRIES];
+        bgr = new byte[3 * MAX_ENTRIES];
+        luminance = new byte[MAX_ENTRIES];
         // 0 is always black
         set(Color.BLACK, 0);
     }
@@ -75,6 +82,14 @@ public abstract class ColorPalette {
         map[i] = c;
         if (oldColor == null) numEntries++;
 
+        int r = c.getRed();
+        int g = c.getGreen();
+        int b = c.getBlue();
+        bgr[3*i] = (byte)b;
+        bgr[3*i + 1] = (byte)g;
+        bgr[3*i + 2] = (byte)r;
+        luminance[i] = (byte)luminance(r, g, b);
+
         return oldColor;
     }
 
@@ -87,6 +102,28 @@ public abstract class ColorPalette {
         return map[i];
     }
     
+    /** Returns the packed BGR table: entry i occupies bytes 3i to 3i+2.
+     *   Entries without a color are black. The array is shared, do not modify it.
+     *
+     * @return
+     */
+    public byte[] bgrTable() {
+        return bgr;
+    }
+
+    /** Returns the 8-bit luminance of every entry. The array is shared, do not modify it.
+     *
+     * @return
+     */
+    public byte[] luminanceTable() {
+        return luminance;
+    }
+
+    /** Fixed-point Rec. 601 luma, bit-exact with OpenCV's BGR2GRAY conversion. */
+    public static int luminance(int r, int g, int b) {
+        return (r*4899 + g*9617 + b*1868 + (1 << 13)) >> 14;
+    }
+
     /** Returns whether palette index i has an associated color.
      * 
      * @param i
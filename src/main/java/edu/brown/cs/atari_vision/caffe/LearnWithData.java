@@ -1,7 +1,6 @@
 package edu.brown.cs.atari_vision.caffe;
 
 import burlap.behavior.functionapproximation.ParametricFunction;
-import burlap.behavior.policy.EpsilonGreedy;
 import burlap.behavior.policy.Policy;
 import burlap.mdp.singleagent.SADomain;
 import burlap.mdp.singleagent.environment.EnvironmentOutcome;
@@ -11,6 +10,7 @@ import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
 import edu.brown.cs.atari_vision.ale.io.Actions;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameExperienceMemory;
 import edu.brown.cs.atari_vision.caffe.learners.DeepQLearner;
+import edu.brown.cs.atari_vision.caffe.policies.ActionValuesEpsilonGreedy;
 import edu.brown.cs.atari_vision.caffe.preprocess.DQNPreProcessor;
 import edu.brown.cs.atari_vision.caffe.training.SimpleTrainer;
 import edu.brown.cs.atari_vision.caffe.training.TrainingHelper;
@@ -82,7 +82,7 @@ public class LearnWithData {
         DQNPreProcessor preProcessor = new DQNPreProcessor();
 
         int testInterval = 250000/4;
-        Policy testPolicy = new EpsilonGreedy(dqn, 0.05);
+        Policy testPolicy = new ActionValuesEpsilonGreedy(dqn, 0.05);
         // setup helper
         TrainingHelper helper = new SimpleTrainer(null, dqn, testPolicy, actionSet, env);
         helper.setTotalTestSteps(125000);
@@ -1,7 +1,6 @@
 package edu.brown.cs.atari_vision.caffe.exampledomains;
 
 import burlap.behavior.functionapproximation.ParametricFunction;
-import burlap.behavior.policy.EpsilonGreedy;
 import burlap.behavior.policy.Policy;
 import burlap.behavior.singleagent.auxiliary.valuefunctionvis.ValueFunctionVisualizerGUI;
 import burlap.domain.singleagent.gridworld.GridWorldDomain;
@@ -28,6 +27,7 @@ import burlap.statehashing.simple.SimpleHashableStateFactory;
 import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FixedSizeMemory;
 import edu.brown.cs.atari_vision.caffe.learners.DeepQLearner;
+import edu.brown.cs.atari_vision.caffe.policies.ActionValuesEpsilonGreedy;
 import edu.brown.cs.atari_vision.caffe.policies.AnnealedEpsilonGreedy;
 import edu.brown.cs.atari_vision.caffe.training.SimpleTrainer;
 import edu.brown.cs.atari_vision.caffe.training.TrainingHelper;
@@ -98,7 +98,7 @@ public class NNGridWorld {
         DeepQLearner deepQLearner = new DeepQLearner(nnGridWorld.domain, gamma, 50000, policy, nnGridWorld.dqn);
         deepQLearner.setExperienceReplay(new FixedSizeMemory(1000000), nnGridWorld.dqn.batchSize);
 
-        Policy testPolicy = new EpsilonGreedy(nnGridWorld.dqn, 0.05);
+        Policy testPolicy = new ActionValuesEpsilonGreedy(nnGridWorld.dqn, 0.05);
 
         if (GUI) {
             VisualExplorer exp = new VisualExplorer(nnGridWorld.domain, nnGridWorld.env, GridWorldVisualizer.getVisualizer(nnGridWorld.gwdg.getMap()));
@@ -0,0 +1,464 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.core.action.Action;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * A {@link FrameHistoryMemory} that stores its experiences as parallel primitive columns instead of
+ * {@link FrameExperience} objects, so a full memory holds one buffer of columns rather than millions of
+ * small objects, and is checkpointed in bulk (see {@link ReplayCheckpoint}).
+ *
+ * Only the state an action was taken from is stored. The resulting state always follows it in the frame
+ * history (see {@link #addFrame}), so it is derived from it, or is null if the experience terminated.
+ * {@link FrameHistoryState}s are only created as handles when experiences are sampled, and not at all when
+ * sampling into a {@link Minibatch}.
+ *
+ * The columns share one buffer, after a header that mirrors next, size and currentFrameIndex. When the memory
+ * is created in a directory, both the columns and the frame history are memory-mapped files there, and creating
+ * it again in the same directory reopens the memory as it was left, without loading anything.
+ *
+ * Experiences are added by one thread, but minibatches can be sampled on another (see {@link MinibatchPrefetcher}):
+ * experiences are added under the memory's lock, which a sample's columns are read under, and its frames are read
+ * again if they were written to while being converted.
+ */
+public class ColumnarFrameExperienceMemory extends FrameHistoryMemory implements MinibatchMemory {
+
+    public static final String COLUMNS_FILE = "experiences.columns";
+    public static final String FRAME_HISTORY_FILE = "frames.history";
+    public static final String CHECKPOINT_EXTENSION = ".replay";
+
+    static final int MAGIC = 0x41564552; // "AVER"
+    static final int VERSION = 1;
+
+    /** magic, version, capacity, maxHistoryLength and outputSize, then the position */
+    static final int HEADER_SIZE = 40;
+    static final int NEXT_OFFSET = 20, SIZE_OFFSET = 24, FRAME_INDEX_OFFSET = 32;
+
+    /** Bytes per experience over all the columns */
+    static final int EXPERIENCE_SIZE = 8 + 4 + 4 + 1 + 1;
+
+    public int next = 0;
+    public int size = 0;
+
+    protected transient ByteBuffer columns;
+    protected transient MappedByteBuffer mappedColumns;
+
+    /** The frame index and history length of the state the action was taken from */
+    protected transient LongBuffer stateIndices;
+    protected transient ByteBuffer historyLengths;
+
+    /** The action id of the action that was taken */
+    protected transient IntBuffer actions;
+
+    protected transient FloatBuffer rewards;
+    protected transient ByteBuffer terminals;
+
+    protected transient ReplayCheckpoint checkpoint;
+
+    /** The frame history segments of the thread sampling minibatches */
+    protected transient BytePointer[] samplingSegments;
+
+    public ColumnarFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet) {
+        this(size, maxHistoryLength, preProcessor, actionSet, false);
+    }
+
+    public ColumnarFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent) {
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent);
+        checkHistoryLength(maxHistoryLength);
+
+        initColumns(ByteBuffer.allocate(columnsSize(size)));
+        writeHeader();
+    }
+
+    public ColumnarFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent,
+                                         File directory) throws IOException {
+        this(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent, directory, MAX_MAPPED_SEGMENT_SIZE);
+    }
+
+    /**
+     * Keeps the memory in memory-mapped files in the given directory, with the frame history split into segments
+     * of at most maxSegmentSize bytes. If the directory holds a memory of the same size, it is reopened.
+     */
+    public ColumnarFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent,
+                                         File directory, long maxSegmentSize) throws IOException {
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent, frameHistoryFile(directory), maxSegmentSize);
+        checkHistoryLength(maxHistoryLength);
+
+        int columnsSize = columnsSize(size);
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, COLUMNS_FILE), "rw")) {
+            boolean sameSize = file.length() == columnsSize;
+            if (!sameSize) {
+                file.setLength(0);
+                file.setLength(columnsSize);
+            }
+            mappedColumns = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, columnsSize);
+        }
+        initColumns(mappedColumns);
+
+        if (frameHistoryReopened && headerMatches()) {
+            next = columns.getInt(NEXT_OFFSET);
+            this.size = columns.getInt(SIZE_OFFSET);
+            currentFrameIndex = columns.getLong(FRAME_INDEX_OFFSET);
+        } else {
+            writeHeader();
+        }
+    }
+
+    private static File frameHistoryFile(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return new File(directory, FRAME_HISTORY_FILE);
+    }
+
+    private static void checkHistoryLength(int maxHistoryLength) {
+        if (maxHistoryLength > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("History lengths are stored as bytes; was request length of " + maxHistoryLength);
+        }
+    }
+
+    /** The size of the header and columns, which have to fit in one buffer */
+    static int columnsSize(int capacity) {
+        long columnsSize = HEADER_SIZE + (long)capacity * EXPERIENCE_SIZE;
+        if (columnsSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many experiences for one column buffer: " + capacity);
+        }
+        return (int)columnsSize;
+    }
+
+    /** Lays the columns out in the buffer, widest first to keep them aligned */
+    protected void initColumns(ByteBuffer columns) {
+        this.columns = columns;
+        int capacity = (columns.capacity() - HEADER_SIZE) / EXPERIENCE_SIZE;
+
+        int offset = HEADER_SIZE;
+        stateIndices = column(offset, capacity * 8).asLongBuffer();
+        offset += capacity * 8;
+        actions = column(offset, capacity * 4).asIntBuffer();
+        offset += capacity * 4;
+        rewards = column(offset, capacity * 4).asFloatBuffer();
+        offset += capacity * 4;
+        historyLengths = column(offset, capacity);
+        offset += capacity;
+        terminals = column(offset, capacity);
+    }
+
+    private ByteBuffer column(int offset, int length) {
+        ByteBuffer buffer = columns.duplicate();
+        buffer.position(offset).limit(offset + length);
+        return buffer.slice();
+    }
+
+    protected boolean headerMatches() {
+        return columns.getInt(0) == MAGIC && columns.getInt(4) == VERSION
+                && columns.getInt(8) == capacity()
+                && columns.getInt(12) == maxHistoryLength
+                && columns.getInt(16) == preProcessor.outputSize();
+    }
+
+    protected void writeHeader() {
+        columns.putInt(0, MAGIC);
+        columns.putInt(4, VERSION);
+        columns.putInt(8, capacity());
+        columns.putInt(12, maxHistoryLength);
+        columns.putInt(16, preProcessor.outputSize());
+        writePosition();
+    }
+
+    /** Mirrors the fields that change with every experience into the header */
+    protected void writePosition() {
+        columns.putInt(NEXT_OFFSET, next);
+        columns.putInt(SIZE_OFFSET, size);
+        columns.putLong(FRAME_INDEX_OFFSET, currentFrameIndex);
+    }
+
+    @Override
+    public synchronized FrameHistoryState initialState(Mat screen) {
+        FrameHistoryState state = super.initialState(screen);
+        writePosition();
+        return state;
+    }
+
+    @Override
+    public synchronized FrameHistoryState nextState(Mat screen, FrameHistoryState prevState, Action action, double reward, boolean terminated) {
+        FrameHistoryState newState = null;
+        if (!terminated) {
+            newState = addFrame(screen, prevState);
+        }
+
+        // Add experience
+        stateIndices.put(next, prevState.index);
+        historyLengths.put(next, (byte)prevState.historyLength);
+        actions.put(next, actionSet.map(action.actionName()));
+        rewards.put(next, (float)reward);
+        terminals.put(next, (byte)(terminated ? 1 : 0));
+
+        next = (next+1) % capacity();
+        size = Math.min(size+1, capacity());
+        writePosition();
+
+        return newState;
+    }
+
+    public int capacity() {
+        return stateIndices.capacity();
+    }
+
+    /** The state the action of experience i was taken from */
+    public FrameHistoryState state(int i) {
+        return new FrameHistoryState(stateIndices.get(i), historyLengths.get(i), stream);
+    }
+
+    /** The state experience i resulted in, or null if it terminated */
+    public FrameHistoryState resultState(int i) {
+        if (terminal(i)) {
+            return null;
+        }
+        return new FrameHistoryState(nextFrameIndex(stateIndices.get(i)), nextHistoryLength(historyLengths.get(i)), stream);
+    }
+
+    public int action(int i) {
+        return actions.get(i);
+    }
+
+    public float reward(int i) {
+        return rewards.get(i);
+    }
+
+    public boolean terminal(int i) {
+        return terminals.get(i) != 0;
+    }
+
+    public EnvironmentOutcome experience(int i) {
+        return new EnvironmentOutcome(state(i), actionSet.getAction(action(i)), resultState(i), reward(i), terminal(i));
+    }
+
+    public boolean isMapped() {
+        return mappedColumns != null;
+    }
+
+    /** Writes the mapped columns and frame history back to their files. Does nothing if they are kept in memory. */
+    @Override
+    public void flush() {
+        super.flush();
+        if (mappedColumns != null) {
+            mappedColumns.force();
+        }
+    }
+
+    /** The checkpointer used by {@link #saveMemoryState(String)} and {@link #loadMemoryState(String)} */
+    public ReplayCheckpoint getCheckpoint() {
+        if (checkpoint == null) {
+            checkpoint = new ReplayCheckpoint(this);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Saves the memory to filePrefix.replay (see {@link ReplayCheckpoint}). A memory-mapped memory is its own
+     * checkpoint, so it is only flushed to its files; it is reopened by creating it again in the same directory.
+     */
+    @Override
+    public void saveMemoryState(String filePrefix) {
+        if (isMapped()) {
+            flush();
+            return;
+        }
+
+        try {
+            getCheckpoint().save(new File(filePrefix + CHECKPOINT_EXTENSION));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads a memory saved by {@link #saveMemoryState(String)}. A memory-mapped memory copies it into its files,
+     * and keeps its current contents if there is no such checkpoint.
+     */
+    @Override
+    public void loadMemoryState(String filePrefix) {
+        File file = new File(filePrefix + CHECKPOINT_EXTENSION);
+        if (isMapped() && !file.exists()) {
+            return;
+        }
+
+        try {
+            getCheckpoint().load(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void addExperience(EnvironmentOutcome eo) {
+        // Do nothing since we add the experience earlier
+    }
+
+    /** Samples experiences the same way {@link FrameExperienceMemory#sampleExperiences(int)} does */
+    @Override
+    public List<EnvironmentOutcome> sampleExperiences(int n) {
+        List<EnvironmentOutcome> samples;
+
+        if(this.size == 0){
+            return new ArrayList<>();
+        }
+
+        if(this.alwaysIncludeMostRecent){
+            n--;
+        }
+
+        if(this.size < n){
+            samples = new ArrayList<>(this.size);
+            for(int i = 0; i < this.size; i++){
+                samples.add(experience(i));
+            }
+            return samples;
+        }
+        else{
+            samples = new ArrayList<>(Math.max(n, 1));
+            Random r = RandomFactory.getMapped(0);
+            for(int i = 0; i < n; i++) {
+                int sind = r.nextInt(this.size);
+                samples.add(experience(sind));
+            }
+        }
+        if(this.alwaysIncludeMostRecent){
+            samples.add(experience(next > 0 ? next - 1 : capacity() - 1));
+        }
+
+        return samples;
+    }
+
+    /**
+     * Samples like {@link #sampleExperiences(int)}, without allocating. A resulting state shares all but its newest
+     * frame with the state before it, so its input is copied from the state's input, and only the new frame is
+     * converted.
+     */
+    @Override
+    public boolean sampleInto(Minibatch batch) {
+        return sampleInto(batch, RandomFactory.getMapped(0));
+    }
+
+    @Override
+    public boolean sampleInto(Minibatch batch, Random r) {
+        synchronized (this) {
+            int numDrawn = this.alwaysIncludeMostRecent ? batch.capacity - 1 : batch.capacity;
+            if (this.size == 0 || this.size < numDrawn) {
+                batch.size = 0;
+                return false;
+            }
+
+            selectIndices(batch, numDrawn, r);
+            batch.size = batch.capacity;
+            if (this.alwaysIncludeMostRecent) {
+                batch.indices[numDrawn] = next > 0 ? next - 1 : capacity() - 1;
+            }
+        }
+
+        fillMinibatch(batch);
+        return true;
+    }
+
+    /** Picks the first numDrawn experiences of the minibatch */
+    protected void selectIndices(Minibatch batch, int numDrawn, Random r) {
+        for (int k = 0; k < numDrawn; k++) {
+            batch.indices[k] = r.nextInt(this.size);
+        }
+        batch.weighted = false;
+    }
+
+    /** Fills the minibatch with the experiences at its indices */
+    protected void fillMinibatch(Minibatch batch) {
+        for (int k = 0; k < batch.size; k++) {
+            fillSample(batch, k, batch.indices[k]);
+        }
+
+        batch.stateInputs.position(0).limit(batch.stateInputs.capacity());
+        batch.primeStateInputs.position(0).limit(batch.primeStateInputs.capacity());
+    }
+
+    /** Fills the k-th sample of the minibatch with experience i, leaving its inputs positioned */
+    protected void fillSample(Minibatch batch, int k, int i) {
+        if (samplingSegments == null) {
+            samplingSegments = readerSegments();
+        }
+
+        if (writeEpochs == null) {
+            readColumns(batch, k, i);
+            fillInputs(batch, k);
+            return;
+        }
+
+        // the experience may be overwritten while its frames are converted, in which case it is read again
+        long epochs;
+        do {
+            synchronized (this) {
+                readColumns(batch, k, i);
+                epochs = sampleEpochs(batch, k);
+            }
+            fillInputs(batch, k);
+        } while (epochs < 0 || epochs != sampleEpochs(batch, k));
+    }
+
+    protected void readColumns(Minibatch batch, int k, int i) {
+        batch.stateIndices[k] = stateIndices.get(i);
+        batch.historyLengths[k] = historyLengths.get(i);
+        batch.actions[k] = actions.get(i);
+        batch.rewards[k] = rewards.get(i);
+        batch.terminals[k] = terminals.get(i) != 0;
+    }
+
+    /** The write epochs of the frames of the k-th sample, or -1 if they are being written */
+    protected long sampleEpochs(Minibatch batch, int k) {
+        long frameSize = preProcessor.outputSize();
+        long index = batch.stateIndices[k];
+        long epochs = readEpochs(index - (batch.historyLengths[k] - 1)*frameSize, index + frameSize);
+        if (epochs < 0 || batch.terminals[k]) {
+            return epochs;
+        }
+        long nextIndex = nextFrameIndex(index);
+        long nextEpochs = readEpochs(nextIndex, nextIndex + frameSize);
+        return nextEpochs < 0 ? -1 : epochs + nextEpochs;
+    }
+
+    /** Converts the frames of the k-th sample into its state and resulting state inputs */
+    protected void fillInputs(Minibatch batch, int k) {
+        int frameSize = preProcessor.outputSize();
+        int inputSize = batch.inputSize;
+        FloatPointer stateInputs = batch.stateInputs;
+        FloatPointer primeStateInputs = batch.primeStateInputs;
+
+        long index = batch.stateIndices[k];
+        long pos = (long)k * inputSize;
+        getStateInput(index, batch.historyLengths[k], stateInputs.position(pos), samplingSegments);
+        if (!batch.terminals[k]) {
+            primeStateInputs.position(pos).limit(pos + inputSize - frameSize)
+                    .put(stateInputs.position(pos + frameSize).limit(pos + inputSize));
+            preProcessor.convertDataToInput(frameAt(nextFrameIndex(index), samplingSegments),
+                    primeStateInputs.position(pos + inputSize - frameSize).limit(pos + inputSize), 1);
+        }
+    }
+
+    @Override
+    public void resetMemory() {
+        super.resetMemory();
+        this.size = 0;
+        this.next = 0;
+        writePosition();
+    }
+}
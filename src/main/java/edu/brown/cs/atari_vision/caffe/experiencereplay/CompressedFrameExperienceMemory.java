@@ -0,0 +1,433 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * An experience memory that keeps its frames compressed, to fit more experiences in the same RAM. Consecutive
+ * preprocessed frames differ in few bytes, so frames are grouped into blocks of blockFrames frames, and once a block
+ * is full, each of its frames is XORed with the frame before it and the resulting runs of zeros are run-length
+ * encoded. The block being filled is kept raw.
+ *
+ * Frames are decoded when sampled, into a bounded cache of decoded blocks that each thread has its own of. A block
+ * is only decoded as far as the frames asked for, and is cached so that the frames of a state, which usually share a
+ * block, and the states the agent acts on are decoded once. Encoded blocks never change, so a sample only holds
+ * the memory's lock while its columns are read and its blocks looked up, and minibatches can be sampled on another
+ * thread than the one adding experiences.
+ *
+ * The blocks held cover the experiences, their histories and a block of slack; like the raw ring of
+ * {@link FrameHistoryMemory}, a memory whose episodes are often cut short holds more frames than experiences, and
+ * frames that were dropped read as blank.
+ *
+ * {@link ReplayCompressionBenchmark} compares the bytes per frame and sampling speed with those of a
+ * {@link ColumnarFrameExperienceMemory} on frames of a game.
+ */
+public class CompressedFrameExperienceMemory extends NumberedFrameExperienceMemory {
+
+    public static final String CHECKPOINT_EXTENSION = ".creplay";
+
+    static final int MAGIC = 0x41564346; // "AVCF"
+
+    public static final int DEFAULT_BLOCK_FRAMES = 16;
+    public static final int DEFAULT_CACHE_BLOCKS = 64;
+
+    /** Unchanged bytes are only encoded as a run from this many on; shorter runs cost less as literals */
+    static final int MIN_ZERO_RUN = 4;
+
+    protected final int blockFrames;
+
+    /** The number of decoded blocks each thread caches */
+    protected final int cacheBlocks;
+
+    /** The encoded blocks, by block number modulo their number, and the frames of the block being filled */
+    protected final byte[][] blocks;
+    protected final byte[] openBlock;
+    protected long encodedBytes;
+
+    /** Large enough for a block of frames that do not compress at all */
+    protected final byte[] encodeBuffer;
+
+    protected final ThreadLocal<FrameReader> readers = new ThreadLocal<FrameReader>() {
+        @Override
+        protected FrameReader initialValue() {
+            return new FrameReader();
+        }
+    };
+
+    public CompressedFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet) {
+        this(size, maxHistoryLength, preProcessor, actionSet, false, DEFAULT_BLOCK_FRAMES, DEFAULT_CACHE_BLOCKS);
+    }
+
+    public CompressedFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent,
+                                           int blockFrames, int cacheBlocks) {
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent);
+        if (blockFrames < 1 || cacheBlocks < 1) {
+            throw new IllegalArgumentException(String.format("Blocks need at least one frame and the cache one block; was %d and %d",
+                    blockFrames, cacheBlocks));
+        }
+        this.blockFrames = blockFrames;
+        this.cacheBlocks = cacheBlocks;
+
+        // the frames of the experiences and their histories, plus the partly overwritten oldest block and the open one
+        this.blocks = new byte[(size + maxHistoryLength) / blockFrames + 2][];
+        this.openBlock = new byte[blockFrames * frameSize];
+        this.encodeBuffer = new byte[blockFrames * (frameSize + 10 * (frameSize / MIN_ZERO_RUN + 2))];
+    }
+
+    /** Copies the frame into the open block, encoding the block if that fills it */
+    @Override
+    protected void storeFrame(BytePointer data, long frame) {
+        data.get(openBlock, (int)(frame % blockFrames) * frameSize, frameSize);
+        if ((frame + 1) % blockFrames == 0) {
+            sealBlock(frame / blockFrames);
+        }
+    }
+
+    /** Encodes the full open block, replacing the oldest block held */
+    protected void sealBlock(long block) {
+        int length = encodeBlock(openBlock, blockFrames, frameSize, encodeBuffer);
+        int slot = (int)(block % blocks.length);
+        if (blocks[slot] != null) {
+            encodedBytes -= blocks[slot].length;
+        }
+        blocks[slot] = Arrays.copyOf(encodeBuffer, length);
+        encodedBytes += length;
+    }
+
+    /**
+     * Encodes numFrames frames, each XORed with the one before it (the first with zeros), as pairs of varints giving
+     * a run of zeros and a number of literal bytes, followed by the literals. Each frame ends a pair.
+     */
+    static int encodeBlock(byte[] frames, int numFrames, int frameSize, byte[] out) {
+        int p = 0;
+        for (int j = 0; j < numFrames; j++) {
+            int base = j * frameSize;
+            int i = 0;
+            while (i < frameSize) {
+                int zerosStart = i;
+                while (i < frameSize && delta(frames, base, j, i, frameSize) == 0) {
+                    i++;
+                }
+                int literalsStart = i;
+                int zerosInRow = 0;
+                while (i < frameSize) {
+                    if (delta(frames, base, j, i, frameSize) != 0) {
+                        zerosInRow = 0;
+                    } else if (++zerosInRow == MIN_ZERO_RUN) {
+                        i -= MIN_ZERO_RUN - 1;
+                        break;
+                    }
+                    i++;
+                }
+
+                p = writeVarint(out, p, literalsStart - zerosStart);
+                p = writeVarint(out, p, i - literalsStart);
+                for (int b = literalsStart; b < i; b++) {
+                    out[p++] = (byte)delta(frames, base, j, b, frameSize);
+                }
+            }
+        }
+        return p;
+    }
+
+    private static int delta(byte[] frames, int base, int j, int i, int frameSize) {
+        return j == 0 ? frames[base + i] : frames[base + i] ^ frames[base - frameSize + i];
+    }
+
+    private static int writeVarint(byte[] out, int p, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[p++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[p++] = (byte)value;
+        return p;
+    }
+
+    /**
+     * Decodes frame j of a block encoded by {@link #encodeBlock} into frames, which must hold the frames before it,
+     * reading from encoded at p. Returns the position of the next frame.
+     */
+    static int decodeFrame(byte[] encoded, int p, int j, int frameSize, byte[] frames) {
+        int base = j * frameSize;
+        int prev = base - frameSize;
+        int i = 0;
+        while (i < frameSize) {
+            int zeros = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[p++];
+                zeros |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            int literals = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[p++];
+                literals |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+
+            if (j == 0) {
+                Arrays.fill(frames, base + i, base + i + zeros, (byte)0);
+                i += zeros;
+                System.arraycopy(encoded, p, frames, base + i, literals);
+                p += literals;
+                i += literals;
+            } else {
+                System.arraycopy(frames, prev + i, frames, base + i, zeros);
+                i += zeros;
+                for (int end = i + literals; i < end; i++) {
+                    frames[base + i] = (byte)(encoded[p++] ^ frames[prev + i]);
+                }
+            }
+        }
+        return p;
+    }
+
+    /** A block decoded as far as the frames asked for so far */
+    protected static class DecodedBlock {
+        long number;
+        byte[] encoded;
+        int encodedPosition;
+        int decodedFrames;
+        final byte[] frames;
+
+        DecodedBlock(int length) {
+            this.frames = new byte[length];
+        }
+
+        void reset(long number, byte[] encoded) {
+            this.number = number;
+            this.encoded = encoded;
+            this.encodedPosition = 0;
+            this.decodedFrames = 0;
+        }
+    }
+
+    /**
+     * The frames of the state being read by one thread, and its cache of decoded blocks. The frames of the open block
+     * are copied under the memory's lock, and the encoded blocks of the others are looked up, to be decoded after.
+     */
+    protected class FrameReader {
+
+        /** Decoded blocks in access order, least recently used first */
+        protected final LinkedHashMap<Long, DecodedBlock> cache = new LinkedHashMap<>(16, 0.75f, true);
+        protected int cacheGeneration;
+
+        protected final byte[] frames = new byte[(maxHistoryLength + 1) * frameSize];
+        protected final BytePointer data = new BytePointer((long)(maxHistoryLength + 1) * frameSize);
+
+        /** The first frame read, the number of frames and the encoded block of each, or null if already copied */
+        protected long firstFrame;
+        protected int numFrames;
+        protected final byte[][] sources = new byte[maxHistoryLength + 1][];
+
+        protected long hits;
+        protected long misses;
+
+        /** Copies or looks up the frames from first to last. Called under the memory's lock. */
+        protected void gather(long first, long last) {
+            if (cacheGeneration != generation) {
+                cache.clear();
+                cacheGeneration = generation;
+            }
+
+            long openStart = CompressedFrameExperienceMemory.this.numFrames / blockFrames * blockFrames;
+            long oldestBlock = CompressedFrameExperienceMemory.this.numFrames / blockFrames - blocks.length;
+
+            firstFrame = first;
+            numFrames = (int)(last - first + 1);
+            for (int t = 0; t < numFrames; t++) {
+                long frame = first + t;
+                sources[t] = null;
+                if (frame >= openStart) {
+                    System.arraycopy(openBlock, (int)(frame - openStart) * frameSize, frames, t * frameSize, frameSize);
+                } else if (frame < 0 || frame / blockFrames < oldestBlock) {
+                    Arrays.fill(frames, t * frameSize, (t + 1) * frameSize, (byte)0);
+                } else {
+                    sources[t] = blocks[(int)(frame / blockFrames % blocks.length)];
+                }
+            }
+        }
+
+        /** Decodes the frames that were looked up, and copies all of them to data */
+        protected void decode() {
+            for (int t = 0; t < numFrames; t++) {
+                if (sources[t] != null) {
+                    long frame = firstFrame + t;
+                    int j = (int)(frame % blockFrames);
+                    DecodedBlock block = block(frame / blockFrames, sources[t]);
+                    while (block.decodedFrames <= j) {
+                        block.encodedPosition = decodeFrame(block.encoded, block.encodedPosition, block.decodedFrames, frameSize, block.frames);
+                        block.decodedFrames++;
+                    }
+                    System.arraycopy(block.frames, j * frameSize, frames, t * frameSize, frameSize);
+                    sources[t] = null;
+                }
+            }
+            data.position(0).put(frames, 0, numFrames * frameSize);
+        }
+
+        /** The cached block, or a new entry for it, evicting the least recently used block if the cache is full */
+        protected DecodedBlock block(long number, byte[] encoded) {
+            DecodedBlock block = cache.get(number);
+            if (block != null) {
+                hits++;
+                return block;
+            }
+
+            misses++;
+            if (cache.size() >= cacheBlocks) {
+                Iterator<DecodedBlock> eldest = cache.values().iterator();
+                block = eldest.next();
+                eldest.remove();
+            } else {
+                block = new DecodedBlock(blockFrames * frameSize);
+            }
+            block.reset(number, encoded);
+            cache.put(number, block);
+            return block;
+        }
+
+        /** The t-th frame read, with its limit at the end of the frames read */
+        protected BytePointer frame(int t) {
+            return data.limit((long)numFrames * frameSize).position((long)t * frameSize);
+        }
+    }
+
+    @Override
+    public void getStateInput(FrameHistoryState state, FloatPointer input) {
+        FrameReader reader = readers.get();
+        int historyLength = state.historyLength;
+        synchronized (this) {
+            reader.gather(firstFrame(state.index, historyLength), state.index);
+        }
+        reader.decode();
+        convertFrames(reader, historyLength, input);
+    }
+
+    /** Converts the first historyLength frames the reader read into a state input at input.position() */
+    protected void convertFrames(FrameReader reader, int historyLength, FloatPointer input) {
+        long pos = input.position();
+        input.limit(pos + maxHistoryLength * frameSize);
+
+        // Fill unused frames with 0s
+        if (historyLength < maxHistoryLength) {
+            if (historyLength > 0) {
+                input.limit(pos + (maxHistoryLength - historyLength)*frameSize).zero();
+                input.limit(pos + maxHistoryLength * frameSize);
+            } else {
+                input.zero();
+                return;
+            }
+        }
+
+        preProcessor.convertDataToInput(reader.frame(0),
+                input.position(pos + (maxHistoryLength - historyLength)*frameSize),
+                historyLength);
+        input.position(pos);
+    }
+
+    @Override
+    protected void fillSample(Minibatch batch, int k) {
+        FrameReader reader = readers.get();
+        int i = batch.indices[k];
+        synchronized (this) {
+            readColumns(batch, k, i);
+            long index = stateFrames[i];
+            reader.gather(firstFrame(index, historyLengths[i]), terminals[i] ? index : index + 1);
+        }
+        reader.decode();
+
+        int inputSize = batch.inputSize;
+        FloatPointer stateInputs = batch.stateInputs;
+        FloatPointer primeStateInputs = batch.primeStateInputs;
+
+        long pos = (long)k * inputSize;
+        convertFrames(reader, batch.historyLengths[k], stateInputs.position(pos));
+        if (!batch.terminals[k]) {
+            primeStateInputs.position(pos).limit(pos + inputSize - frameSize)
+                    .put(stateInputs.position(pos + frameSize).limit(pos + inputSize));
+            preProcessor.convertDataToInput(reader.frame(reader.numFrames - 1),
+                    primeStateInputs.position(pos + inputSize - frameSize).limit(pos + inputSize), 1);
+        }
+    }
+
+    /** The number of frames held, encoded or in the open block */
+    public synchronized long framesHeld() {
+        long sealed = Math.min(numFrames / blockFrames, blocks.length);
+        return sealed * blockFrames + numFrames % blockFrames;
+    }
+
+    /** The average number of bytes a frame held takes */
+    public synchronized double bytesPerFrame() {
+        long frames = framesHeld();
+        return frames == 0 ? 0 : (double)(encodedBytes + numFrames % blockFrames * frameSize) / frames;
+    }
+
+    /** The fraction of blocks read by this thread that were already decoded */
+    public double cacheHitRate() {
+        FrameReader reader = readers.get();
+        long reads = reader.hits + reader.misses;
+        return reads == 0 ? 0 : (double)reader.hits / reads;
+    }
+
+    @Override
+    protected int checkpointMagic() {
+        return MAGIC;
+    }
+
+    /** Checkpoints are saved to filePrefix.creplay */
+    @Override
+    protected String checkpointExtension() {
+        return CHECKPOINT_EXTENSION;
+    }
+
+    @Override
+    protected void saveFrames(DataOutputStream out) throws IOException {
+        out.writeInt(blockFrames);
+        out.writeInt(blocks.length);
+        for (byte[] block : blocks) {
+            if (block == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(block.length);
+                out.write(block);
+            }
+        }
+        out.write(openBlock);
+    }
+
+    @Override
+    protected void loadFrames(DataInputStream in) throws IOException {
+        if (in.readInt() != blockFrames || in.readInt() != blocks.length) {
+            throw new IOException("The frames were saved in blocks of a different size");
+        }
+
+        encodedBytes = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            int length = in.readInt();
+            if (length < 0) {
+                blocks[b] = null;
+            } else {
+                blocks[b] = new byte[length];
+                in.readFully(blocks[b]);
+                encodedBytes += length;
+            }
+        }
+        in.readFully(openBlock);
+    }
+
+    @Override
+    protected void resetFrames() {
+        Arrays.fill(blocks, null);
+        this.encodedBytes = 0;
+    }
+}
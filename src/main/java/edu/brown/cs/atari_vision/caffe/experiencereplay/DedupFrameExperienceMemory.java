@@ -0,0 +1,420 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An experience memory that stores each distinct frame it holds once. Many games show the same screen for long
+ * stretches, such as pause screens, deaths and game over screens, so a frame that matches one still held, by content
+ * hash and then byte for byte, is stored as a reference to it.
+ *
+ * A ring of frame slots maps the frames held to entries in a pool of distinct frames. Each entry counts the slots
+ * referencing it, and is freed for reuse once the ring has overwritten all of them. The pool grows a chunk of
+ * entries at a time when none are free, so the memory takes as much as the most distinct frames it has held at once.
+ *
+ * Sampling converts each frame straight from its pool entry into the input, without gathering a state's frames
+ * first. A sample counts as a reference to the entries it reads until its minibatch is filled, so they are not
+ * reused while being converted outside the memory's lock.
+ */
+public class DedupFrameExperienceMemory extends NumberedFrameExperienceMemory {
+
+    public static final String CHECKPOINT_EXTENSION = ".dreplay";
+
+    static final int MAGIC = 0x41564446; // "AVDF"
+
+    public static final int DEFAULT_CHUNK_FRAMES = 1024;
+
+    protected final int chunkFrames;
+
+    /** The pool of distinct frames, in chunks of chunkFrames entries */
+    protected final List<BytePointer> chunks = new ArrayList<>();
+
+    /** The number of frame slots and samples referencing each entry, and the hash of its frame */
+    protected int[] refCounts = new int[0];
+    protected long[] hashes = new long[0];
+
+    /** Entries no longer referenced, reused before the pool grows */
+    protected int[] freeEntries = new int[0];
+    protected int numFree;
+
+    /** The most recently stored entry with each hash */
+    protected final HashMap<Long, Integer> entriesByHash = new HashMap<>();
+
+    /** The entry of each frame held, by frame number modulo their number, or -1 */
+    protected final int[] frameEntries;
+
+    /** The number of frames stored as a reference to an entry that was already held */
+    protected long deduplicatedFrames;
+
+    /** The frame being stored, and the frame of an entry it is compared with */
+    protected final byte[] frameBytes;
+    protected final byte[] entryBytes;
+
+    protected final ThreadLocal<FrameReader> readers = new ThreadLocal<FrameReader>() {
+        @Override
+        protected FrameReader initialValue() {
+            return new FrameReader();
+        }
+    };
+
+    public DedupFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet) {
+        this(size, maxHistoryLength, preProcessor, actionSet, false, DEFAULT_CHUNK_FRAMES);
+    }
+
+    public DedupFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent,
+                                      int chunkFrames) {
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent);
+        if (chunkFrames < 1) {
+            throw new IllegalArgumentException("Chunks need at least one frame; was " + chunkFrames);
+        }
+        this.chunkFrames = chunkFrames;
+
+        // the frames of the experiences, their histories and the frame being added
+        this.frameEntries = new int[size + maxHistoryLength + 1];
+        Arrays.fill(frameEntries, -1);
+
+        this.frameBytes = new byte[frameSize];
+        this.entryBytes = new byte[frameSize];
+    }
+
+    /** Stores the frame as a reference to an entry with the same frame, or in a new entry */
+    @Override
+    protected void storeFrame(BytePointer data, long frame) {
+        data.get(frameBytes, 0, frameSize);
+        long hash = hash(frameBytes);
+
+        int entry;
+        Integer match = entriesByHash.get(hash);
+        if (match != null && sameFrame(match, frameBytes)) {
+            entry = match;
+            refCounts[entry]++;
+            deduplicatedFrames++;
+        } else {
+            entry = allocate();
+            entry(entry).put(frameBytes, 0, frameSize);
+            refCounts[entry] = 1;
+            hashes[entry] = hash;
+            entriesByHash.put(hash, entry);
+        }
+
+        // the frame overwrites the oldest one held
+        int slot = (int)(frame % frameEntries.length);
+        if (frameEntries[slot] >= 0) {
+            release(frameEntries[slot]);
+        }
+        frameEntries[slot] = entry;
+    }
+
+    /** 64-bit FNV-1a */
+    static long hash(byte[] frame) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : frame) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    protected boolean sameFrame(int entry, byte[] frame) {
+        entry(entry).get(entryBytes, 0, frameSize);
+        return Arrays.equals(entryBytes, frame);
+    }
+
+    /** The frame of an entry, for the thread adding frames */
+    protected BytePointer entry(int entry) {
+        long offset = (long)(entry % chunkFrames) * frameSize;
+        return chunks.get(entry / chunkFrames).limit(offset + frameSize).position(offset);
+    }
+
+    /** A free entry, adding a chunk to the pool if there is none */
+    protected int allocate() {
+        if (numFree == 0) {
+            addChunk();
+        }
+        return freeEntries[--numFree];
+    }
+
+    protected void addChunk() {
+        int first = chunks.size() * chunkFrames;
+        chunks.add(new BytePointer((long)chunkFrames * frameSize));
+
+        int numEntries = first + chunkFrames;
+        refCounts = Arrays.copyOf(refCounts, numEntries);
+        hashes = Arrays.copyOf(hashes, numEntries);
+        freeEntries = Arrays.copyOf(freeEntries, numEntries);
+
+        // the lowest entries are used first
+        for (int entry = numEntries - 1; entry >= first; entry--) {
+            freeEntries[numFree++] = entry;
+        }
+    }
+
+    /** Drops a reference to an entry, freeing it if it was the last */
+    protected void release(int entry) {
+        if (--refCounts[entry] == 0) {
+            freeEntries[numFree++] = entry;
+            Integer indexed = entriesByHash.get(hashes[entry]);
+            if (indexed != null && indexed == entry) {
+                entriesByHash.remove(hashes[entry]);
+            }
+        }
+    }
+
+    /** The entry of a frame, or -1 if it is not held */
+    protected int frameEntry(long frame) {
+        if (frame < 0 || frame < numFrames - frameEntries.length) {
+            return -1;
+        }
+        return frameEntries[(int)(frame % frameEntries.length)];
+    }
+
+    /**
+     * The entries of the frames a thread is reading, which it holds references to, and its own pointers to the
+     * chunks of the pool.
+     */
+    protected class FrameReader {
+
+        protected BytePointer[] views = new BytePointer[0];
+
+        /** The entries of the frames of the sample being read */
+        protected final int[] entries = new int[maxHistoryLength + 1];
+        protected int numFrames;
+
+        /** The entries referenced by the samples read since the last release */
+        protected int[] held = new int[0];
+        protected int numHeld;
+        protected int heldGeneration;
+
+        /** Looks up and references the frames from first to last. Called under the memory's lock. */
+        protected void hold(long first, long last) {
+            if (heldGeneration != generation) {
+                numHeld = 0;
+                heldGeneration = generation;
+            }
+            if (views.length < chunks.size()) {
+                int numViews = views.length;
+                views = Arrays.copyOf(views, chunks.size());
+                for (int c = numViews; c < views.length; c++) {
+                    views[c] = new BytePointer(chunks.get(c));
+                }
+            }
+
+            numFrames = (int)(last - first + 1);
+            if (held.length < numHeld + numFrames) {
+                held = Arrays.copyOf(held, Math.max(2 * held.length, numHeld + numFrames));
+            }
+            for (int t = 0; t < numFrames; t++) {
+                int entry = frameEntry(first + t);
+                entries[t] = entry;
+                if (entry >= 0) {
+                    refCounts[entry]++;
+                    held[numHeld++] = entry;
+                }
+            }
+        }
+
+        /** Drops the references taken since the last release. Called under the memory's lock. */
+        protected void release() {
+            if (heldGeneration == generation) {
+                for (int h = 0; h < numHeld; h++) {
+                    DedupFrameExperienceMemory.this.release(held[h]);
+                }
+            }
+            numHeld = 0;
+        }
+
+        /** Converts the t-th frame read into the frame of input at pos, or zeros it if the frame is not held */
+        protected void convertFrame(int t, FloatPointer input, long pos) {
+            input.limit(pos + frameSize).position(pos);
+            int entry = entries[t];
+            if (entry < 0) {
+                input.zero();
+                return;
+            }
+            long offset = (long)(entry % chunkFrames) * frameSize;
+            preProcessor.convertDataToInput(views[entry / chunkFrames].limit(offset + frameSize).position(offset), input, 1);
+        }
+    }
+
+    @Override
+    public void getStateInput(FrameHistoryState state, FloatPointer input) {
+        FrameReader reader = readers.get();
+        synchronized (this) {
+            reader.hold(firstFrame(state.index, state.historyLength), state.index);
+        }
+        try {
+            convertFrames(reader, state.historyLength, input);
+        } finally {
+            synchronized (this) {
+                reader.release();
+            }
+        }
+    }
+
+    /** Converts the first historyLength frames the reader read into a state input at input.position() */
+    protected void convertFrames(FrameReader reader, int historyLength, FloatPointer input) {
+        long pos = input.position();
+        input.limit(pos + maxHistoryLength * frameSize);
+
+        // Fill unused frames with 0s
+        if (historyLength < maxHistoryLength) {
+            input.limit(pos + (maxHistoryLength - historyLength)*frameSize).zero();
+            input.limit(pos + maxHistoryLength * frameSize);
+        }
+
+        for (int t = 0; t < historyLength; t++) {
+            reader.convertFrame(t, input, pos + (maxHistoryLength - historyLength + t)*frameSize);
+        }
+        input.limit(pos + maxHistoryLength * frameSize).position(pos);
+    }
+
+    /** Fills the minibatch, then drops the references its samples took */
+    @Override
+    protected void fillMinibatch(Minibatch batch) {
+        FrameReader reader = readers.get();
+        try {
+            super.fillMinibatch(batch);
+        } finally {
+            synchronized (this) {
+                reader.release();
+            }
+        }
+    }
+
+    @Override
+    protected void fillSample(Minibatch batch, int k) {
+        FrameReader reader = readers.get();
+        int i = batch.indices[k];
+        synchronized (this) {
+            readColumns(batch, k, i);
+            long index = stateFrames[i];
+            reader.hold(firstFrame(index, historyLengths[i]), terminals[i] ? index : index + 1);
+        }
+
+        int inputSize = batch.inputSize;
+        FloatPointer stateInputs = batch.stateInputs;
+        FloatPointer primeStateInputs = batch.primeStateInputs;
+
+        long pos = (long)k * inputSize;
+        convertFrames(reader, batch.historyLengths[k], stateInputs.position(pos));
+        if (!batch.terminals[k]) {
+            primeStateInputs.position(pos).limit(pos + inputSize - frameSize)
+                    .put(stateInputs.position(pos + frameSize).limit(pos + inputSize));
+            reader.convertFrame(reader.numFrames - 1, primeStateInputs, pos + inputSize - frameSize);
+        }
+    }
+
+    /** The number of frames held */
+    public synchronized long framesHeld() {
+        return Math.min(numFrames, frameEntries.length);
+    }
+
+    /** The number of distinct frames held, which is the number of entries in use */
+    public synchronized int distinctFrames() {
+        return refCounts.length - numFree;
+    }
+
+    /** The number of frames added that were stored as references */
+    public synchronized long deduplicatedFrames() {
+        return deduplicatedFrames;
+    }
+
+    /** The bytes the pool takes per frame held */
+    public synchronized double bytesPerFrame() {
+        long frames = framesHeld();
+        return frames == 0 ? 0 : (double)refCounts.length * frameSize / frames;
+    }
+
+    @Override
+    protected int checkpointMagic() {
+        return MAGIC;
+    }
+
+    /** Checkpoints are saved to filePrefix.dreplay */
+    @Override
+    protected String checkpointExtension() {
+        return CHECKPOINT_EXTENSION;
+    }
+
+    /** Saves the entry of each frame slot, then each entry referenced by a slot with its frame */
+    @Override
+    protected void saveFrames(DataOutputStream out) throws IOException {
+        out.writeInt(frameEntries.length);
+        boolean[] saved = new boolean[refCounts.length];
+        for (int entry : frameEntries) {
+            out.writeInt(entry);
+            if (entry >= 0) {
+                saved[entry] = true;
+            }
+        }
+
+        out.writeInt(refCounts.length);
+        for (int entry = 0; entry < saved.length; entry++) {
+            if (saved[entry]) {
+                out.writeInt(entry);
+                entry(entry).get(entryBytes, 0, frameSize);
+                out.write(entryBytes);
+            }
+        }
+        out.writeInt(-1);
+    }
+
+    /** Loads the frames, counting the references of each entry again, since those of samples are not saved */
+    @Override
+    protected void loadFrames(DataInputStream in) throws IOException {
+        if (in.readInt() != frameEntries.length) {
+            throw new IOException("The frames were saved in a ring of a different size");
+        }
+        resetFrames();
+        for (int s = 0; s < frameEntries.length; s++) {
+            frameEntries[s] = in.readInt();
+        }
+
+        int numEntries = in.readInt();
+        while (refCounts.length < numEntries) {
+            addChunk();
+        }
+        Arrays.fill(refCounts, 0);
+        for (int entry = in.readInt(); entry >= 0; entry = in.readInt()) {
+            in.readFully(entryBytes);
+            entry(entry).put(entryBytes, 0, frameSize);
+            hashes[entry] = hash(entryBytes);
+            entriesByHash.put(hashes[entry], entry);
+        }
+        for (int entry : frameEntries) {
+            if (entry >= 0) {
+                refCounts[entry]++;
+            }
+        }
+
+        numFree = 0;
+        for (int entry = refCounts.length - 1; entry >= 0; entry--) {
+            if (refCounts[entry] == 0) {
+                freeEntries[numFree++] = entry;
+            }
+        }
+    }
+
+    /** Frees every entry, keeping the pool's chunks */
+    @Override
+    protected void resetFrames() {
+        Arrays.fill(frameEntries, -1);
+        Arrays.fill(refCounts, 0);
+        entriesByHash.clear();
+        numFree = 0;
+        for (int entry = refCounts.length - 1; entry >= 0; entry--) {
+            freeEntries[numFree++] = entry;
+        }
+        deduplicatedFrames = 0;
+    }
+}
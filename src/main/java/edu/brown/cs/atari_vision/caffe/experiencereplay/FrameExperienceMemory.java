@@ -3,16 +3,10 @@ package edu.brown.cs.atari_vision.caffe.experiencereplay;
 import burlap.debugtools.RandomFactory;
 import burlap.mdp.core.action.Action;
 import burlap.mdp.singleagent.environment.EnvironmentOutcome;
-import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
 import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
 import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
-import edu.brown.cs.atari_vision.caffe.vfa.NNStateConverter;
-import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.FloatPointer;
 
 import java.io.*;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -22,48 +16,22 @@ import static org.bytedeco.javacpp.opencv_core.*;
 /**
  * Created by maroderi on 6/20/16.
  */
-public class FrameExperienceMemory implements ExperienceMemory, NNStateConverter<FrameHistoryState>, ALEStateGenerator<FrameHistoryState>, Serializable {
+public class FrameExperienceMemory extends FrameHistoryMemory {
 
-    public transient BytePointer frameHistory;
-    public transient PreProcessor preProcessor;
-    public transient ActionSet actionSet;
+    /** The UID of the class before its frame history moved to FrameHistoryMemory, see {@link #readObject} */
+    private static final long serialVersionUID = 9010923077963095710L;
 
-    public long currentFrameIndex;
     public int next = 0;
     public FrameExperience[] experiences;
     public int size = 0;
 
-    public boolean alwaysIncludeMostRecent;
-
-    int maxHistoryLength; // the history size
-
     public FrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet) {
         this(size, maxHistoryLength, preProcessor, actionSet, false);
     }
 
     public FrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent) {
-        if(size < 1){
-            throw new RuntimeException("FixedSizeMemory requires memory size > 0; was request size of " + size);
-        }
-        this.alwaysIncludeMostRecent = alwaysIncludeMostRecent;
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent);
         this.experiences = new FrameExperience[size];
-
-        this.currentFrameIndex = 0;
-        this.maxHistoryLength = maxHistoryLength;
-
-        this.preProcessor = preProcessor;
-        this.actionSet = actionSet;
-
-        long outputSize = preProcessor.outputSize();
-
-        // Create the frame history data size to be totalHistorySize + a padding on both sides of n - 1
-        long paddingSize = (this.maxHistoryLength - 1) * outputSize;
-        frameHistory = (new BytePointer(size * outputSize + 2 * paddingSize)).zero();
-    }
-
-    @Override
-    public FrameHistoryState initialState(Mat screen) {
-        return addFrame(screen, new FrameHistoryState(currentFrameIndex, 0));
     }
 
     @Override
@@ -81,132 +49,18 @@ public class FrameExperienceMemory implements ExperienceMemory, NNStateConverter
         return newState;
     }
 
-    public FrameHistoryState addFrame(Mat screen, FrameHistoryState prevState) {
-        if (prevState.index != currentFrameIndex) {
-            throw new IllegalStateException("You can only update the most recent state");
-        }
-
-        long outputSize = preProcessor.outputSize();
-        long frameHistoryDataSize = frameHistory.capacity();
-        long paddingSize = (maxHistoryLength - 1) * outputSize;
-
-        // Find new index
-        long newIndex = prevState.index + outputSize;
-        if (newIndex >= frameHistoryDataSize) {
-            // Copy the buffer to the start of the history
-            BytePointer frameHistoryCopy = new BytePointer(frameHistory);
-            frameHistory.position(0).limit(paddingSize).put(frameHistoryCopy.position(frameHistoryDataSize - paddingSize));
-            frameHistory.limit(frameHistory.capacity());
-
-            newIndex = paddingSize;
-        }
-
-        // Increment length if smaller than n
-        int newHistoryLength = prevState.historyLength >= maxHistoryLength ?
-                maxHistoryLength : prevState.historyLength + 1;
-
-        // Create new state
-        FrameHistoryState newState = new FrameHistoryState(newIndex, newHistoryLength);
-
-        // Process the new screen
-        BytePointer newData = preProcessor.convertScreenToData(screen);
-
-        // Place data in history
-        frameHistory.position(newIndex).put(newData.limit(outputSize));
-
-        // Update current frame index
-        currentFrameIndex = newIndex;
-
-        return newState;
-    }
-
-    public FrameHistoryState addData(BytePointer newData, FrameHistoryState prevState) {
-        if (prevState.index != currentFrameIndex) {
-            throw new IllegalStateException("You can only update the most recent state");
-        }
-
-        long outputSize = preProcessor.outputSize();
-        long frameHistoryDataSize = frameHistory.capacity();
-        long paddingSize = (maxHistoryLength - 1) * outputSize;
-
-        // Find new index
-        long newIndex = prevState.index + outputSize;
-        if (newIndex >= frameHistoryDataSize) {
-            // Copy the buffer to the start of the history
-            BytePointer frameHistoryCopy = new BytePointer(frameHistory);
-            frameHistory.position(0).limit(paddingSize).put(frameHistoryCopy.position(frameHistoryDataSize - paddingSize));
-            frameHistory.limit(frameHistory.capacity());
-
-            newIndex = paddingSize;
-        }
-
-        // Increment length if smaller than n
-        int newHistoryLength = prevState.historyLength >= maxHistoryLength ?
-                maxHistoryLength : prevState.historyLength + 1;
-
-        // Create new state
-        FrameHistoryState newState = new FrameHistoryState(newIndex, newHistoryLength);
-
-        // Place data in history
-        frameHistory.position(newIndex).put(newData.limit(outputSize));
-
-        // Update current frame index
-        currentFrameIndex = newIndex;
-
-        return newState;
-    }
-
-    @Override
-    public void getStateInput(FrameHistoryState state, FloatPointer input) {
-        long frameSize = preProcessor.outputSize();
-        long index = state.index;
-        int historyLength = state.historyLength;
-
-        long pos = input.position();
-        input.limit(pos + maxHistoryLength * frameSize);
-
-        // Fill unused frames with 0s
-        if (historyLength < maxHistoryLength) {
-            if (historyLength > 0) {
-                input.limit(pos + (maxHistoryLength - historyLength)*frameSize).zero();
-                input.limit(pos + maxHistoryLength * frameSize);
-            } else {
-                input.zero();
-                return;
-            }
-        }
-
-        // Convert compressed frame data to CNN input
-        preProcessor.convertDataToInput(
-                frameHistory.position(index - (historyLength - 1)*frameSize),
-                input.position(pos + (maxHistoryLength - historyLength)*frameSize),
-                historyLength);
-        input.position(pos);
-    }
-
     @Override
     public void saveMemoryState(String filePrefix) {
 
         String frameHistoryFilename = filePrefix + ".framehist";
         String frameExperienceFilename = filePrefix + ".ser";
 
-        try (ObjectOutputStream objOut = new ObjectOutputStream(new FileOutputStream(frameExperienceFilename));
-             FileOutputStream historyOut = new FileOutputStream(frameHistoryFilename)) {
+        try (ObjectOutputStream objOut = new ObjectOutputStream(new FileOutputStream(frameExperienceFilename))) {
 
             objOut.writeObject(this);
 
             // write frame history
-            long pos = 0;
-            byte[] buffer = new byte[10000000];
-            this.frameHistory.get(buffer);
-            int numRead;
-            while (pos < frameHistory.limit()) {
-                numRead = (int)Math.min(buffer.length, frameHistory.limit() - pos);
-                frameHistory.position(pos).get(buffer);
-                pos += numRead;
-
-                historyOut.write(buffer, 0, numRead);
-            }
+            saveFrameHistory(frameHistoryFilename);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -218,8 +72,7 @@ public class FrameExperienceMemory implements ExperienceMemory, NNStateConverter
         String frameHistoryFilename = filePrefix + ".framehist";
         String frameExperienceFilename = filePrefix + ".ser";
 
-        try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(frameExperienceFilename));
-             FileInputStream historyIn = new FileInputStream(frameHistoryFilename)) {
+        try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(frameExperienceFilename))) {
 
             // load object
             FrameExperienceMemory experienceMemory = (FrameExperienceMemory) objIn.readObject();
@@ -230,13 +83,7 @@ public class FrameExperienceMemory implements ExperienceMemory, NNStateConverter
 
 
             // load frame history
-            long pos = 0;
-            byte[] buffer = new byte[10000000];
-            int numRead;
-            while ((numRead = historyIn.read(buffer)) != -1) {
-                this.frameHistory.position(pos).put(buffer, 0, numRead);
-                pos += numRead;
-            }
+            loadFrameHistory(frameHistoryFilename);
 
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -247,6 +94,23 @@ public class FrameExperienceMemory implements ExperienceMemory, NNStateConverter
         }
     }
 
+    /**
+     * Reads memories saved before the frame history fields moved to FrameHistoryMemory too, in which they were
+     * fields of this class. Such a memory has no superclass data, so they are copied over from this class's.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.next = fields.get("next", 0);
+        this.experiences = (FrameExperience[])fields.get("experiences", null);
+        this.size = fields.get("size", 0);
+
+        if (fields.getObjectStreamClass().getField("currentFrameIndex") != null) {
+            this.currentFrameIndex = fields.get("currentFrameIndex", 0L);
+            this.alwaysIncludeMostRecent = fields.get("alwaysIncludeMostRecent", false);
+            this.maxHistoryLength = fields.get("maxHistoryLength", 0);
+        }
+    }
+
     @Override
     public void addExperience(EnvironmentOutcome eo) {
         // Do nothing since we add the experience earlier
@@ -309,8 +173,8 @@ public class FrameExperienceMemory implements ExperienceMemory, NNStateConverter
 
     @Override
     public void resetMemory() {
+        super.resetMemory();
         this.size = 0;
         this.next = 0;
-        this.currentFrameIndex = 0;
     }
 }
@@ -0,0 +1,401 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.DirectPreProcessor;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import edu.brown.cs.atari_vision.caffe.vfa.NNStateConverter;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * The preprocessed frame history shared by the frame based experience memories. Frames are kept in a
+ * ring that starts with a padding of maxHistoryLength - 1 frames, so that every state is a contiguous
+ * run of frames ending at its index. When the ring wraps, the last frames are copied into the front padding.
+ *
+ * The history can also be kept in a memory-mapped file, leaving residency to the OS page cache. Java can only
+ * map 2GB at a time, so the ring is then split into segments that each start with their own padding, and moving
+ * from one segment to the next is handled like a wrap. A state's index is its offset in the concatenated segments.
+ *
+ * Frames are only ever added by one thread, but once {@link #enableConcurrentReads()} is called, other threads can
+ * read the history too: each block of the history has a write epoch that is odd while the block is being written,
+ * so a reader can tell if the frames it read changed underneath it.
+ */
+public abstract class FrameHistoryMemory implements ExperienceMemory, NNStateConverter<FrameHistoryState>, ALEStateGenerator<FrameHistoryState>, Serializable {
+
+    private static final long serialVersionUID = -6260331225894951348L;
+
+    /** Largest segment that can be memory-mapped */
+    public static final long MAX_MAPPED_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /** The frame history, in one segment unless memory-mapped */
+    protected transient BytePointer[] frameSegments;
+    protected transient MappedByteBuffer[] mappedSegments;
+
+    /** True if the frame history was mapped from a file of the right size, rather than created */
+    protected transient boolean frameHistoryReopened;
+
+    /** The size in bytes of each segment, including its padding */
+    protected long segmentSize;
+
+    /** The blocks of the frame history written to since the last checkpoint, or null if that is not known */
+    protected transient BitSet dirtyBlocks;
+    protected transient long dirtyBlockSize;
+
+    /** Told about writes to the frame history before they happen, while a checkpoint is being written */
+    protected transient volatile WriteObserver writeObserver;
+
+    public interface WriteObserver {
+        void beforeWrite(long index, long length);
+    }
+
+    /** The write epochs of the blocks of the frame history, if it is read concurrently */
+    protected transient AtomicIntegerArray writeEpochs;
+    protected transient long epochBlockSize;
+
+    public transient PreProcessor preProcessor;
+    public transient ActionSet actionSet;
+
+    public long currentFrameIndex;
+
+    /** The stream this history is, which its states are tagged with */
+    protected int stream;
+
+    public boolean alwaysIncludeMostRecent;
+
+    int maxHistoryLength; // the history size
+
+    protected FrameHistoryMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent) {
+        if(size < 1){
+            throw new RuntimeException("FixedSizeMemory requires memory size > 0; was request size of " + size);
+        }
+        this.alwaysIncludeMostRecent = alwaysIncludeMostRecent;
+
+        this.currentFrameIndex = 0;
+        this.maxHistoryLength = maxHistoryLength;
+
+        this.preProcessor = preProcessor;
+        this.actionSet = actionSet;
+
+        int numSegments = initSegments(size, Long.MAX_VALUE);
+        frameSegments = new BytePointer[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            frameSegments[s] = (new BytePointer(segmentSize)).zero();
+        }
+    }
+
+    /**
+     * Keeps the frame history in a memory-mapped file, in segments of at most maxSegmentSize bytes. If the file
+     * already has the right size, its frames are kept, so that a restarted trainer can pick up where it stopped.
+     */
+    protected FrameHistoryMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent,
+                                 File frameHistoryFile, long maxSegmentSize) throws IOException {
+        if(size < 1){
+            throw new RuntimeException("FixedSizeMemory requires memory size > 0; was request size of " + size);
+        }
+        if (maxSegmentSize > MAX_MAPPED_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segments can be at most " + MAX_MAPPED_SEGMENT_SIZE + " bytes; was " + maxSegmentSize);
+        }
+        this.alwaysIncludeMostRecent = alwaysIncludeMostRecent;
+
+        this.currentFrameIndex = 0;
+        this.maxHistoryLength = maxHistoryLength;
+
+        this.preProcessor = preProcessor;
+        this.actionSet = actionSet;
+
+        int numSegments = initSegments(size, maxSegmentSize);
+        frameSegments = new BytePointer[numSegments];
+        mappedSegments = new MappedByteBuffer[numSegments];
+
+        try (RandomAccessFile file = new RandomAccessFile(frameHistoryFile, "rw")) {
+            long length = numSegments * segmentSize;
+            frameHistoryReopened = file.length() == length;
+            if (!frameHistoryReopened) {
+                // start over with a zeroed (sparse) file
+                file.setLength(0);
+                file.setLength(length);
+            }
+
+            // the mappings stay valid after the channel is closed
+            FileChannel channel = file.getChannel();
+            for (int s = 0; s < numSegments; s++) {
+                mappedSegments[s] = channel.map(FileChannel.MapMode.READ_WRITE, s * segmentSize, segmentSize);
+                frameSegments[s] = new BytePointer(mappedSegments[s]);
+            }
+        }
+    }
+
+    /** Sets the segment size for a history of size frames plus padding, and returns the number of segments */
+    private int initSegments(int size, long maxSegmentSize) {
+        long outputSize = preProcessor.outputSize();
+
+        // The frame history holds totalHistorySize + n - 1 frames, after a padding of n - 1
+        long paddingSize = (maxHistoryLength - 1) * outputSize;
+        long numFrames = size + maxHistoryLength - 1;
+
+        long framesPerSegment = Math.min(numFrames, (maxSegmentSize - paddingSize) / outputSize);
+        if (framesPerSegment < maxHistoryLength) {
+            throw new IllegalArgumentException("Segments of " + maxSegmentSize + " bytes cannot hold a history of " + maxHistoryLength + " frames");
+        }
+
+        segmentSize = paddingSize + framesPerSegment * outputSize;
+        return (int)((numFrames + framesPerSegment - 1) / framesPerSegment);
+    }
+
+    /** The frame history, positioned at the frame with the given index */
+    protected BytePointer frameAt(long index) {
+        return frameAt(index, frameSegments);
+    }
+
+    protected BytePointer frameAt(long index, BytePointer[] segments) {
+        return segments[(int)(index / segmentSize)].position(index % segmentSize);
+    }
+
+    /** The size of the frame history, over all segments */
+    public long frameHistorySize() {
+        return frameSegments.length * segmentSize;
+    }
+
+    /** Starts tracking the blocks of blockSize bytes written to, as needed for incremental checkpoints */
+    protected void trackDirtyBlocks(long blockSize) {
+        dirtyBlockSize = blockSize;
+        dirtyBlocks = new BitSet((int)((frameHistorySize() + blockSize - 1) / blockSize));
+    }
+
+    /** Called before length bytes of the frame history are written at index */
+    protected void beforeWrite(long index, long length) {
+        if (length <= 0) {
+            return;
+        }
+        if (dirtyBlocks != null) {
+            dirtyBlocks.set((int)(index / dirtyBlockSize), (int)((index + length - 1) / dirtyBlockSize) + 1);
+        }
+        WriteObserver observer = writeObserver;
+        if (observer != null) {
+            observer.beforeWrite(index, length);
+        }
+        advanceEpochs(index, length);
+    }
+
+    /** Called after length bytes of the frame history were written at index */
+    protected void afterWrite(long index, long length) {
+        if (length > 0) {
+            advanceEpochs(index, length);
+        }
+    }
+
+    private void advanceEpochs(long index, long length) {
+        AtomicIntegerArray epochs = writeEpochs;
+        if (epochs != null) {
+            for (int b = (int)(index / epochBlockSize); b <= (int)((index + length - 1) / epochBlockSize); b++) {
+                epochs.incrementAndGet(b);
+            }
+        }
+    }
+
+    /**
+     * Lets other threads read the frame history while frames are added, using {@link #readEpochs} to check that
+     * what they read was not being written, and their own pointers from {@link #readerSegments()}.
+     */
+    public synchronized void enableConcurrentReads() {
+        if (writeEpochs == null) {
+            // a state's frames span at most two blocks
+            epochBlockSize = maxHistoryLength * (long)preProcessor.outputSize();
+            writeEpochs = new AtomicIntegerArray((int)((frameHistorySize() + epochBlockSize - 1) / epochBlockSize));
+        }
+    }
+
+    /**
+     * The sum of the write epochs of the blocks from start to end, or -1 if one of them is being written. Epochs only
+     * grow, so the range was not written to between two reads with the same sum.
+     */
+    protected long readEpochs(long start, long end) {
+        long sum = 0;
+        for (int b = (int)(start / epochBlockSize); b <= (int)((end - 1) / epochBlockSize); b++) {
+            int epoch = writeEpochs.get(b);
+            if ((epoch & 1) != 0) {
+                return -1;
+            }
+            sum += epoch;
+        }
+        return sum;
+    }
+
+    /** Pointers to the segments of the frame history for another thread, which can position them as it likes */
+    public BytePointer[] readerSegments() {
+        BytePointer[] segments = new BytePointer[frameSegments.length];
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = new BytePointer(frameSegments[s]);
+        }
+        return segments;
+    }
+
+    /** Writes the mapped frame history back to its file. Does nothing if it is kept in memory. */
+    public void flush() {
+        if (mappedSegments != null) {
+            for (MappedByteBuffer segment : mappedSegments) {
+                segment.force();
+            }
+        }
+    }
+
+    @Override
+    public FrameHistoryState initialState(Mat screen) {
+        return addFrame(screen, new FrameHistoryState(currentFrameIndex, 0, stream));
+    }
+
+    /** The index the frame following the one at index is stored at */
+    protected long nextFrameIndex(long index) {
+        long outputSize = preProcessor.outputSize();
+        long segment = index / segmentSize;
+        long newIndex = index + outputSize;
+        if (newIndex + outputSize > (segment + 1) * segmentSize) {
+            // continue after the padding of the next segment
+            newIndex = ((segment + 1) % frameSegments.length) * segmentSize + (maxHistoryLength - 1) * outputSize;
+        }
+        return newIndex;
+    }
+
+    /** The history length of the state following one with the given history length */
+    protected int nextHistoryLength(int historyLength) {
+        return historyLength >= maxHistoryLength ? maxHistoryLength : historyLength + 1;
+    }
+
+    /** Moves to the next frame index, wrapping the ring if needed, and returns the state for it */
+    protected FrameHistoryState advance(FrameHistoryState prevState) {
+        if (prevState.index != currentFrameIndex || prevState.stream != stream) {
+            throw new IllegalStateException("You can only update the most recent state");
+        }
+
+        long outputSize = preProcessor.outputSize();
+        long paddingSize = (maxHistoryLength - 1) * outputSize;
+
+        // Find new index
+        long newIndex = nextFrameIndex(prevState.index);
+        int segment = (int)(prevState.index / segmentSize);
+        int newSegment = (int)(newIndex / segmentSize);
+        if (newSegment != segment || newIndex < prevState.index) {
+            // Copy the end of the segment to the start of the next one
+            beforeWrite(newSegment * segmentSize, paddingSize);
+            BytePointer from = new BytePointer(frameSegments[segment]).position(segmentSize - paddingSize).limit(segmentSize);
+            frameSegments[newSegment].position(0).limit(paddingSize).put(from);
+            frameSegments[newSegment].limit(segmentSize);
+            afterWrite(newSegment * segmentSize, paddingSize);
+        }
+        beforeWrite(newIndex, outputSize);
+
+        // Update current frame index
+        currentFrameIndex = newIndex;
+
+        return new FrameHistoryState(newIndex, nextHistoryLength(prevState.historyLength), stream);
+    }
+
+    public FrameHistoryState addFrame(Mat screen, FrameHistoryState prevState) {
+        FrameHistoryState newState = advance(prevState);
+        long outputSize = preProcessor.outputSize();
+
+        // Process the new screen and place it in the history
+        if (preProcessor instanceof DirectPreProcessor) {
+            ((DirectPreProcessor)preProcessor).convertScreenToData(screen, frameAt(newState.index));
+        } else {
+            BytePointer newData = preProcessor.convertScreenToData(screen);
+            frameAt(newState.index).put(newData.limit(outputSize));
+        }
+        afterWrite(newState.index, outputSize);
+
+        return newState;
+    }
+
+    public FrameHistoryState addData(BytePointer newData, FrameHistoryState prevState) {
+        FrameHistoryState newState = advance(prevState);
+        long outputSize = preProcessor.outputSize();
+
+        // Place data in history
+        frameAt(newState.index).put(newData.limit(outputSize));
+        afterWrite(newState.index, outputSize);
+
+        return newState;
+    }
+
+    @Override
+    public void getStateInput(FrameHistoryState state, FloatPointer input) {
+        getStateInput(state.index, state.historyLength, input);
+    }
+
+    /** Writes the input of the state with the given index and history length at input.position() */
+    protected void getStateInput(long index, int historyLength, FloatPointer input) {
+        getStateInput(index, historyLength, input, frameSegments);
+    }
+
+    protected void getStateInput(long index, int historyLength, FloatPointer input, BytePointer[] segments) {
+        long frameSize = preProcessor.outputSize();
+
+        long pos = input.position();
+        input.limit(pos + maxHistoryLength * frameSize);
+
+        // Fill unused frames with 0s
+        if (historyLength < maxHistoryLength) {
+            if (historyLength > 0) {
+                input.limit(pos + (maxHistoryLength - historyLength)*frameSize).zero();
+                input.limit(pos + maxHistoryLength * frameSize);
+            } else {
+                input.zero();
+                return;
+            }
+        }
+
+        // Convert compressed frame data to CNN input
+        preProcessor.convertDataToInput(
+                frameAt(index - (historyLength - 1)*frameSize, segments),
+                input.position(pos + (maxHistoryLength - historyLength)*frameSize),
+                historyLength);
+        input.position(pos);
+    }
+
+    protected void saveFrameHistory(String frameHistoryFilename) throws IOException {
+        try (FileOutputStream historyOut = new FileOutputStream(frameHistoryFilename)) {
+            byte[] buffer = new byte[10000000];
+            for (BytePointer segment : frameSegments) {
+                long pos = 0;
+                int numRead;
+                while (pos < segmentSize) {
+                    numRead = (int)Math.min(buffer.length, segmentSize - pos);
+                    segment.position(pos).get(buffer, 0, numRead);
+                    pos += numRead;
+
+                    historyOut.write(buffer, 0, numRead);
+                }
+            }
+        }
+    }
+
+    protected void loadFrameHistory(String frameHistoryFilename) throws IOException {
+        dirtyBlocks = null;
+        try (FileInputStream historyIn = new FileInputStream(frameHistoryFilename)) {
+            byte[] buffer = new byte[10000000];
+            for (BytePointer segment : frameSegments) {
+                long pos = 0;
+                int numRead;
+                while (pos < segmentSize &&
+                        (numRead = historyIn.read(buffer, 0, (int)Math.min(buffer.length, segmentSize - pos))) != -1) {
+                    segment.position(pos).put(buffer, 0, numRead);
+                    pos += numRead;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void resetMemory() {
+        this.currentFrameIndex = 0;
+    }
+}
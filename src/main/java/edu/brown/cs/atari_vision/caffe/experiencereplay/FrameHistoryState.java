@@ -10,13 +10,24 @@ import java.util.List;
  */
 public class FrameHistoryState implements State, Serializable {
 
+    /** The UID of the class before it had a stream, so saved replay memories still load, with stream 0 */
+    private static final long serialVersionUID = -7461601813893167539L;
+
     public long index;
     public int historyLength;
 
+    /** The stream of the memory the state is in, for memories with several (see {@link MultiStreamFrameExperienceMemory}) */
+    public int stream;
+
 
     public FrameHistoryState(long index, int historyLength) {
+        this(index, historyLength, 0);
+    }
+
+    public FrameHistoryState(long index, int historyLength, int stream) {
         this.index = index;
         this.historyLength = historyLength;
+        this.stream = stream;
     }
 
     @Override
@@ -31,7 +42,7 @@ public class FrameHistoryState implements State, Serializable {
 
     @Override
     public State copy() {
-        FrameHistoryState newState = new FrameHistoryState(this.index, this.historyLength);
+        FrameHistoryState newState = new FrameHistoryState(this.index, this.historyLength, this.stream);
         return newState;
     }
 }
\ No newline at end of file
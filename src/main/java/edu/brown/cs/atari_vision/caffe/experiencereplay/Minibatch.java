@@ -0,0 +1,61 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import org.bytedeco.javacpp.FloatPointer;
+
+/**
+ * A minibatch of experiences as primitive arrays, with the network inputs of their states and resulting states
+ * laid out back to back, ready to be fed to the input layers. A minibatch is allocated once and refilled by
+ * {@link MinibatchMemory#sampleInto(Minibatch)} for every update.
+ *
+ * The resulting state inputs of terminal experiences are left as they were.
+ */
+public class Minibatch {
+
+    /** The number of experiences the minibatch holds when full */
+    public final int capacity;
+
+    /** The size of the input of one state */
+    public final int inputSize;
+
+    /** The number of experiences sampled into the minibatch */
+    public int size;
+
+    /** The index of each experience in its memory */
+    public final int[] indices;
+
+    /** The frame index and history length of each experience's state, as sampled */
+    public final long[] stateIndices;
+    public final int[] historyLengths;
+
+    public final int[] actions;
+    public final float[] rewards;
+    public final boolean[] terminals;
+
+    /** Importance sampling weights, only set if weighted is */
+    public final float[] weights;
+    public boolean weighted;
+
+    public final FloatPointer stateInputs;
+    public final FloatPointer primeStateInputs;
+
+    public Minibatch(int capacity, int inputSize) {
+        this(capacity, inputSize, (new FloatPointer(capacity * inputSize)).zero(), (new FloatPointer(capacity * inputSize)).zero());
+    }
+
+    /** Fills the given input buffers, which must hold capacity inputs */
+    public Minibatch(int capacity, int inputSize, FloatPointer stateInputs, FloatPointer primeStateInputs) {
+        this.capacity = capacity;
+        this.inputSize = inputSize;
+
+        this.indices = new int[capacity];
+        this.stateIndices = new long[capacity];
+        this.historyLengths = new int[capacity];
+        this.actions = new int[capacity];
+        this.rewards = new float[capacity];
+        this.terminals = new boolean[capacity];
+        this.weights = new float[capacity];
+
+        this.stateInputs = stateInputs;
+        this.primeStateInputs = primeStateInputs;
+    }
+}
@@ -0,0 +1,24 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import java.util.Random;
+
+/**
+ * An experience memory that can sample straight into a preallocated {@link Minibatch}.
+ */
+public interface MinibatchMemory extends ExperienceMemory {
+
+    /**
+     * Samples a full minibatch, the same way {@link #sampleExperiences(int)} would sample batch.capacity experiences.
+     * Returns false, leaving the minibatch empty, if the memory does not hold enough experiences yet.
+     */
+    boolean sampleInto(Minibatch batch);
+
+    /**
+     * Samples with the given random number generator. Once {@link #enableConcurrentReads()} has been called, this
+     * can run on another thread than the ones adding experiences, though only on one thread at a time.
+     */
+    boolean sampleInto(Minibatch batch, Random random);
+
+    /** Lets minibatches be sampled while experiences are added (see {@link MinibatchPrefetcher}) */
+    void enableConcurrentReads();
+}
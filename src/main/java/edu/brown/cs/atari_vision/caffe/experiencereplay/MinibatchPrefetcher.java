@@ -0,0 +1,180 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples minibatches from a {@link MinibatchMemory} on a background thread, so the next minibatch is
+ * converted while the learner acts and updates instead of before each update. depth minibatches are prepared ahead
+ * of the one the learner uses: with a depth of 1 there are two, one filled while the learner uses the other, and
+ * {@link #take()} swaps them.
+ *
+ * The memory keeps adding experiences while a minibatch is filled; a sample whose frames are overwritten while they
+ * are converted is read again (see {@link ColumnarFrameExperienceMemory#fillSample}). Minibatches are sampled
+ * from the memory as it was up to depth updates before they are used, so an experience may be overwritten between
+ * being prepared and being learned from, which only matters for priorities pushed back to its index.
+ *
+ * The prefetcher counts how often the learner had to wait for a minibatch, and for how long.
+ */
+public class MinibatchPrefetcher {
+
+    protected final MinibatchMemory memory;
+    protected final int depth;
+
+    /** Minibatches to fill, and filled minibatches in the order they were sampled */
+    protected final BlockingQueue<Minibatch> free;
+    protected final BlockingQueue<Minibatch> ready;
+
+    /** The minibatch the learner is using, returned to the pool by the next take */
+    protected Minibatch current;
+
+    protected final Random random;
+    protected Thread worker;
+    protected volatile boolean running;
+    protected volatile RuntimeException failure;
+
+    /** Minibatches taken, how many of them were waited for, and the total wait */
+    protected long taken;
+    protected long waited;
+    protected long waitNanos;
+
+    public MinibatchPrefetcher(MinibatchMemory memory, int batchSize, int inputSize, int depth) {
+        this(memory, batchSize, inputSize, depth, new Random());
+    }
+
+    public MinibatchPrefetcher(MinibatchMemory memory, int batchSize, int inputSize, int depth, Random random) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Prefetch depth must be at least 1; was " + depth);
+        }
+        this.memory = memory;
+        this.depth = depth;
+        this.random = random;
+
+        this.free = new ArrayBlockingQueue<>(depth + 1);
+        this.ready = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth + 1; i++) {
+            free.add(new Minibatch(batchSize, inputSize));
+        }
+    }
+
+    /** Starts prefetching, which take does if it has not been started */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        memory.enableConcurrentReads();
+
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "minibatch-prefetcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    protected void prefetch() {
+        try {
+            while (running) {
+                Minibatch batch = free.take();
+                while (!memory.sampleInto(batch, random)) {
+                    // not enough experiences yet
+                    Thread.sleep(1);
+                }
+                ready.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * The next minibatch, waiting for it if it is not ready yet. It is valid until the next call, which hands it
+     * back to be refilled. Returns null if interrupted.
+     */
+    public Minibatch take() {
+        start();
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+
+        Minibatch batch = ready.poll();
+        if (batch == null) {
+            long start = System.nanoTime();
+            try {
+                while ((batch = ready.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    if (failure != null) {
+                        throw new RuntimeException("Prefetching minibatches failed", failure);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                waited++;
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        taken++;
+        current = batch;
+        return batch;
+    }
+
+    /** Stops the worker thread, waiting for it to finish the minibatch it is filling */
+    public synchronized void stop() {
+        if (worker == null) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long minibatchesTaken() {
+        return taken;
+    }
+
+    /** The number of minibatches the learner had to wait for */
+    public long minibatchesWaitedFor() {
+        return waited;
+    }
+
+    /** The fraction of minibatches the learner had to wait for */
+    public double waitFraction() {
+        return taken == 0 ? 0 : (double)waited / taken;
+    }
+
+    /** The average wait over all minibatches taken, in milliseconds */
+    public double averageWaitMillis() {
+        return taken == 0 ? 0 : waitNanos / 1e6 / taken;
+    }
+
+    public void resetStats() {
+        taken = 0;
+        waited = 0;
+        waitNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Prefetched %d minibatches at depth %d, waited for %d (%.1f%%) -- %.3fms per minibatch",
+                taken, depth, waited, 100 * waitFraction(), averageWaitMillis());
+    }
+}
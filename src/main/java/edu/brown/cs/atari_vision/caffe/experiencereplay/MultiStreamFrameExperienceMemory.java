@@ -0,0 +1,223 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import edu.brown.cs.atari_vision.caffe.vfa.NNStateConverter;
+import org.bytedeco.javacpp.FloatPointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A replay memory fed by several actors at once, such as one per ALE process. Each actor adds its frames and
+ * experiences to its own stream, a {@link ColumnarFrameExperienceMemory} with its own frame history, current frame
+ * and padding, which it uses as the state generator of its environment. Streams are locked separately, so actors
+ * only contend with the sampler, and only for as long as it reads a sample's columns.
+ *
+ * Experiences are sampled uniformly over all the streams. A sample's index is its index in its stream plus the
+ * capacity of the streams before it, and the states it hands out are tagged with their stream, so that
+ * {@link #getStateInput} reads them from the right one.
+ *
+ * {@link #sampleInto} is safe while actors add experiences; the states of {@link #sampleExperiences(int)} are only
+ * handles, whose frames can be overwritten before they are read unless the actors are paused.
+ */
+public class MultiStreamFrameExperienceMemory implements MinibatchMemory, NNStateConverter<FrameHistoryState> {
+
+    public static final String STREAM_DIRECTORY = "stream";
+
+    protected final ColumnarFrameExperienceMemory[] streams;
+
+    /** The index of the first experience of each stream */
+    protected final int[] offsets;
+
+    public final ActionSet actionSet;
+
+    /** The stream sizes seen by the last sample */
+    protected final int[] sampleSizes;
+
+    /**
+     * Splits size experiences evenly over one stream per preprocessor. The preprocessors keep conversion buffers,
+     * so each stream needs its own.
+     */
+    public MultiStreamFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor[] preProcessors, ActionSet actionSet) {
+        this(new ColumnarFrameExperienceMemory[preProcessors.length], actionSet);
+        for (int s = 0; s < streams.length; s++) {
+            initStream(s, new ColumnarFrameExperienceMemory(streamCapacity(size, s), maxHistoryLength, preProcessors[s], actionSet));
+        }
+    }
+
+    /** Keeps each stream in memory-mapped files, in its own subdirectory of directory */
+    public MultiStreamFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor[] preProcessors, ActionSet actionSet,
+                                            File directory) throws IOException {
+        this(new ColumnarFrameExperienceMemory[preProcessors.length], actionSet);
+        for (int s = 0; s < streams.length; s++) {
+            initStream(s, new ColumnarFrameExperienceMemory(streamCapacity(size, s), maxHistoryLength, preProcessors[s], actionSet,
+                    false, new File(directory, STREAM_DIRECTORY + s)));
+        }
+    }
+
+    private MultiStreamFrameExperienceMemory(ColumnarFrameExperienceMemory[] streams, ActionSet actionSet) {
+        if (streams.length < 1) {
+            throw new IllegalArgumentException("A multi-stream memory needs at least one stream");
+        }
+        this.streams = streams;
+        this.offsets = new int[streams.length];
+        this.sampleSizes = new int[streams.length];
+        this.actionSet = actionSet;
+    }
+
+    /** An even share of size, with the remainder going to the first streams */
+    private int streamCapacity(int size, int s) {
+        if (size < streams.length) {
+            throw new IllegalArgumentException(String.format("Cannot split %d experiences over %d streams", size, streams.length));
+        }
+        return size / streams.length + (s < size % streams.length ? 1 : 0);
+    }
+
+    private void initStream(int s, ColumnarFrameExperienceMemory stream) {
+        stream.stream = s;
+        stream.enableConcurrentReads();
+        streams[s] = stream;
+        if (s + 1 < streams.length) {
+            offsets[s + 1] = offsets[s] + stream.capacity();
+        }
+    }
+
+    public int numStreams() {
+        return streams.length;
+    }
+
+    /** The stream of actor s, which is the state generator of its environment */
+    public ColumnarFrameExperienceMemory stream(int s) {
+        return streams[s];
+    }
+
+    public int capacity() {
+        return offsets[streams.length - 1] + streams[streams.length - 1].capacity();
+    }
+
+    /** The number of experiences over all streams */
+    public int size() {
+        return streamSizes(new int[streams.length]);
+    }
+
+    /** Reads the size of each stream into sizes, and returns the total */
+    protected int streamSizes(int[] sizes) {
+        int total = 0;
+        for (int s = 0; s < streams.length; s++) {
+            synchronized (streams[s]) {
+                sizes[s] = streams[s].size;
+            }
+            total += sizes[s];
+        }
+        return total;
+    }
+
+    @Override
+    public void getStateInput(FrameHistoryState state, FloatPointer input) {
+        streams[state.stream].getStateInput(state, input);
+    }
+
+    @Override
+    public void addExperience(EnvironmentOutcome eo) {
+        // Do nothing since the streams add their experiences as they generate states
+    }
+
+    /** Samples uniformly over all streams, returning every experience if there are fewer than n */
+    @Override
+    public List<EnvironmentOutcome> sampleExperiences(int n) {
+        int[] sizes = new int[streams.length];
+        int total = streamSizes(sizes);
+
+        List<EnvironmentOutcome> samples = new ArrayList<>(Math.min(n, total));
+        if (total < n) {
+            for (int s = 0; s < streams.length; s++) {
+                synchronized (streams[s]) {
+                    for (int i = 0; i < sizes[s]; i++) {
+                        samples.add(streams[s].experience(i));
+                    }
+                }
+            }
+            return samples;
+        }
+
+        Random r = RandomFactory.getMapped(0);
+        for (int k = 0; k < n; k++) {
+            int j = r.nextInt(total);
+            int s = 0;
+            while (j >= sizes[s]) {
+                j -= sizes[s++];
+            }
+            synchronized (streams[s]) {
+                samples.add(streams[s].experience(j));
+            }
+        }
+        return samples;
+    }
+
+    @Override
+    public boolean sampleInto(Minibatch batch) {
+        return sampleInto(batch, RandomFactory.getMapped(0));
+    }
+
+    @Override
+    public boolean sampleInto(Minibatch batch, Random r) {
+        int[] sizes = sampleSizes;
+        int total = streamSizes(sizes);
+        if (total == 0 || total < batch.capacity) {
+            batch.size = 0;
+            return false;
+        }
+
+        batch.size = batch.capacity;
+        batch.weighted = false;
+        for (int k = 0; k < batch.size; k++) {
+            int j = r.nextInt(total);
+            int s = 0;
+            while (j >= sizes[s]) {
+                j -= sizes[s++];
+            }
+            batch.indices[k] = offsets[s] + j;
+            streams[s].fillSample(batch, k, j);
+        }
+
+        batch.stateInputs.position(0).limit(batch.stateInputs.capacity());
+        batch.primeStateInputs.position(0).limit(batch.primeStateInputs.capacity());
+        return true;
+    }
+
+    /** Concurrent reads are always enabled, since the streams are meant to be added to while sampling */
+    @Override
+    public void enableConcurrentReads() {
+        for (ColumnarFrameExperienceMemory stream : streams) {
+            stream.enableConcurrentReads();
+        }
+    }
+
+    /** Saves the streams to filePrefix.stream0, filePrefix.stream1 and so on */
+    @Override
+    public void saveMemoryState(String filePrefix) {
+        for (int s = 0; s < streams.length; s++) {
+            streams[s].saveMemoryState(filePrefix + "." + STREAM_DIRECTORY + s);
+        }
+    }
+
+    @Override
+    public void loadMemoryState(String filePrefix) {
+        for (int s = 0; s < streams.length; s++) {
+            streams[s].loadMemoryState(filePrefix + "." + STREAM_DIRECTORY + s);
+        }
+    }
+
+    @Override
+    public void resetMemory() {
+        for (ColumnarFrameExperienceMemory stream : streams) {
+            stream.resetMemory();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.core.action.Action;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.DirectPreProcessor;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import edu.brown.cs.atari_vision.caffe.vfa.NNStateConverter;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * The experiences of a memory that numbers its frames in the order they are added, rather than keeping them in a
+ * contiguous ring like {@link FrameHistoryMemory}, so that subclasses are free in how they store them. A state's
+ * index is the number of its newest frame, so the state an experience resulted in always has the next frame.
+ *
+ * Experiences are kept as parallel columns, and sampled the same way {@link ColumnarFrameExperienceMemory} samples
+ * them. Subclasses store the frames, and read them into the inputs of states and minibatches. Frames and experiences
+ * are added under the memory's lock, which subclasses also read a sample's columns under, so that minibatches can be
+ * sampled on another thread than the one adding experiences.
+ */
+public abstract class NumberedFrameExperienceMemory implements MinibatchMemory, NNStateConverter<FrameHistoryState>, ALEStateGenerator<FrameHistoryState> {
+
+    static final int VERSION = 1;
+
+    public final PreProcessor preProcessor;
+    public final ActionSet actionSet;
+    public final int maxHistoryLength;
+    public final boolean alwaysIncludeMostRecent;
+
+    protected final int frameSize;
+
+    /** The number of frames added, which is the number of the next one */
+    protected long numFrames;
+
+    /** The newest frame, which is the only one a state can be continued from */
+    protected long currentFrame = -1;
+
+    /** Changed whenever the frames are replaced, which invalidates what readers kept of them */
+    protected volatile int generation;
+
+    public int next = 0;
+    public int size = 0;
+
+    /** The newest frame and history length of the state the action was taken from */
+    protected final long[] stateFrames;
+    protected final byte[] historyLengths;
+
+    /** The action id of the action that was taken */
+    protected final int[] actions;
+
+    protected final float[] rewards;
+    protected final boolean[] terminals;
+
+    /** The frame being added, for preprocessors that write into a given buffer */
+    protected final BytePointer frameData;
+
+    protected NumberedFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent) {
+        if (size < 1) {
+            throw new RuntimeException("FixedSizeMemory requires memory size > 0; was request size of " + size);
+        }
+        if (maxHistoryLength > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("History lengths are stored as bytes; was request length of " + maxHistoryLength);
+        }
+        this.maxHistoryLength = maxHistoryLength;
+        this.preProcessor = preProcessor;
+        this.actionSet = actionSet;
+        this.alwaysIncludeMostRecent = alwaysIncludeMostRecent;
+
+        this.frameSize = preProcessor.outputSize();
+        this.frameData = new BytePointer(frameSize);
+
+        this.stateFrames = new long[size];
+        this.historyLengths = new byte[size];
+        this.actions = new int[size];
+        this.rewards = new float[size];
+        this.terminals = new boolean[size];
+    }
+
+    public int capacity() {
+        return stateFrames.length;
+    }
+
+    @Override
+    public synchronized FrameHistoryState initialState(Mat screen) {
+        return addFrame(screen, new FrameHistoryState(currentFrame, 0));
+    }
+
+    @Override
+    public synchronized FrameHistoryState nextState(Mat screen, FrameHistoryState prevState, Action action, double reward, boolean terminated) {
+        FrameHistoryState newState = null;
+        if (!terminated) {
+            newState = addFrame(screen, prevState);
+        }
+
+        // Add experience
+        stateFrames[next] = prevState.index;
+        historyLengths[next] = (byte)prevState.historyLength;
+        actions[next] = actionSet.map(action.actionName());
+        rewards[next] = (float)reward;
+        terminals[next] = terminated;
+
+        next = (next+1) % capacity();
+        size = Math.min(size+1, capacity());
+
+        return newState;
+    }
+
+    /** Preprocesses the screen and stores it as the next frame */
+    protected FrameHistoryState addFrame(Mat screen, FrameHistoryState prevState) {
+        if (prevState.index != currentFrame) {
+            throw new IllegalStateException("You can only update the most recent state");
+        }
+
+        BytePointer data;
+        if (preProcessor instanceof DirectPreProcessor) {
+            ((DirectPreProcessor)preProcessor).convertScreenToData(screen, frameData.position(0));
+            data = frameData;
+        } else {
+            data = preProcessor.convertScreenToData(screen);
+        }
+        long frame = numFrames;
+        storeFrame(data, frame);
+
+        numFrames++;
+        currentFrame = frame;
+        return new FrameHistoryState(frame, nextHistoryLength(prevState.historyLength));
+    }
+
+    /** Stores the preprocessed frame at data.position() as frame number frame. Called under the memory's lock. */
+    protected abstract void storeFrame(BytePointer data, long frame);
+
+    /** The history length of the state following one with the given history length */
+    protected int nextHistoryLength(int historyLength) {
+        return historyLength >= maxHistoryLength ? maxHistoryLength : historyLength + 1;
+    }
+
+    /** The state the action of experience i was taken from */
+    public FrameHistoryState state(int i) {
+        return new FrameHistoryState(stateFrames[i], historyLengths[i]);
+    }
+
+    /** The state experience i resulted in, or null if it terminated */
+    public FrameHistoryState resultState(int i) {
+        if (terminals[i]) {
+            return null;
+        }
+        return new FrameHistoryState(stateFrames[i] + 1, nextHistoryLength(historyLengths[i]));
+    }
+
+    public EnvironmentOutcome experience(int i) {
+        return new EnvironmentOutcome(state(i), actionSet.getAction(actions[i]), resultState(i), rewards[i], terminals[i]);
+    }
+
+    @Override
+    public void addExperience(EnvironmentOutcome eo) {
+        // Do nothing since we add the experience earlier
+    }
+
+    /** Samples experiences the same way {@link FrameExperienceMemory#sampleExperiences(int)} does */
+    @Override
+    public synchronized List<EnvironmentOutcome> sampleExperiences(int n) {
+        List<EnvironmentOutcome> samples;
+
+        if(this.size == 0){
+            return new ArrayList<>();
+        }
+
+        if(this.alwaysIncludeMostRecent){
+            n--;
+        }
+
+        if(this.size < n){
+            samples = new ArrayList<>(this.size);
+            for(int i = 0; i < this.size; i++){
+                samples.add(experience(i));
+            }
+            return samples;
+        }
+        else{
+            samples = new ArrayList<>(Math.max(n, 1));
+            Random r = RandomFactory.getMapped(0);
+            for(int i = 0; i < n; i++) {
+                int sind = r.nextInt(this.size);
+                samples.add(experience(sind));
+            }
+        }
+        if(this.alwaysIncludeMostRecent){
+            samples.add(experience(next > 0 ? next - 1 : capacity() - 1));
+        }
+
+        return samples;
+    }
+
+    @Override
+    public boolean sampleInto(Minibatch batch) {
+        return sampleInto(batch, RandomFactory.getMapped(0));
+    }
+
+    /** Samples like {@link ColumnarFrameExperienceMemory#sampleInto(Minibatch, Random)} */
+    @Override
+    public boolean sampleInto(Minibatch batch, Random r) {
+        synchronized (this) {
+            int numDrawn = this.alwaysIncludeMostRecent ? batch.capacity - 1 : batch.capacity;
+            if (this.size == 0 || this.size < numDrawn) {
+                batch.size = 0;
+                return false;
+            }
+
+            for (int k = 0; k < numDrawn; k++) {
+                batch.indices[k] = r.nextInt(this.size);
+            }
+            batch.weighted = false;
+            batch.size = batch.capacity;
+            if (this.alwaysIncludeMostRecent) {
+                batch.indices[numDrawn] = next > 0 ? next - 1 : capacity() - 1;
+            }
+        }
+
+        fillMinibatch(batch);
+        return true;
+    }
+
+    /** Fills the minibatch with the experiences at its indices */
+    protected void fillMinibatch(Minibatch batch) {
+        for (int k = 0; k < batch.size; k++) {
+            fillSample(batch, k);
+        }
+
+        batch.stateInputs.position(0).limit(batch.stateInputs.capacity());
+        batch.primeStateInputs.position(0).limit(batch.primeStateInputs.capacity());
+    }
+
+    /** Fills the k-th sample of the minibatch with the experience at its index, leaving its inputs positioned */
+    protected abstract void fillSample(Minibatch batch, int k);
+
+    /** Reads the columns of experience i into the k-th sample. Called under the memory's lock. */
+    protected void readColumns(Minibatch batch, int k, int i) {
+        batch.stateIndices[k] = stateFrames[i];
+        batch.historyLengths[k] = historyLengths[i];
+        batch.actions[k] = actions[i];
+        batch.rewards[k] = rewards[i];
+        batch.terminals[k] = terminals[i];
+    }
+
+    /** The first frame of a state, counting one frame for a state with no history */
+    protected static long firstFrame(long index, int historyLength) {
+        return index - Math.max(historyLength, 1) + 1;
+    }
+
+    /** Frames are stored so that minibatches can always be sampled while experiences are added */
+    @Override
+    public void enableConcurrentReads() {
+    }
+
+    /** The magic number and file extension of this memory's checkpoints */
+    protected abstract int checkpointMagic();
+    protected abstract String checkpointExtension();
+
+    /** Saves the memory to filePrefix followed by the checkpoint extension */
+    @Override
+    public synchronized void saveMemoryState(String filePrefix) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePrefix + checkpointExtension())))) {
+            out.writeInt(checkpointMagic());
+            out.writeInt(VERSION);
+            out.writeInt(capacity());
+            out.writeInt(maxHistoryLength);
+            out.writeInt(frameSize);
+
+            out.writeInt(next);
+            out.writeInt(size);
+            out.writeLong(numFrames);
+            out.writeLong(currentFrame);
+
+            for (int i = 0; i < capacity(); i++) {
+                out.writeLong(stateFrames[i]);
+                out.writeByte(historyLengths[i]);
+                out.writeInt(actions[i]);
+                out.writeFloat(rewards[i]);
+                out.writeBoolean(terminals[i]);
+            }
+
+            saveFrames(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void loadMemoryState(String filePrefix) {
+        String filename = filePrefix + checkpointExtension();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            if (in.readInt() != checkpointMagic() || in.readInt() != VERSION
+                    || in.readInt() != capacity()
+                    || in.readInt() != maxHistoryLength
+                    || in.readInt() != frameSize) {
+                throw new IOException(filename + " is not a memory of this kind and size");
+            }
+
+            next = in.readInt();
+            size = in.readInt();
+            numFrames = in.readLong();
+            currentFrame = in.readLong();
+
+            for (int i = 0; i < capacity(); i++) {
+                stateFrames[i] = in.readLong();
+                historyLengths[i] = in.readByte();
+                actions[i] = in.readInt();
+                rewards[i] = in.readFloat();
+                terminals[i] = in.readBoolean();
+            }
+
+            loadFrames(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            generation++;
+        }
+    }
+
+    /** Writes the frames held after the experiences */
+    protected abstract void saveFrames(DataOutputStream out) throws IOException;
+
+    /** Reads frames written by saveFrames, throwing an IOException if they were stored differently */
+    protected abstract void loadFrames(DataInputStream in) throws IOException;
+
+    @Override
+    public synchronized void resetMemory() {
+        this.size = 0;
+        this.next = 0;
+        this.numFrames = 0;
+        this.currentFrame = -1;
+        resetFrames();
+        generation++;
+    }
+
+    /** Drops all frames. Called under the memory's lock. */
+    protected abstract void resetFrames();
+}
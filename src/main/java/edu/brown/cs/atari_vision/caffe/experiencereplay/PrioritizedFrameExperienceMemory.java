@@ -0,0 +1,231 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.core.action.Action;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * A {@link ColumnarFrameExperienceMemory} that samples experiences in proportion to their priority, as in
+ * proportional prioritized experience replay (Schaul et al., 2016): an experience with TD error d has priority
+ * (|d| + epsilon)^alpha, and new experiences get the highest priority seen so far so they are replayed at least once.
+ *
+ * Batches are stratified: the total priority is split into n equal ranges, and one experience is drawn from each.
+ * After sampling, {@link #sampledIndices()} and {@link #importanceWeights()} hold the index and the importance
+ * sampling weight (N * P(i))^-beta of each sample, normalized by the largest in the batch. The TD errors of the
+ * update are then pushed back with {@link #updatePriorities(float[], int)}. When sampling into a {@link Minibatch},
+ * the minibatch holds the indices and weights instead.
+ *
+ * Priorities are read and written under the memory's lock, so minibatches can be sampled on another thread.
+ *
+ * Priorities are not checkpointed; experiences that are loaded or reopened start out at the highest priority.
+ */
+public class PrioritizedFrameExperienceMemory extends ColumnarFrameExperienceMemory {
+
+    /** How much the priorities count: 0 is uniform sampling */
+    public double alpha = 0.6;
+
+    /** Added to TD errors so no experience gets a priority of 0 */
+    public double epsilon = 1e-6;
+
+    /** The importance sampling exponent, annealed from betaStart to 1 over betaAnnealDuration experiences */
+    public double betaStart = 0.4;
+    public int betaAnnealDuration = 0;
+
+    protected transient SumTree priorities;
+    protected double maxPriority = 1;
+    protected long experiencesAdded;
+
+    /** The experiences of the last sample, and their importance sampling weights */
+    protected transient int[] sampledIndices = new int[0];
+    protected transient float[] importanceWeights = new float[0];
+    protected transient int numSampled;
+
+    public PrioritizedFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet) {
+        this(size, maxHistoryLength, preProcessor, actionSet, false);
+    }
+
+    public PrioritizedFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent) {
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent);
+        initPriorities();
+    }
+
+    public PrioritizedFrameExperienceMemory(int size, int maxHistoryLength, PreProcessor preProcessor, ActionSet actionSet, boolean alwaysIncludeMostRecent,
+                                            File directory) throws IOException {
+        super(size, maxHistoryLength, preProcessor, actionSet, alwaysIncludeMostRecent, directory);
+        initPriorities();
+    }
+
+    /** Anneals beta from betaStart to 1 over the given number of experiences */
+    public void annealBeta(double betaStart, int betaAnnealDuration) {
+        this.betaStart = betaStart;
+        this.betaAnnealDuration = betaAnnealDuration;
+    }
+
+    public double beta() {
+        if (experiencesAdded >= betaAnnealDuration) {
+            return 1;
+        }
+        return betaStart + (1 - betaStart) * experiencesAdded / betaAnnealDuration;
+    }
+
+    /** Gives the experiences already in the memory the highest priority */
+    protected void initPriorities() {
+        priorities = new SumTree(capacity());
+        double priority = Math.pow(maxPriority, alpha);
+        for (int i = 0; i < size; i++) {
+            priorities.set(i, priority);
+        }
+        priorities.rebuild();
+    }
+
+    @Override
+    public synchronized FrameHistoryState nextState(Mat screen, FrameHistoryState prevState, Action action, double reward, boolean terminated) {
+        int index = next;
+        FrameHistoryState newState = super.nextState(screen, prevState, action, reward, terminated);
+
+        priorities.set(index, Math.pow(maxPriority, alpha));
+        experiencesAdded++;
+
+        return newState;
+    }
+
+    public synchronized double priority(int i) {
+        return priorities.get(i);
+    }
+
+    /** The indices of the experiences of the last sample, in order; only the first {@link #numSampled()} are valid */
+    public int[] sampledIndices() {
+        return sampledIndices;
+    }
+
+    /** The importance sampling weights of the last sample, in order; only the first {@link #numSampled()} are valid */
+    public float[] importanceWeights() {
+        return importanceWeights;
+    }
+
+    public int numSampled() {
+        return numSampled;
+    }
+
+    /** Sets the priorities of the first n experiences of the last sample from their TD errors */
+    public void updatePriorities(float[] tdErrors, int n) {
+        updatePriorities(sampledIndices, tdErrors, n);
+    }
+
+    public synchronized void updatePriorities(int[] indices, float[] tdErrors, int n) {
+        for (int k = 0; k < n; k++) {
+            double priority = Math.abs(tdErrors[k]) + epsilon;
+            if (priority > maxPriority) {
+                maxPriority = priority;
+            }
+            priorities.set(indices[k], Math.pow(priority, alpha));
+        }
+    }
+
+    @Override
+    public synchronized List<EnvironmentOutcome> sampleExperiences(int n) {
+        numSampled = 0;
+        if (this.size == 0) {
+            return new ArrayList<>();
+        }
+
+        int numDrawn = this.alwaysIncludeMostRecent ? n - 1 : n;
+        if (this.size < numDrawn) {
+            // like the uniform memories, everything is returned
+            ensureSampleCapacity(this.size);
+            for (int i = 0; i < this.size; i++) {
+                sampledIndices[numSampled++] = i;
+            }
+        } else {
+            ensureSampleCapacity(n);
+            drawStratified(sampledIndices, numDrawn, RandomFactory.getMapped(0));
+            numSampled = numDrawn;
+            if (this.alwaysIncludeMostRecent) {
+                sampledIndices[numSampled++] = next > 0 ? next - 1 : capacity() - 1;
+            }
+        }
+
+        computeImportanceWeights(sampledIndices, numSampled, importanceWeights);
+
+        List<EnvironmentOutcome> samples = new ArrayList<>(numSampled);
+        for (int k = 0; k < numSampled; k++) {
+            samples.add(experience(sampledIndices[k]));
+        }
+        return samples;
+    }
+
+    @Override
+    public boolean sampleInto(Minibatch batch, Random r) {
+        if (!super.sampleInto(batch, r)) {
+            return false;
+        }
+        synchronized (this) {
+            computeImportanceWeights(batch.indices, batch.size, batch.weights);
+        }
+        batch.weighted = true;
+        return true;
+    }
+
+    @Override
+    protected void selectIndices(Minibatch batch, int numDrawn, Random r) {
+        drawStratified(batch.indices, numDrawn, r);
+    }
+
+    /** Draws one experience from each of n equal ranges of the total priority */
+    protected void drawStratified(int[] indices, int n, Random r) {
+        double range = priorities.total() / n;
+        for (int k = 0; k < n; k++) {
+            int index = priorities.find((k + r.nextDouble()) * range);
+            indices[k] = Math.min(index, this.size - 1);
+        }
+    }
+
+    protected void ensureSampleCapacity(int n) {
+        if (sampledIndices.length < n) {
+            sampledIndices = new int[n];
+            importanceWeights = new float[n];
+        }
+    }
+
+    /** (N * P(i))^-beta, divided by the largest weight in the sample so the updates only get scaled down */
+    protected void computeImportanceWeights(int[] indices, int n, float[] weights) {
+        double total = priorities.total();
+        double beta = beta();
+        double maxWeight = 0;
+        for (int k = 0; k < n; k++) {
+            double probability = priorities.get(indices[k]) / total;
+            double weight = Math.pow(this.size * probability, -beta);
+            weights[k] = (float)weight;
+            maxWeight = Math.max(maxWeight, weight);
+        }
+        for (int k = 0; k < n; k++) {
+            weights[k] = (float)(weights[k] / maxWeight);
+        }
+    }
+
+    @Override
+    public void loadMemoryState(String filePrefix) {
+        super.loadMemoryState(filePrefix);
+        initPriorities();
+    }
+
+    @Override
+    public void resetMemory() {
+        super.resetMemory();
+        if (priorities != null) {
+            priorities.clear();
+        }
+        maxPriority = 1;
+        numSampled = 0;
+    }
+}
@@ -0,0 +1,461 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import org.bytedeco.javacpp.BytePointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Writes and reads the checkpoints of a {@link ColumnarFrameExperienceMemory}. A checkpoint is a single file:
+ *
+ *   a header, the memory's column buffer, a table of frame block checksums, and the frame history,
+ *   which starts on a page boundary.
+ *
+ * The columns and frames go through a FileChannel. Saving again to a file the memory was saved to or loaded
+ * from only rewrites the columns and the blocks of the frame history that were written to since. The header
+ * is marked complete only once everything else is on disk, so an interrupted save is detected when loading
+ * instead of giving a torn memory.
+ *
+ * A save starts with a {@link Cut}, taken on the thread that adds to the memory. The cut can then be written
+ * on another thread while the memory keeps changing: frame blocks that are about to be overwritten before
+ * the writer got to them are copied aside first.
+ *
+ * With checksums enabled, each column and each frame block gets a CRC32 that is checked when loading.
+ */
+public class ReplayCheckpoint {
+
+    static final int MAGIC = 0x41565243; // "AVRC"
+    static final int VERSION = 1;
+
+    static final int FLAG_COMPLETE = 1;
+    static final int FLAG_CHECKSUMS = 2;
+
+    static final int HEADER_SIZE = 128;
+    static final int COLUMN_CHECKSUMS_OFFSET = 80;
+    static final int NUM_COLUMNS = 5;
+    static final long PAGE_SIZE = 4096;
+
+    public static final long DEFAULT_BLOCK_SIZE = 1 << 22;
+
+    protected final ColumnarFrameExperienceMemory memory;
+    protected final long blockSize;
+    protected final int numBlocks;
+
+    protected boolean checksums;
+
+    /** The complete checkpoint files the memory was saved to or loaded from */
+    protected final Map<File, FileState> files = new HashMap<>();
+
+    protected volatile long lastBytesWritten;
+
+    protected final Random random = new Random();
+
+    /** What is known about a complete checkpoint file */
+    protected static class FileState {
+        long id;
+        boolean checksums;
+        int[] blockChecksums;
+
+        /** The frame blocks written to between the cut saved in the file and the latest cut */
+        BitSet dirtyBlocks = new BitSet();
+    }
+
+    public ReplayCheckpoint(ColumnarFrameExperienceMemory memory) {
+        this(memory, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ReplayCheckpoint(ColumnarFrameExperienceMemory memory, long blockSize) {
+        this.memory = memory;
+        this.blockSize = blockSize;
+        this.numBlocks = (int)((memory.frameHistorySize() + blockSize - 1) / blockSize);
+
+        // nothing is known to be on disk yet
+        memory.dirtyBlocks = null;
+    }
+
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /** The number of bytes the last save wrote */
+    public long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+
+    protected long columnsOffset() {
+        return HEADER_SIZE;
+    }
+
+    protected long checksumsOffset() {
+        return columnsOffset() + memory.columns.capacity();
+    }
+
+    protected long framesOffset() {
+        long end = checksumsOffset() + 4L * numBlocks;
+        return (end + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /** Saves the memory to the file, on the calling thread */
+    public void save(File file) throws IOException {
+        cut(file).write();
+    }
+
+    /**
+     * Takes a consistent cut of the memory, to be saved to the file by {@link Cut#write()}. Must be called on the
+     * thread that adds to the memory, and only once the previous cut has been written.
+     */
+    public synchronized Cut cut(File file) throws IOException {
+        if (memory.writeObserver != null) {
+            throw new IllegalStateException("The previous cut of the memory has not been written yet");
+        }
+
+        // blocks written to since the last cut are now also missing from every earlier checkpoint
+        if (memory.dirtyBlocks == null) {
+            files.clear();
+        } else {
+            for (FileState state : files.values()) {
+                state.dirtyBlocks.or(memory.dirtyBlocks);
+            }
+        }
+        memory.trackDirtyBlocks(blockSize);
+
+        // the file is not a valid checkpoint while it is being written
+        FileState previous = files.remove(file);
+        boolean incremental = previous != null && previous.checksums == checksums && isCheckpoint(file, previous.id);
+
+        Cut cut = new Cut(file, incremental);
+        if (incremental) {
+            cut.blocks.or(previous.dirtyBlocks);
+            System.arraycopy(previous.blockChecksums, 0, cut.state.blockChecksums, 0, numBlocks);
+        } else {
+            cut.blocks.set(0, numBlocks);
+        }
+        memory.writeObserver = cut;
+        return cut;
+    }
+
+    /**
+     * The memory as it was when the cut was taken: a copy of its columns and position, and the frame blocks to
+     * write, which are copied aside if the memory is about to overwrite them before they are written.
+     */
+    public class Cut implements FrameHistoryMemory.WriteObserver {
+        protected final File file;
+        protected final boolean incremental;
+        protected final long id = random.nextLong();
+        protected final FileState state = new FileState();
+
+        protected final ByteBuffer columns;
+        protected final int next, size;
+        protected final long currentFrameIndex;
+
+        /** Blocks to write, the ones taken from the memory or copied aside, and the copies */
+        protected final BitSet blocks = new BitSet(numBlocks);
+        protected final BitSet captured = new BitSet(numBlocks);
+        protected final Map<Integer, ByteBuffer> preserved = new HashMap<>();
+
+        protected long bytesWritten;
+
+        protected Cut(File file, boolean incremental) {
+            this.file = file;
+            this.incremental = incremental;
+
+            columns = ByteBuffer.allocate(memory.columns.capacity());
+            columns.put(columnBuffer());
+            columns.clear();
+            next = memory.next;
+            size = memory.size;
+            currentFrameIndex = memory.currentFrameIndex;
+
+            state.id = id;
+            state.checksums = checksums;
+            state.blockChecksums = new int[numBlocks];
+        }
+
+        @Override
+        public synchronized void beforeWrite(long index, long length) {
+            int last = (int)((index + length - 1) / blockSize);
+            for (int b = (int)(index / blockSize); b <= last; b++) {
+                if (blocks.get(b) && !captured.get(b)) {
+                    preserved.put(b, copyBlock(b, ByteBuffer.allocate((int)blockSize)));
+                    captured.set(b);
+                }
+            }
+        }
+
+        /** The block as of the cut. The memory must not change it while it is copied, hence the lock. */
+        protected synchronized ByteBuffer takeBlock(int b, ByteBuffer scratch) {
+            ByteBuffer block = preserved.remove(b);
+            if (block == null) {
+                block = copyBlock(b, scratch);
+                captured.set(b);
+            }
+            return block;
+        }
+
+        /** Writes the cut to its file. Can be called on any thread. */
+        public void write() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = raf.getChannel();
+
+                // an incomplete header until everything else is written
+                writeFully(channel, header(false), 0);
+                if (!incremental) {
+                    raf.setLength(framesOffset() + memory.frameHistorySize());
+                }
+                channel.force(false);
+
+                writeFully(channel, columns.duplicate(), columnsOffset());
+
+                ByteBuffer scratch = ByteBuffer.allocate((int)blockSize);
+                for (int b = blocks.nextSetBit(0); b >= 0; b = blocks.nextSetBit(b + 1)) {
+                    ByteBuffer block = takeBlock(b, scratch);
+                    if (checksums) {
+                        CRC32 crc = new CRC32();
+                        crc.update(block.array(), block.arrayOffset() + block.position(), block.remaining());
+                        state.blockChecksums[b] = (int)crc.getValue();
+                    }
+                    writeFully(channel, block, framesOffset() + b * blockSize);
+                }
+                if (checksums) {
+                    ByteBuffer table = ByteBuffer.allocate(4 * numBlocks);
+                    table.asIntBuffer().put(state.blockChecksums);
+                    writeFully(channel, table, checksumsOffset());
+                }
+                channel.force(false);
+
+                writeFully(channel, header(true), 0);
+                channel.force(false);
+
+                synchronized (ReplayCheckpoint.this) {
+                    files.put(file, state);
+                }
+            } finally {
+                memory.writeObserver = null;
+                synchronized (this) {
+                    preserved.clear();
+                }
+                lastBytesWritten = bytesWritten;
+            }
+        }
+
+        protected ByteBuffer header(boolean complete) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, (complete ? FLAG_COMPLETE : 0) | (checksums ? FLAG_CHECKSUMS : 0));
+            header.putInt(12, memory.capacity());
+            header.putInt(16, memory.maxHistoryLength);
+            header.putInt(20, memory.preProcessor.outputSize());
+            header.putInt(24, memory.frameSegments.length);
+            header.putLong(32, memory.segmentSize);
+            header.putLong(40, id);
+            header.putInt(48, next);
+            header.putInt(52, size);
+            header.putLong(56, currentFrameIndex);
+            header.putLong(64, blockSize);
+            if (checksums) {
+                int[] columnChecksums = columnChecksums(columns);
+                for (int c = 0; c < NUM_COLUMNS; c++) {
+                    header.putInt(COLUMN_CHECKSUMS_OFFSET + 4 * c, columnChecksums[c]);
+                }
+            }
+            return header;
+        }
+
+        protected void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.write(buffer, position);
+                position += n;
+                bytesWritten += n;
+            }
+        }
+    }
+
+    /** Loads a checkpoint into the memory. If that fails, the memory is left empty. */
+    public synchronized void load(File file) throws IOException {
+        if (memory.writeObserver != null) {
+            throw new IllegalStateException("Cannot load while a cut of the memory is being written");
+        }
+        files.clear();
+        try {
+            files.put(file, loadCheckpoint(file));
+        } catch (IOException e) {
+            memory.resetMemory();
+            memory.dirtyBlocks = null;
+            throw e;
+        }
+        memory.trackDirtyBlocks(blockSize);
+    }
+
+    protected FileState loadCheckpoint(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            checkHeader(header, file);
+
+            FileState state = new FileState();
+            state.id = header.getLong(40);
+            state.checksums = (header.getInt(8) & FLAG_CHECKSUMS) != 0;
+            state.blockChecksums = new int[numBlocks];
+
+            // the columns are only replaced once the frames are read
+            ByteBuffer columns = ByteBuffer.allocate(memory.columns.capacity());
+            readFully(channel, columns, columnsOffset());
+            if (state.checksums) {
+                int[] expected = new int[NUM_COLUMNS];
+                header.position(COLUMN_CHECKSUMS_OFFSET);
+                header.asIntBuffer().get(expected);
+                int[] actual = columnChecksums(columns);
+                for (int c = 0; c < NUM_COLUMNS; c++) {
+                    if (expected[c] != actual[c]) {
+                        throw new IOException("Checksum mismatch in column " + c + " of " + file);
+                    }
+                }
+
+                ByteBuffer table = ByteBuffer.allocate(4 * numBlocks);
+                readFully(channel, table, checksumsOffset());
+                table.clear();
+                table.asIntBuffer().get(state.blockChecksums);
+            }
+
+            memory.dirtyBlocks = null;
+            ByteBuffer block = ByteBuffer.allocate((int)blockSize);
+            for (int b = 0; b < numBlocks; b++) {
+                block.clear();
+                block.limit((int)blockLength(b));
+                readFully(channel, block, framesOffset() + b * blockSize);
+                block.flip();
+                if (state.checksums) {
+                    CRC32 crc = new CRC32();
+                    crc.update(block.array(), 0, block.limit());
+                    if ((int)crc.getValue() != state.blockChecksums[b]) {
+                        throw new IOException("Checksum mismatch in frame block " + b + " of " + file);
+                    }
+                }
+                putBlock(b, block);
+            }
+
+            ByteBuffer target = columnBuffer();
+            columns.clear();
+            target.put(columns);
+            memory.next = header.getInt(48);
+            memory.size = header.getInt(52);
+            memory.currentFrameIndex = header.getLong(56);
+            memory.writePosition();
+
+            return state;
+        }
+    }
+
+    protected void checkHeader(ByteBuffer header, File file) throws IOException {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a replay checkpoint: " + file);
+        }
+        if ((header.getInt(8) & FLAG_COMPLETE) == 0) {
+            throw new IOException("Incomplete replay checkpoint: " + file);
+        }
+        if (header.getInt(12) != memory.capacity()
+                || header.getInt(16) != memory.maxHistoryLength
+                || header.getInt(20) != memory.preProcessor.outputSize()
+                || header.getInt(24) != memory.frameSegments.length
+                || header.getLong(32) != memory.segmentSize
+                || header.getLong(64) != blockSize) {
+            throw new IOException("Replay checkpoint " + file + " does not match the memory's geometry");
+        }
+    }
+
+    /** True if the file holds the complete checkpoint with the given id */
+    protected boolean isCheckpoint(File file, long id) throws IOException {
+        if (file.length() != framesOffset() + memory.frameHistorySize()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(raf.getChannel(), header, 0);
+            return header.getInt(0) == MAGIC && header.getLong(40) == id && (header.getInt(8) & FLAG_COMPLETE) != 0;
+        }
+    }
+
+    protected ByteBuffer columnBuffer() {
+        ByteBuffer columns = memory.columns.duplicate();
+        columns.clear();
+        return columns;
+    }
+
+    /** The checksums of the columns in a heap copy of the column buffer */
+    protected int[] columnChecksums(ByteBuffer columns) {
+        int capacity = memory.capacity();
+        int[] lengths = {8 * capacity, 4 * capacity, 4 * capacity, capacity, capacity};
+
+        int[] columnChecksums = new int[NUM_COLUMNS];
+        int offset = ColumnarFrameExperienceMemory.HEADER_SIZE;
+        for (int c = 0; c < NUM_COLUMNS; c++) {
+            CRC32 crc = new CRC32();
+            crc.update(columns.array(), columns.arrayOffset() + offset, lengths[c]);
+            columnChecksums[c] = (int)crc.getValue();
+            offset += lengths[c];
+        }
+        return columnChecksums;
+    }
+
+    protected long blockLength(int b) {
+        return Math.min(blockSize, memory.frameHistorySize() - b * blockSize);
+    }
+
+    /** Copies block b of the frame history into the buffer, which is then flipped */
+    protected ByteBuffer copyBlock(int b, ByteBuffer buffer) {
+        buffer.clear();
+        long from = b * blockSize;
+        long to = from + blockLength(b);
+        while (from < to) {
+            int segment = (int)(from / memory.segmentSize);
+            long offset = from % memory.segmentSize;
+            long n = Math.min(to - from, memory.segmentSize - offset);
+
+            // a pointer of our own, as the memory moves the segment's position around
+            BytePointer pointer = new BytePointer(memory.frameSegments[segment]);
+            buffer.put(pointer.position(offset).limit(offset + n).asByteBuffer());
+            from += n;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Copies the buffer into block b of the frame history */
+    protected void putBlock(int b, ByteBuffer buffer) {
+        long from = b * blockSize;
+        long to = from + blockLength(b);
+        while (from < to) {
+            int segment = (int)(from / memory.segmentSize);
+            long offset = from % memory.segmentSize;
+            long n = Math.min(to - from, memory.segmentSize - offset);
+
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + (int)n);
+            BytePointer pointer = new BytePointer(memory.frameSegments[segment]);
+            pointer.position(offset).limit(offset + n).asByteBuffer().put(part);
+            buffer.position(buffer.position() + (int)n);
+            from += n;
+        }
+    }
+
+    protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Truncated replay checkpoint");
+            }
+            position += n;
+        }
+    }
+}
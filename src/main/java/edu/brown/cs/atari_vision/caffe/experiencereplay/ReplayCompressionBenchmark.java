@@ -0,0 +1,121 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import burlap.mdp.core.action.Action;
+import burlap.mdp.singleagent.SADomain;
+import edu.brown.cs.atari_vision.ale.burlap.ALEDomainGenerator;
+import edu.brown.cs.atari_vision.ale.burlap.ALEEnvironment;
+import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.ale.io.Actions;
+import edu.brown.cs.atari_vision.caffe.preprocess.DQNPreProcessor;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Plays a game with random actions into a {@link ColumnarFrameExperienceMemory}, a
+ * {@link CompressedFrameExperienceMemory} and a {@link DedupFrameExperienceMemory}, and reports the bytes each takes
+ * per frame and how many frames per second each samples into minibatches, to decide per game how to store the
+ * replay memory.
+ *
+ * Usage: ReplayCompressionBenchmark [rom [steps [blockFrames [cacheBlocks]]]]
+ */
+public class ReplayCompressionBenchmark {
+
+    static final int HISTORY = 4;
+    static final int FRAME_SKIP = 4;
+    static final int BATCH_SIZE = 32;
+    static final int WARMUP_BATCHES = 200;
+    static final int BATCHES = 2000;
+
+    /** Sends every frame to every memory, handing the raw memory's states to the environment */
+    static class TeeStateGenerator implements ALEStateGenerator<FrameHistoryState> {
+
+        final ColumnarFrameExperienceMemory raw;
+        final NumberedFrameExperienceMemory[] others;
+        final FrameHistoryState[] otherStates;
+
+        TeeStateGenerator(ColumnarFrameExperienceMemory raw, NumberedFrameExperienceMemory... others) {
+            this.raw = raw;
+            this.others = others;
+            this.otherStates = new FrameHistoryState[others.length];
+        }
+
+        @Override
+        public FrameHistoryState initialState(Mat screen) {
+            for (int m = 0; m < others.length; m++) {
+                otherStates[m] = others[m].initialState(screen);
+            }
+            return raw.initialState(screen);
+        }
+
+        @Override
+        public FrameHistoryState nextState(Mat screen, FrameHistoryState prevState, Action action, double reward, boolean terminated) {
+            for (int m = 0; m < others.length; m++) {
+                otherStates[m] = others[m].nextState(screen, otherStates[m], action, reward, terminated);
+            }
+            return raw.nextState(screen, prevState, action, reward, terminated);
+        }
+    }
+
+    public static void main(String[] args) {
+        String rom = args.length > 0 ? args[0] : "seaquest.bin";
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int blockFrames = args.length > 2 ? Integer.parseInt(args[2]) : CompressedFrameExperienceMemory.DEFAULT_BLOCK_FRAMES;
+        int cacheBlocks = args.length > 3 ? Integer.parseInt(args[3]) : CompressedFrameExperienceMemory.DEFAULT_CACHE_BLOCKS;
+
+        Loader.load(opencv_core.class);
+
+        ActionSet actionSet = Actions.saActionSet();
+        SADomain domain = new ALEDomainGenerator(actionSet).generateDomain();
+
+        ColumnarFrameExperienceMemory raw = new ColumnarFrameExperienceMemory(steps, HISTORY, new DQNPreProcessor(), actionSet);
+        CompressedFrameExperienceMemory compressed = new CompressedFrameExperienceMemory(steps, HISTORY, new DQNPreProcessor(), actionSet,
+                false, blockFrames, cacheBlocks);
+        DedupFrameExperienceMemory dedup = new DedupFrameExperienceMemory(steps, HISTORY, new DQNPreProcessor(), actionSet);
+
+        ALEDriver io = new ALEDriver(rom, FRAME_SKIP);
+        io.setScreenType(ALEDriver.ScreenType.SCREEN_TYPE_GRAY);
+        ALEEnvironment env = new ALEEnvironment(domain, new TeeStateGenerator(raw, compressed, dedup), io, false);
+
+        System.out.printf("Playing %d steps of %s\n", steps, rom);
+        Random rng = new Random(0);
+        for (int step = 0; step < steps; step++) {
+            if (env.isInTerminalState()) {
+                env.resetEnvironment();
+            }
+            env.executeAction(actionSet.getAction(rng.nextInt(actionSet.size())));
+        }
+        io.close();
+
+        int frameSize = raw.preProcessor.outputSize();
+        System.out.printf("raw:        %8.1f bytes per frame, %s\n", (double)frameSize, sample(raw, frameSize));
+        System.out.printf("compressed: %8.1f bytes per frame, %s, %.1f%% of blocks cached (%d frames per block, %d blocks cached)\n",
+                compressed.bytesPerFrame(), sample(compressed, frameSize), 100 * compressed.cacheHitRate(), blockFrames, cacheBlocks);
+        System.out.printf("dedup:      %8.1f bytes per frame, %s, %d distinct of %d frames\n",
+                dedup.bytesPerFrame(), sample(dedup, frameSize), dedup.distinctFrames(), dedup.framesHeld());
+    }
+
+    /** Times sampling minibatches from the memory */
+    static String sample(MinibatchMemory memory, int frameSize) {
+        Minibatch batch = new Minibatch(BATCH_SIZE, HISTORY * frameSize);
+        Random rng = new Random(1);
+        for (int b = 0; b < WARMUP_BATCHES; b++) {
+            memory.sampleInto(batch, rng);
+        }
+
+        long start = System.nanoTime();
+        for (int b = 0; b < BATCHES; b++) {
+            memory.sampleInto(batch, rng);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // each sample reads its state's frames and the next one
+        long frames = (long)BATCHES * BATCH_SIZE * (HISTORY + 1);
+        return String.format("%.0f minibatches/s, %.0f frames/s", BATCHES / seconds, frames / seconds);
+    }
+}
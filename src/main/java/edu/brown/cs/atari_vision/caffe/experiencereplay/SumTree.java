@@ -0,0 +1,92 @@
+package edu.brown.cs.atari_vision.caffe.experiencereplay;
+
+import java.util.Arrays;
+
+/**
+ * A binary tree of sums over a fixed number of non-negative priorities, for sampling indices in proportion to
+ * their priority. Both updates and lookups take O(log n) and allocate nothing.
+ *
+ * The tree is stored as an implicit heap in one array: the root is at 1, the children of node k are at 2k and
+ * 2k+1, and the leaves start at the number of leaves, which is the capacity rounded up to a power of two. The
+ * upper levels, which every operation goes through, are thus packed together at the start of the array.
+ */
+public class SumTree {
+
+    protected final int capacity;
+    protected final int numLeaves;
+    protected final double[] tree;
+
+    /** Updates add their change to the sums, so the sums are recomputed every capacity updates to drop the rounding errors */
+    protected int updatesSinceRebuild;
+
+    public SumTree(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("SumTree requires capacity > 0; was request capacity of " + capacity);
+        }
+        this.capacity = capacity;
+
+        int numLeaves = 1;
+        while (numLeaves < capacity) {
+            numLeaves <<= 1;
+        }
+        this.numLeaves = numLeaves;
+        this.tree = new double[2 * numLeaves];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public double total() {
+        return tree[1];
+    }
+
+    public double get(int i) {
+        return tree[numLeaves + i];
+    }
+
+    public void set(int i, double priority) {
+        int node = numLeaves + i;
+        double change = priority - tree[node];
+        tree[node] = priority;
+
+        if (++updatesSinceRebuild >= capacity) {
+            rebuild();
+            return;
+        }
+        for (node >>= 1; node > 0; node >>= 1) {
+            tree[node] += change;
+        }
+    }
+
+    /**
+     * The index whose range of the cumulative priorities holds the mass, which should be in [0, total). Never
+     * returns an index with a priority of 0, unless all are 0.
+     */
+    public int find(double mass) {
+        int node = 1;
+        while (node < numLeaves) {
+            int left = 2 * node;
+            if (mass < tree[left] || tree[left + 1] <= 0) {
+                node = left;
+            } else {
+                mass -= tree[left];
+                node = left + 1;
+            }
+        }
+        return node - numLeaves;
+    }
+
+    /** Recomputes every sum from the leaves */
+    public void rebuild() {
+        updatesSinceRebuild = 0;
+        for (int node = numLeaves - 1; node > 0; node--) {
+            tree[node] = tree[2 * node] + tree[2 * node + 1];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(tree, 0);
+        updatesSinceRebuild = 0;
+    }
+}
@@ -14,7 +14,9 @@ import burlap.mdp.core.state.State;
 import burlap.mdp.singleagent.SADomain;
 import burlap.mdp.singleagent.environment.Environment;
 import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.ExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.vfa.ActionValuesFunction;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -83,6 +85,13 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 	protected int totalSteps = 0;
 
 
+	/**
+	 * The Q-values returned by {@link #allQValues(State)} and {@link #allStaleQValues(State)}, reused across calls
+	 */
+	protected float[] actionValues;
+	protected float[] staleActionValues;
+
+
 	public ApproximateQLearning(SADomain domain, double gamma, ParametricFunction.ParametricStateActionFunction vfa) {
 		this.vfa = vfa;
 		this.staleVfa = vfa;
@@ -150,8 +159,7 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 			ea.transition(a, eo.op, eo.r);
 
 			//perform learners
-			List<EnvironmentOutcome> samples = this.memory.sampleExperiences(this.numReplay);
-			this.updateQFunction(samples);
+			this.replayExperiences();
 
 			//update stale function
 			this.stepsSinceStale++;
@@ -171,8 +179,16 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 		this.totalSteps = 0;
 	}
 
+	/**
+	 * The Q-values of the applicable actions, from one evaluation of the VFA if it is an {@link ActionValuesFunction}
+	 * and from one per action otherwise.
+	 */
 	@Override
 	public List<QValue> qValues(State s) {
+		if(this.vfa instanceof ActionValuesFunction){
+			return this.qValueList(s, this.allQValues(s), ((ActionValuesFunction)this.vfa).getActionSet());
+		}
+
 		List<Action> actions = this.applicableActions(s);
 		List<QValue> qs = new ArrayList<QValue>(actions.size());
 		for(Action a : actions){
@@ -189,6 +205,10 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 
 	@Override
 	public double value(State s) {
+		if(this.vfa instanceof ActionValuesFunction){
+			return max(this.allQValues(s));
+		}
+
 		List<QValue> qs = this.qValues(s);
 		double max = Double.NEGATIVE_INFINITY;
 		for(QValue q : qs){
@@ -199,6 +219,10 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 
 
 	public List<QValue> getStaleQs(State s) {
+		if(this.staleVfa instanceof ActionValuesFunction){
+			return this.qValueList(s, this.allStaleQValues(s), ((ActionValuesFunction)this.staleVfa).getActionSet());
+		}
+
 		List<Action> actions = this.applicableActions(s);
 		List<QValue> qs = new ArrayList<QValue>(actions.size());
 		for(Action a : actions){
@@ -214,6 +238,10 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 	}
 
 	public double staleValue(State s) {
+		if(this.staleVfa instanceof ActionValuesFunction){
+			return max(this.allStaleQValues(s));
+		}
+
 		List<QValue> qs = this.getStaleQs(s);
 		double max = Double.NEGATIVE_INFINITY;
 		for(QValue q : qs){
@@ -222,6 +250,61 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 		return max;
 	}
 
+	/**
+	 * The Q-values of every action of the VFA's action set, indexed by action id, from one evaluation of the VFA,
+	 * which must be an {@link ActionValuesFunction}. The array is overwritten by the next call.
+	 */
+	public float[] allQValues(State s) {
+		this.actionValues = evaluateAll(this.vfa, s, this.actionValues);
+		return this.actionValues;
+	}
+
+	/**
+	 * The Q-values of every action under the stale VFA, like {@link #allQValues(State)}.
+	 */
+	public float[] allStaleQValues(State s) {
+		this.staleActionValues = evaluateAll(this.staleVfa, s, this.staleActionValues);
+		return this.staleActionValues;
+	}
+
+	/**
+	 * Evaluates every action with vfa into qs, allocating qs if it does not fit the action set.
+	 */
+	protected static float[] evaluateAll(ParametricFunction.ParametricStateActionFunction vfa, State s, float[] qs) {
+		if(!(vfa instanceof ActionValuesFunction)){
+			throw new UnsupportedOperationException("The Q-values of all actions at once need an ActionValuesFunction");
+		}
+		ActionValuesFunction values = (ActionValuesFunction)vfa;
+		int numActions = values.getActionSet().size();
+		if(qs == null || qs.length != numActions){
+			qs = new float[numActions];
+		}
+		return values.actionValues(s, qs);
+	}
+
+	/**
+	 * The applicable actions' Q-values, read from the Q-values of every action.
+	 */
+	protected List<QValue> qValueList(State s, float[] qs, ActionSet actionSet) {
+		List<Action> actions = this.applicableActions(s);
+		List<QValue> qValues = new ArrayList<QValue>(actions.size());
+		for(Action a : actions){
+			qValues.add(new QValue(s, a, qs[actionSet.map(a.actionName())]));
+		}
+		return qValues;
+	}
+
+	/**
+	 * The largest of the Q-values. Every action an {@link ActionValuesFunction} evaluates is taken to be applicable.
+	 */
+	protected static double max(float[] qs) {
+		float max = Float.NEGATIVE_INFINITY;
+		for(float q : qs){
+			max = Math.max(max, q);
+		}
+		return max;
+	}
+
 	public void updateStaleFunction(){
 		if(this.staleDuration > 1){
 			this.staleVfa = (ParametricFunction.ParametricStateActionFunction)this.vfa.copy();
@@ -232,6 +315,15 @@ public abstract class ApproximateQLearning extends MDPSolver implements Learning
 		this.stepsSinceStale = 0;
 	}
 
+	/**
+	 * Samples experiences from the memory and updates the Q-function with them. Learners that sample in a
+	 * different way override this.
+	 */
+	protected void replayExperiences(){
+		List<EnvironmentOutcome> samples = this.memory.sampleExperiences(this.numReplay);
+		this.updateQFunction(samples);
+	}
+
 	public abstract void updateQFunction(List<EnvironmentOutcome> samples);
 
 	public void restartFrom(int stepNumber) {
@@ -4,6 +4,10 @@ import burlap.behavior.policy.Policy;
 import burlap.behavior.policy.RandomPolicy;
 import burlap.mdp.singleagent.SADomain;
 import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.MinibatchMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.MinibatchPrefetcher;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.PrioritizedFrameExperienceMemory;
 import edu.brown.cs.atari_vision.caffe.vfa.DQN;
 
 import java.util.List;
@@ -19,6 +23,15 @@ public class DeepQLearner extends ApproximateQLearning {
 
     public Policy trainingPolicy;
 
+    /** The minibatch sampled into for each update */
+    protected Minibatch batch;
+
+    /** Prepares minibatches on a background thread instead, if set (see {@link #prefetchMinibatches(int)}) */
+    public MinibatchPrefetcher prefetcher;
+
+    /** The TD errors of the last update, to push back to a prioritized memory */
+    protected float[] tdErrors = new float[0];
+
     public DeepQLearner(SADomain domain, double gamma, int replayStartSize, Policy policy, DQN vfa) {
         super(domain, gamma, vfa);
 
@@ -39,10 +52,92 @@ public class DeepQLearner extends ApproximateQLearning {
         }
     }
 
+    /**
+     * Samples straight into a preallocated minibatch if the memory can, and only on the steps that update, so
+     * learning allocates nothing per step.
+     */
+    @Override
+    protected void replayExperiences() {
+        if (!(memory instanceof MinibatchMemory)) {
+            super.replayExperiences();
+            return;
+        }
+
+        if (fillingReplay()) {
+            return;
+        }
+
+        if (totalSteps % updateFreq == 0) {
+            DQN dqn = (DQN)vfa;
+            if (tdErrors.length < dqn.batchSize) {
+                tdErrors = new float[dqn.batchSize];
+            }
+            Minibatch batch = nextMinibatch();
+            if (batch != null && dqn.updateQFunction(batch, (DQN)staleVfa, tdErrors)
+                    && memory instanceof PrioritizedFrameExperienceMemory) {
+                ((PrioritizedFrameExperienceMemory)memory).updatePriorities(batch.indices, tdErrors, batch.size);
+            }
+        }
+    }
+
+    /** The minibatch for the next update, or null if the memory cannot fill one */
+    protected Minibatch nextMinibatch() {
+        if (prefetcher != null) {
+            return prefetcher.take();
+        }
+
+        if (batch == null) {
+            DQN dqn = (DQN)vfa;
+            batch = new Minibatch(dqn.batchSize, dqn.inputSize);
+        }
+        return ((MinibatchMemory)memory).sampleInto(batch) ? batch : null;
+    }
+
+    /**
+     * Samples and converts minibatches on a background thread, depth updates ahead, so the learner does not wait
+     * for them. The experience memory must be a {@link MinibatchMemory}.
+     */
+    public void prefetchMinibatches(int depth) {
+        if (!(memory instanceof MinibatchMemory)) {
+            throw new IllegalStateException("Minibatches can only be prefetched from a MinibatchMemory");
+        }
+        stopPrefetching();
+
+        DQN dqn = (DQN)vfa;
+        prefetcher = new MinibatchPrefetcher((MinibatchMemory)memory, dqn.batchSize, dqn.inputSize, depth);
+    }
+
+    public void stopPrefetching() {
+        if (prefetcher != null) {
+            prefetcher.stop();
+            prefetcher = null;
+        }
+    }
+
     @Override
     public void updateQFunction(List<EnvironmentOutcome> samples) {
 
-        // fill up experience replay
+        if (fillingReplay()) {
+            return;
+        }
+
+        if (totalSteps % updateFreq == 0) {
+            if (memory instanceof PrioritizedFrameExperienceMemory) {
+                PrioritizedFrameExperienceMemory prioritizedMemory = (PrioritizedFrameExperienceMemory)memory;
+                if (tdErrors.length < samples.size()) {
+                    tdErrors = new float[samples.size()];
+                }
+                if (((DQN)vfa).updateQFunction(samples, (DQN)staleVfa, prioritizedMemory.importanceWeights(), tdErrors)) {
+                    prioritizedMemory.updatePriorities(tdErrors, samples.size());
+                }
+            } else {
+                ((DQN)vfa).updateQFunction(samples, (DQN)staleVfa);
+            }
+        }
+    }
+
+    /** True while the replay memory is being filled with the random policy, switching to training once it is */
+    protected boolean fillingReplay() {
         if (runningRandomPolicy) {
             if (totalSteps >= replayStartSize) {
                 System.out.println("Replay sufficiently filled. Beginning training...");
@@ -54,12 +149,9 @@ public class DeepQLearner extends ApproximateQLearning {
                 updateStaleFunction();
             }
 
-            return;
-        }
-
-        if (totalSteps % updateFreq == 0) {
-            ((DQN)vfa).updateQFunction(samples, (DQN)staleVfa);
+            return true;
         }
+        return false;
     }
 
     @Override
@@ -0,0 +1,60 @@
+package edu.brown.cs.atari_vision.caffe.policies;
+
+import burlap.behavior.policy.EpsilonGreedy;
+import burlap.behavior.valuefunction.QProvider;
+import burlap.mdp.core.action.Action;
+import burlap.mdp.core.state.State;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.vfa.ActionValuesFunction;
+
+import java.util.Random;
+
+/**
+ * An epsilon greedy policy that, if its planner is an {@link ActionValuesFunction}, reads the Q-values of every action
+ * from one evaluation into a reused array instead of a list of {@link burlap.behavior.valuefunction.QValue}s, and
+ * does not evaluate the state at all when it explores.
+ */
+public class ActionValuesEpsilonGreedy extends EpsilonGreedy {
+
+    /** The Q-values of the last greedy action, indexed by action id */
+    protected float[] qs;
+
+    public ActionValuesEpsilonGreedy(QProvider planner, double epsilon) {
+        super(planner, epsilon);
+    }
+
+    @Override
+    public Action action(State s) {
+        if (!(qplanner instanceof ActionValuesFunction)) {
+            return super.action(s);
+        }
+
+        ActionValuesFunction values = (ActionValuesFunction)qplanner;
+        ActionSet actionSet = values.getActionSet();
+        int numActions = actionSet.size();
+        if (rand.nextDouble() < epsilon) {
+            return actionSet.getAction(rand.nextInt(numActions));
+        }
+
+        if (qs == null || qs.length != numActions) {
+            qs = new float[numActions];
+        }
+        values.actionValues(s, qs);
+        return actionSet.getAction(greedyAction(qs, rand));
+    }
+
+    /** The action with the largest Q-value, breaking ties uniformly at random */
+    public static int greedyAction(float[] qs, Random rand) {
+        int best = 0;
+        int numTies = 1;
+        for (int a = 1; a < qs.length; a++) {
+            if (qs[a] > qs[best]) {
+                best = a;
+                numTies = 1;
+            } else if (qs[a] == qs[best] && rand.nextInt(++numTies) == 0) {
+                best = a;
+            }
+        }
+        return best;
+    }
+}
@@ -1,7 +1,5 @@
 package edu.brown.cs.atari_vision.caffe.policies;
 
-import burlap.behavior.policy.EpsilonGreedy;
-import burlap.behavior.valuefunction.QFunction;
 import burlap.behavior.valuefunction.QProvider;
 import burlap.mdp.core.action.Action;
 import burlap.mdp.core.state.State;
@@ -9,7 +7,7 @@ import burlap.mdp.core.state.State;
 /**
  * Created by MelRod on 5/4/16.
  */
-public class AnnealedEpsilonGreedy extends EpsilonGreedy {
+public class AnnealedEpsilonGreedy extends ActionValuesEpsilonGreedy {
 
     protected double epsilonStart;
     protected double epsilonEnd;
@@ -2,6 +2,9 @@ package edu.brown.cs.atari_vision.caffe.preprocess;
 
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.FloatPointer;
+
+import java.util.Arrays;
+
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_imgproc.*;
 
@@ -13,6 +16,44 @@ public class DQNPreProcessor implements PreProcessor {
     static final int scaleWidth = 84;
     static final int scaleHeight = 84;
 
+    /**
+     * The reusable state of convertDataToInput. Minibatches may be converted on another thread than the one
+     * acting, so each thread has its own.
+     */
+    protected static class InputConversion {
+
+        /** Reusable Mat headers, by number of frames */
+        protected Mat[] dataMats = new Mat[0];
+        protected Mat[] floatMats = new Mat[0];
+
+        /** Byte views of the input buffers most recently converted into, such as a minibatch's two inputs */
+        protected long[] inputAddresses = new long[4];
+        protected BytePointer[] inputViews = new BytePointer[4];
+        protected int nextInputView;
+
+        /** A byte view of the input buffer, kept for the buffers converted into most recently */
+        protected BytePointer inputBytes(FloatPointer input) {
+            for (int i = 0; i < inputViews.length; i++) {
+                if (inputViews[i] != null && inputAddresses[i] == input.address()) {
+                    return inputViews[i];
+                }
+            }
+
+            BytePointer view = new BytePointer(input);
+            inputAddresses[nextInputView] = input.address();
+            inputViews[nextInputView] = view;
+            nextInputView = (nextInputView + 1) % inputViews.length;
+            return view;
+        }
+    }
+
+    protected final ThreadLocal<InputConversion> conversions = new ThreadLocal<InputConversion>() {
+        @Override
+        protected InputConversion initialValue() {
+            return new InputConversion();
+        }
+    };
+
     public DQNPreProcessor() {
 
     }
@@ -20,8 +61,12 @@ public class DQNPreProcessor implements PreProcessor {
     @Override
     public BytePointer convertScreenToData(Mat screen) {
 
-        Mat gray = new Mat();
-        cvtColor(screen, gray, COLOR_BGR2GRAY);
+        // Screens decoded in grayscale mode are already luminance
+        Mat gray = screen;
+        if (screen.channels() != 1) {
+            gray = new Mat();
+            cvtColor(screen, gray, COLOR_BGR2GRAY);
+        }
 
         Mat downsample = new Mat();
         resize(gray, downsample, new Size(scaleWidth, scaleHeight));
@@ -38,8 +83,22 @@ public class DQNPreProcessor implements PreProcessor {
 
         int dataSize = outputSize() * (int)size;
 
-        Mat mat = new Mat(1, dataSize, CV_8U, data);
-        Mat floatMat = new Mat(1, dataSize, CV_32F, (new BytePointer(input)).position(input.position() * input.sizeof()));
+        // Mat headers are reused for each size, pointed at the data and input of each call
+        InputConversion conversion = conversions.get();
+        if (size >= conversion.dataMats.length) {
+            conversion.dataMats = Arrays.copyOf(conversion.dataMats, (int)size + 1);
+            conversion.floatMats = Arrays.copyOf(conversion.floatMats, (int)size + 1);
+        }
+        BytePointer inputBytes = conversion.inputBytes(input).position(input.position() * input.sizeof());
+        Mat mat = conversion.dataMats[(int)size];
+        Mat floatMat = conversion.floatMats[(int)size];
+        if (mat == null) {
+            mat = conversion.dataMats[(int)size] = new Mat(1, dataSize, CV_8U, data);
+            floatMat = conversion.floatMats[(int)size] = new Mat(1, dataSize, CV_32F, inputBytes);
+        } else {
+            mat.data(data);
+            floatMat.data(inputBytes);
+        }
 
         mat.convertTo(floatMat, CV_32F, 1/255.0, 0);
     }
@@ -0,0 +1,15 @@
+package edu.brown.cs.atari_vision.caffe.preprocess;
+
+import org.bytedeco.javacpp.BytePointer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * A PreProcessor that can write its output straight into a caller supplied buffer,
+ * such as a slot of the experience memory's frame history.
+ */
+public interface DirectPreProcessor extends PreProcessor {
+
+    /** Converts the screen and writes outputSize() bytes starting at output.position() */
+    void convertScreenToData(Mat screen, BytePointer output);
+}
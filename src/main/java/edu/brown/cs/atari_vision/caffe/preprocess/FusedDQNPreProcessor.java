@@ -0,0 +1,169 @@
+package edu.brown.cs.atari_vision.caffe.preprocess;
+
+import edu.brown.cs.atari_vision.ale.screen.ColorPalette;
+import edu.brown.cs.atari_vision.ale.screen.NTSCPalette;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Does the whole DQN screen pipeline (luminance, max pooling of the last two frames and
+ * downsampling to 84x84) in a single pass over a palette pair screen, as produced by
+ * ALEDriver in SCREEN_TYPE_PALETTE_PAIR mode.
+ *
+ * The downsampling is the bilinear resize of DQNPreProcessor (OpenCV's default INTER_LINEAR),
+ * in the same fixed point arithmetic, so the frames match those of the gray screen pipeline to
+ * within rounding. Each output pixel only interpolates the 2x2 source pixels around its center,
+ * so only those are pooled and looked up, rather than converting the whole screen first.
+ */
+public class FusedDQNPreProcessor extends DQNPreProcessor implements DirectPreProcessor {
+
+    /** The fixed point precision of OpenCV's bilinear resize coefficients */
+    static final int COEF_BITS = 11;
+    static final int COEF_SCALE = 1 << COEF_BITS;
+
+    /** The luminance of each palette index */
+    protected byte[] luminance;
+
+    /** Reusable output buffers */
+    protected byte[] outputBytes;
+    protected BytePointer outputData;
+
+    /** The left source column each output column interpolates, and the weights of it and the next one */
+    protected int[] columns;
+    protected int[] columnWeights;
+    /** The top source row each output row interpolates, and the weights of it and the next one */
+    protected int[] rows;
+    protected int[] rowWeights;
+
+    /** The source dimensions the tables above were built for */
+    protected int srcWidth, srcHeight;
+
+    /** Cached view of the most recently seen screen, and a reusable copy of its pixels */
+    protected Mat lastScreen;
+    protected ByteBuffer lastScreenData;
+    protected byte[] screenBytes;
+
+    public FusedDQNPreProcessor() {
+        this(new NTSCPalette());
+    }
+
+    public FusedDQNPreProcessor(ColorPalette palette) {
+        this.luminance = palette.luminanceTable();
+
+        int size = outputSize();
+        this.outputBytes = new byte[size];
+        this.outputData = new BytePointer(size);
+    }
+
+    @Override
+    public BytePointer convertScreenToData(Mat screen) {
+        convertScreenToData(screen, outputData.position(0));
+        return outputData;
+    }
+
+    @Override
+    public void convertScreenToData(Mat screen, BytePointer output) {
+        if (screen.channels() != 2) {
+            throw new IllegalArgumentException("FusedDQNPreProcessor expects a two channel palette pair screen");
+        }
+
+        int width = screen.cols();
+        int height = screen.rows();
+        if (width != srcWidth || height != srcHeight) {
+            buildTables(width, height);
+        }
+
+        // One bulk copy is cheaper than reading the pixels one by one out of native memory
+        ByteBuffer screenData = screenBuffer(screen);
+        screenData.position(0);
+        screenData.get(screenBytes);
+        screenData.position(0);
+
+        int i = 0;
+        for (int outY = 0; outY < scaleHeight; outY++) {
+            int top = rows[outY] * width;
+            int bottom = Math.min(rows[outY] + 1, height - 1) * width;
+            int topWeight = rowWeights[2*outY];
+            int bottomWeight = rowWeights[2*outY + 1];
+
+            for (int outX = 0; outX < scaleWidth; outX++) {
+                int left = columns[outX];
+                int right = Math.min(left + 1, width - 1);
+                int leftWeight = columnWeights[2*outX];
+                int rightWeight = columnWeights[2*outX + 1];
+
+                // Interpolate each row horizontally, then the two rows vertically, as OpenCV does
+                int topSum = pooled(top + left) * leftWeight + pooled(top + right) * rightWeight;
+                int bottomSum = pooled(bottom + left) * leftWeight + pooled(bottom + right) * rightWeight;
+                int v = (topSum * topWeight + bottomSum * bottomWeight + (1 << (2*COEF_BITS - 1))) >> (2*COEF_BITS);
+
+                outputBytes[i++] = (byte)(v > 255 ? 255 : v);
+            }
+        }
+
+        long position = output.position();
+        output.put(outputBytes, 0, outputBytes.length);
+        output.position(position);
+    }
+
+    /** The luminance of the pixel, max pooled over the two frames */
+    protected int pooled(int pixel) {
+        int c0 = screenBytes[2*pixel] & 0xFF;
+        int c1 = screenBytes[2*pixel + 1] & 0xFF;
+        return Math.max(luminance[c0] & 0xFF, luminance[c1] & 0xFF);
+    }
+
+    protected void buildTables(int width, int height) {
+        if (width < scaleWidth || height < scaleHeight) {
+            throw new IllegalArgumentException("FusedDQNPreProcessor can only downsample");
+        }
+
+        srcWidth = width;
+        srcHeight = height;
+        screenBytes = new byte[2 * width * height];
+
+        columns = new int[scaleWidth];
+        columnWeights = new int[2*scaleWidth];
+        buildAxis((double)width / scaleWidth, width, columns, columnWeights);
+
+        rows = new int[scaleHeight];
+        rowWeights = new int[2*scaleHeight];
+        buildAxis((double)height / scaleHeight, height, rows, rowWeights);
+    }
+
+    /**
+     * Samples each output pixel at its center mapped back into the source, clamped to the source's edges, like
+     * OpenCV's INTER_LINEAR. The weights of the two source pixels are rounded to COEF_BITS of fixed point.
+     */
+    protected static void buildAxis(double scale, int srcSize, int[] starts, int[] weights) {
+        for (int out = 0; out < starts.length; out++) {
+            float f = (float)((out + 0.5) * scale - 0.5);
+            int start = (int)Math.floor(f);
+            f -= start;
+            if (start < 0) {
+                start = 0;
+                f = 0;
+            }
+            if (start >= srcSize - 1) {
+                start = srcSize - 1;
+                f = 0;
+            }
+            starts[out] = start;
+            weights[2*out] = Math.round((1 - f) * COEF_SCALE);
+            weights[2*out + 1] = Math.round(f * COEF_SCALE);
+        }
+    }
+
+    protected ByteBuffer screenBuffer(Mat screen) {
+        if (screen != lastScreen) {
+            BytePointer data = screen.data();
+            data.capacity(screen.rows() * screen.cols() * screen.channels());
+            lastScreenData = data.asBuffer();
+            lastScreen = screen;
+        }
+        return lastScreenData;
+    }
+}
@@ -0,0 +1,244 @@
+package edu.brown.cs.atari_vision.caffe.training;
+
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ReplayCheckpoint;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.caffe.*;
+
+/**
+ * Checkpoints the learning state without stopping training for the whole write.
+ *
+ * On the training thread, {@link #checkpoint} takes a consistent cut: the trainer's counters, a Caffe snapshot
+ * of the weights and solver history, and a {@link ReplayCheckpoint.Cut} of the replay memory, which only copies
+ * its columns. The frame history is then written on a background thread while training goes on; frames that are
+ * about to be overwritten before the writer got to them are copied aside first.
+ *
+ * Checkpoints alternate between two directories, prefix.ckpt0 and prefix.ckpt1, so the last complete one is never
+ * written over. Once everything is on disk, prefix.latest is atomically replaced to point at the new one; it is
+ * what {@link #latest(String)} reads.
+ */
+public class AsyncCheckpointer {
+
+    public static final String LATEST_EXTENSION = ".latest";
+
+    static final String SLOT_EXTENSION = ".ckpt";
+    static final String TRAINER_DATA_FILE = "trainer.data";
+    static final String REPLAY_PREFIX = "replay";
+    static final String SOLVER_PREFIX = "dqn";
+
+    protected final String prefix;
+    protected final FloatSolver solver;
+    protected final ColumnarFrameExperienceMemory memory;
+
+    protected final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    protected Future<?> pending;
+
+    /** The slot of the last published checkpoint, or -1 if there is none */
+    protected volatile int published;
+
+    public AsyncCheckpointer(String prefix, FloatSolver solver, ColumnarFrameExperienceMemory memory) {
+        this.prefix = prefix;
+        this.solver = solver;
+        this.memory = memory;
+
+        File parent = new File(prefix).getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new RuntimeException(String.format("Could not create the directory: %s", parent));
+        }
+
+        Checkpoint latest = null;
+        try {
+            latest = latest(prefix);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        published = latest == null ? -1 : latest.slot;
+    }
+
+    /**
+     * Takes a cut of the learning state and starts writing it in the background. Skips the checkpoint, returning
+     * false, if the previous one is still being written. Must be called on the training thread, between steps.
+     */
+    public boolean checkpoint(HashMap<String, Object> trainerData) {
+        if (pending != null && !pending.isDone()) {
+            System.out.println("Skipping checkpoint: the previous one is still being written");
+            return false;
+        }
+
+        long startTime = System.nanoTime();
+        final int slot = published == 0 ? 1 : 0;
+        final File directory = new File(prefix + SLOT_EXTENSION + slot);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Skipping checkpoint: could not create " + directory);
+            return false;
+        }
+
+        // Caffe can only snapshot synchronously, but the weights and solver history are small next to the replay memory
+        SolverParameter param = solver.param();
+        String snapshotPrefix = param.snapshot_prefix().getString();
+        param.set_snapshot_prefix(new File(directory, SOLVER_PREFIX).getPath());
+        try {
+            solver.Snapshot();
+        } finally {
+            param.set_snapshot_prefix(snapshotPrefix);
+        }
+        final int iter = solver.iter();
+
+        final ReplayCheckpoint.Cut cut;
+        try {
+            cut = memory.getCheckpoint().cut(new File(directory, REPLAY_PREFIX + ColumnarFrameExperienceMemory.CHECKPOINT_EXTENSION));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        final HashMap<String, Object> data = new HashMap<>(trainerData);
+
+        System.out.println(String.format("Checkpoint cut in %.1fms", (System.nanoTime() - startTime) / 1e6));
+
+        pending = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                try {
+                    write(directory, slot, iter, data, cut);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                System.out.println(String.format("Checkpoint written to %s in %.1fs", directory, (System.nanoTime() - startTime) / 1e9));
+            }
+        });
+        return true;
+    }
+
+    protected void write(File directory, int slot, int iter, HashMap<String, Object> trainerData, ReplayCheckpoint.Cut cut) throws IOException {
+        try (ObjectOutputStream objOut = new ObjectOutputStream(new FileOutputStream(new File(directory, TRAINER_DATA_FILE)))) {
+            objOut.writeObject(trainerData);
+        }
+
+        cut.write();
+
+        // Caffe names its files after the iteration, so drop the ones of the checkpoint this one replaces
+        String current = String.format("%s_iter_%d.", SOLVER_PREFIX, iter);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SOLVER_PREFIX + "_iter_") && !file.getName().startsWith(current)) {
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+
+        publish(directory, slot, iter);
+        published = slot;
+    }
+
+    /** Atomically points prefix.latest at the checkpoint in the directory */
+    protected void publish(File directory, int slot, int iter) throws IOException {
+        Properties latest = new Properties();
+        latest.setProperty("directory", directory.getName());
+        latest.setProperty("slot", Integer.toString(slot));
+        latest.setProperty("iter", Integer.toString(iter));
+
+        File latestFile = new File(prefix + LATEST_EXTENSION);
+        File tmpFile = new File(prefix + LATEST_EXTENSION + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            latest.store(out, null);
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), latestFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Waits for the checkpoint being written, if any */
+    public void await() {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Waits for the checkpoint being written, if any, and stops the writer thread */
+    public void shutdown() {
+        await();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A complete checkpoint, as published in prefix.latest */
+    public static class Checkpoint {
+        public final File directory;
+        public final int slot;
+        public final int iter;
+
+        public Checkpoint(File directory, int slot, int iter) {
+            this.directory = directory;
+            this.slot = slot;
+            this.iter = iter;
+        }
+
+        public File trainerDataFile() {
+            return new File(directory, TRAINER_DATA_FILE);
+        }
+
+        public File modelFile() {
+            return new File(directory, String.format("%s_iter_%d.caffemodel", SOLVER_PREFIX, iter));
+        }
+
+        public File solverStateFile() {
+            return new File(directory, String.format("%s_iter_%d.solverstate", SOLVER_PREFIX, iter));
+        }
+
+        /** The prefix to pass to {@link ColumnarFrameExperienceMemory#loadMemoryState(String)} */
+        public String replayPrefix() {
+            return new File(directory, REPLAY_PREFIX).getPath();
+        }
+    }
+
+    /** The last checkpoint published under the prefix, or null if there is none */
+    public static Checkpoint latest(String prefix) throws IOException {
+        File latestFile = new File(prefix + LATEST_EXTENSION);
+        if (!latestFile.exists()) {
+            return null;
+        }
+
+        Properties latest = new Properties();
+        try (FileInputStream in = new FileInputStream(latestFile)) {
+            latest.load(in);
+        }
+        File directory = new File(latestFile.getAbsoluteFile().getParentFile(), latest.getProperty("directory"));
+        try {
+            return new Checkpoint(directory, Integer.parseInt(latest.getProperty("slot")), Integer.parseInt(latest.getProperty("iter")));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + latestFile, e);
+        }
+    }
+}
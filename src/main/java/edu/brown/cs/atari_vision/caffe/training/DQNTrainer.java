@@ -1,6 +1,5 @@
 package edu.brown.cs.atari_vision.caffe.training;
 
-import burlap.behavior.policy.EpsilonGreedy;
 import burlap.behavior.policy.Policy;
 import burlap.mdp.singleagent.SADomain;
 import burlap.mdp.singleagent.environment.Environment;
@@ -8,15 +7,26 @@ import edu.brown.cs.atari_vision.ale.burlap.ALEDomainGenerator;
 import edu.brown.cs.atari_vision.ale.burlap.ALEEnvironment;
 import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
 import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.ale.io.ALEBackend;
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.ale.io.NativeALEDriver;
+import edu.brown.cs.atari_vision.ale.io.PipelinedALEDriver;
 import edu.brown.cs.atari_vision.ale.io.Actions;
-import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.PrioritizedFrameExperienceMemory;
 import edu.brown.cs.atari_vision.caffe.learners.DeepQLearner;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.policies.ActionValuesEpsilonGreedy;
 import edu.brown.cs.atari_vision.caffe.policies.AnnealedEpsilonGreedy;
 import edu.brown.cs.atari_vision.caffe.preprocess.DQNPreProcessor;
+import edu.brown.cs.atari_vision.caffe.preprocess.FusedDQNPreProcessor;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
 import edu.brown.cs.atari_vision.caffe.vfa.DQN;
 import org.bytedeco.javacpp.Loader;
 
+import java.io.File;
+import java.io.IOException;
+
 import static org.bytedeco.javacpp.caffe.*;
 
 /**
@@ -29,8 +39,16 @@ public class DQNTrainer extends TrainingHelper {
     static final String SOLVER_FILE = "dqn_solver.prototxt";
     static final String ROM = "seaquest.bin";
     static final boolean GUI = true;
+    /** Run ALE inside the JVM instead of as a FIFO subprocess (requires the ALELibrary JNI library) */
+    static final boolean IN_PROCESS_ALE = false;
 
     static final int experienceMemoryLength = 1000000;
+    /** Keep the training memory in memory-mapped files here, so it survives restarts (null to keep it in RAM) */
+    static final String REPLAY_DIRECTORY = null;
+    /** Replay experiences in proportion to their TD error (lower the solver's base_lr by about 4x with it) */
+    static final boolean PRIORITIZED_REPLAY = false;
+    /** How many minibatches to prepare ahead on a background thread (0 to sample them on the learner thread) */
+    static final int PREFETCH_DEPTH = 1;
     static int maxHistoryLength = 4;
     static int frameSkip = 4;
 
@@ -42,12 +60,12 @@ public class DQNTrainer extends TrainingHelper {
 
 
 
-    protected FrameExperienceMemory trainingMemory;
-    protected FrameExperienceMemory testMemory;
+    protected ColumnarFrameExperienceMemory trainingMemory;
+    protected ColumnarFrameExperienceMemory testMemory;
 
     public DQNTrainer(DeepQLearner learner, DQN vfa, Policy testPolicy, ActionSet actionSet, Environment env,
-                      FrameExperienceMemory trainingMemory,
-                      FrameExperienceMemory testMemory) {
+                      ColumnarFrameExperienceMemory trainingMemory,
+                      ColumnarFrameExperienceMemory testMemory) {
         super(learner, vfa, testPolicy, actionSet, env);
 
         this.trainingMemory = trainingMemory;
@@ -74,7 +92,11 @@ public class DQNTrainer extends TrainingHelper {
         vfa.stateConverter = testMemory;
     }
 
-    public static void main(String[] args) {
+    static PreProcessor createPreProcessor() {
+        return GUI ? new DQNPreProcessor() : new FusedDQNPreProcessor();
+    }
+
+    public static void main(String[] args) throws IOException {
 
         Loader.load(Caffe.class);
 
@@ -83,15 +105,36 @@ public class DQNTrainer extends TrainingHelper {
         ALEDomainGenerator domGen = new ALEDomainGenerator(actionSet);
         SADomain domain = domGen.generateDomain();
 
-        FrameExperienceMemory trainingExperienceMemory = new FrameExperienceMemory(experienceMemoryLength, maxHistoryLength, new DQNPreProcessor(), actionSet);
-        ALEEnvironment env = new ALEEnvironment(domain, trainingExperienceMemory, ROM, frameSkip, GUI);
+        // The network only sees luminance, so skip decoding the color screen altogether.
+        // Without a GUI to show the screen, go further and preprocess straight from the palette indices.
+        // With a subprocess, decoding runs on the driver's own I/O thread, overlapped with the emulator.
+        ALEBackend io = IN_PROCESS_ALE ? new NativeALEDriver(ROM, frameSkip) : new PipelinedALEDriver(ROM, frameSkip);
+        if (GUI) {
+            io.setScreenType(ALEDriver.ScreenType.SCREEN_TYPE_GRAY);
+        } else {
+            io.setScreenType(ALEDriver.ScreenType.SCREEN_TYPE_PALETTE_PAIR);
+        }
+
+        ColumnarFrameExperienceMemory trainingExperienceMemory;
+        if (PRIORITIZED_REPLAY) {
+            PrioritizedFrameExperienceMemory prioritizedMemory = REPLAY_DIRECTORY == null ?
+                    new PrioritizedFrameExperienceMemory(experienceMemoryLength, maxHistoryLength, createPreProcessor(), actionSet) :
+                    new PrioritizedFrameExperienceMemory(experienceMemoryLength, maxHistoryLength, createPreProcessor(), actionSet, false, new File(REPLAY_DIRECTORY));
+            prioritizedMemory.annealBeta(0.4, 50000000);
+            trainingExperienceMemory = prioritizedMemory;
+        } else {
+            trainingExperienceMemory = REPLAY_DIRECTORY == null ?
+                    new ColumnarFrameExperienceMemory(experienceMemoryLength, maxHistoryLength, createPreProcessor(), actionSet) :
+                    new ColumnarFrameExperienceMemory(experienceMemoryLength, maxHistoryLength, createPreProcessor(), actionSet, false, new File(REPLAY_DIRECTORY));
+        }
+        ALEEnvironment env = new ALEEnvironment(domain, trainingExperienceMemory, io, GUI);
         if (TERMINATE_ON_END_LIFE) {
             env.training = true;
         } else {
             env.training = false;
         }
 
-        FrameExperienceMemory testExperienceMemory = new FrameExperienceMemory(10000, maxHistoryLength, new DQNPreProcessor(), actionSet);
+        ColumnarFrameExperienceMemory testExperienceMemory = new ColumnarFrameExperienceMemory(10000, maxHistoryLength, createPreProcessor(), actionSet);
 
         DQN dqn = new DQN(SOLVER_FILE, actionSet, trainingExperienceMemory, gamma);
         Policy policy = new AnnealedEpsilonGreedy(dqn, epsilonStart, epsilonEnd, epsilonAnnealDuration);
@@ -99,8 +142,11 @@ public class DQNTrainer extends TrainingHelper {
 
         DeepQLearner deepQLearner = new DeepQLearner(domain, gamma, 50000, policy, dqn);
         deepQLearner.setExperienceReplay(trainingExperienceMemory, dqn.batchSize);
+        if (PREFETCH_DEPTH > 0) {
+            deepQLearner.prefetchMinibatches(PREFETCH_DEPTH);
+        }
 
-        Policy testPolicy = new EpsilonGreedy(dqn, 0.05);
+        Policy testPolicy = new ActionValuesEpsilonGreedy(dqn, 0.05);
 
         // setup helper
         TrainingHelper helper = new DQNTrainer(deepQLearner, dqn, testPolicy, actionSet, env, trainingExperienceMemory, testExperienceMemory);
@@ -108,10 +154,11 @@ public class DQNTrainer extends TrainingHelper {
         helper.setTestInterval(250000); // TODO: 250000
         helper.setTotalTestSteps(125000); // TODO: 125000
         helper.setMaxEpisodeFrames(100000);
-        helper.enableSnapshots("networks/dqn/breakout", 5000000); // TODO: 5000000
+        helper.enableAsyncSnapshots("networks/dqn/breakout", 5000000, trainingExperienceMemory); // TODO: 5000000
         helper.recordResultsTo("results/seaquest");
 
 //        helper.loadLearningState("networks/dqn/breakout", "_iter_6928650.solverstate");
+//        helper.loadCheckpoint("networks/dqn/breakout");
 
         // run helper
         helper.run();
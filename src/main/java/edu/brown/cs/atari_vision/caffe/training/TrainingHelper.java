@@ -13,6 +13,7 @@ import burlap.mdp.singleagent.environment.EnvironmentOutcome;
 import edu.brown.cs.atari_vision.ale.burlap.ALEEnvironment;
 import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
 import edu.brown.cs.atari_vision.caffe.LearnWithData2;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
 import edu.brown.cs.atari_vision.caffe.learners.DeepQLearner;
 import edu.brown.cs.atari_vision.caffe.vfa.DQN;
 
@@ -46,11 +47,15 @@ public abstract class TrainingHelper {
     int maxEpisodeFrames = -1;
     int totalTrainingFrames = 10000000;
 
+    /** Training episodes start with a random number of no-ops, up to this many */
+    int maxStartNoops = 31;
+
     int testInterval = 100000;
     int totalTestSteps = 10;
 
     String snapshotPrefix;
     int snapshotInterval = -1;
+    AsyncCheckpointer checkpointer;
 
     int frameCounter;
     int episodeCounter;
@@ -74,6 +79,10 @@ public abstract class TrainingHelper {
 
         this.frameCounter = 0;
         this.episodeCounter = 0;
+
+        if (env instanceof ALEEnvironment) {
+            ((ALEEnvironment) env).enableStartStateCache(maxStartNoops);
+        }
     }
 
     public abstract void prepareForTraining();
@@ -100,6 +109,12 @@ public abstract class TrainingHelper {
         this.snapshotInterval = snapshotInterval;
     }
 
+    /** Like {@link #enableSnapshots}, but writes the snapshots in the background while training goes on */
+    public void enableAsyncSnapshots(String snapshotPrefix, int snapshotInterval, ColumnarFrameExperienceMemory memory) {
+        enableSnapshots(snapshotPrefix, snapshotInterval);
+        this.checkpointer = new AsyncCheckpointer(snapshotPrefix, vfa.caffeSolver, memory);
+    }
+
     public void recordResultsTo(String resultsPrefix) {
         File dir = new File(resultsPrefix);
         if (!dir.exists() && !dir.mkdirs()) {
@@ -127,10 +142,7 @@ public abstract class TrainingHelper {
             System.out.println(String.format("Training Episode %d at frame %d", episodeCounter, frameCounter));
 
             prepareForTraining();
-            env.resetEnvironment();
-            for (int i = rng.nextInt(32); i >= 1; i--) {
-                ((ALEEnvironment) env).io.act(0);
-            }
+            ((ALEEnvironment) env).resetEnvironment(rng.nextInt(maxStartNoops + 1));
 
             long startTime = System.currentTimeMillis();
             Episode ea = learner.runLearningEpisode(env, Math.min(totalTrainingFrames - frameCounter, maxEpisodeFrames));
@@ -142,6 +154,10 @@ public abstract class TrainingHelper {
                 totalReward += r;
             }
             System.out.println(String.format("Episode reward: %.2f -- %.1ffps", totalReward, ea.numTimeSteps()/timeInterval));
+            if (learner.prefetcher != null && learner.prefetcher.minibatchesTaken() > 0) {
+                System.out.println(learner.prefetcher);
+                learner.prefetcher.resetStats();
+            }
             System.out.println();
 
             frameCounter += ea.numTimeSteps();
@@ -149,7 +165,11 @@ public abstract class TrainingHelper {
             if (snapshotPrefix != null) {
                 snapshotCountDown -= ea.numTimeSteps();
                 if (snapshotCountDown <= 0) {
-                    saveLearningState(snapshotPrefix);
+                    if (checkpointer != null) {
+                        checkpointer.checkpoint(trainerData());
+                    } else {
+                        saveLearningState(snapshotPrefix);
+                    }
                     snapshotCountDown += snapshotInterval;
                 }
             }
@@ -161,6 +181,11 @@ public abstract class TrainingHelper {
             }
         }
 
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+        }
+        learner.stopPrefetching();
+
         System.out.println("Done Training!");
     }
 
@@ -276,11 +301,8 @@ public abstract class TrainingHelper {
     public void saveLearningState(String filePrefix) {
 
         String trainerDataFilename = filePrefix + "_trainer.data";
-        HashMap<String, Object> trainerData = new HashMap<>();
-        trainerData.put("frameCounter", frameCounter);
-        trainerData.put("episodeCounter", episodeCounter);
         try (ObjectOutputStream objOut = new ObjectOutputStream(new FileOutputStream(trainerDataFilename))) {
-            objOut.writeObject(trainerData);
+            objOut.writeObject(trainerData());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -288,9 +310,45 @@ public abstract class TrainingHelper {
         vfa.saveLearningState(filePrefix);
     }
 
+    protected HashMap<String, Object> trainerData() {
+        HashMap<String, Object> trainerData = new HashMap<>();
+        trainerData.put("frameCounter", frameCounter);
+        trainerData.put("episodeCounter", episodeCounter);
+        return trainerData;
+    }
+
     public void loadLearningState(String filePrefix, String solverStateFile) {
 
-        String trainerDataFilename = filePrefix + "_trainer.data";
+        loadTrainerData(filePrefix + "_trainer.data");
+
+        vfa.loadLearningState(filePrefix, solverStateFile);
+
+        learner.restartFrom(this.frameCounter);
+    }
+
+    /** Loads the last checkpoint written by {@link #enableAsyncSnapshots} under the prefix */
+    public void loadCheckpoint(String snapshotPrefix) {
+        AsyncCheckpointer.Checkpoint checkpoint;
+        try {
+            checkpoint = AsyncCheckpointer.latest(snapshotPrefix);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (checkpoint == null) {
+            System.out.println("No checkpoint to load at " + snapshotPrefix);
+            return;
+        }
+
+        loadTrainerData(checkpoint.trainerDataFile().getPath());
+
+        vfa.caffeSolver.Restore(checkpoint.solverStateFile().getPath());
+        vfa.stateConverter.loadMemoryState(checkpoint.replayPrefix());
+
+        learner.restartFrom(this.frameCounter);
+    }
+
+    protected void loadTrainerData(String trainerDataFilename) {
         try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(trainerDataFilename))) {
             HashMap<String, Object> trainerData = (HashMap<String, Object>) objIn.readObject();
 
@@ -301,9 +359,5 @@ public abstract class TrainingHelper {
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
-
-        vfa.loadLearningState(filePrefix, solverStateFile);
-
-        learner.restartFrom(this.frameCounter);
     }
 }
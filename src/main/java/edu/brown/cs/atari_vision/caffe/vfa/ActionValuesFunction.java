@@ -0,0 +1,20 @@
+package edu.brown.cs.atari_vision.caffe.vfa;
+
+import burlap.mdp.core.state.State;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+
+/**
+ * A Q-function that evaluates every action of its action set at once, such as a network with an output per action,
+ * so that the Q-values of a state cost one evaluation rather than one per action.
+ */
+public interface ActionValuesFunction {
+
+    /** The actions whose Q-values are evaluated, in the order they are written */
+    ActionSet getActionSet();
+
+    /**
+     * Writes the Q-value of every action in the state to qs, indexed by the action's id in the action set, and
+     * returns qs.
+     */
+    float[] actionValues(State state, float[] qs);
+}
@@ -0,0 +1,25 @@
+package edu.brown.cs.atari_vision.caffe.vfa;
+
+import burlap.mdp.core.state.State;
+
+/**
+ * An {@link ActionValuesFunction} that evaluates several states at once, such as a network with a batch of inputs,
+ * so that the Q-values of up to {@link #maxBatchSize()} states cost one evaluation.
+ */
+public interface BatchActionValuesFunction extends ActionValuesFunction {
+
+    /** The number of states one evaluation takes */
+    int maxBatchSize();
+
+    /**
+     * Writes the Q-values of the first n states to qs, the Q-values of state i starting at i times the number of
+     * actions, evaluating maxBatchSize states at a time.
+     */
+    void actionValues(State[] states, int n, float[] qs);
+
+    /**
+     * Prepares the calling thread to evaluate states, such as by setting the mode and device a Caffe network runs in,
+     * which Caffe keeps per thread. A thread other than the one that built the function calls this before evaluating.
+     */
+    void bindThread();
+}
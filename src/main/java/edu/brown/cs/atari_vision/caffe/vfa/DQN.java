@@ -12,6 +12,7 @@ import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
 import edu.brown.cs.atari_vision.ale.screen.ScreenConverter;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameExperienceMemory;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
 import edu.brown.cs.atari_vision.caffe.visualizers.PongVisualizer;
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.FloatPointer;
@@ -34,7 +35,7 @@ import java.util.List;
 /**
  * Created by MelRod on 5/25/16.
  */
-public class DQN implements ParametricFunction.ParametricStateActionFunction, QProvider, Serializable {
+public class DQN implements ParametricFunction.ParametricStateActionFunction, QProvider, BatchActionValuesFunction, Serializable {
 
 //    static JFrame pongVisualizer = PongVisualizer.createPongVisualizer();
 
@@ -44,9 +45,15 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
     /** The GPU device to use */
     public int gpuDevice = 0;
 
+    /** Whether the solver runs on the GPU */
+    public boolean useGPU;
+
     /** The batch size of the network */
     public int batchSize;
 
+    /** The batch size of the inference network that states are evaluated with when acting */
+    public int inferenceBatchSize = 1;
+
     /** The input size of a single state */
     public int inputSize;
 
@@ -62,6 +69,12 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
     /** The name of the action filter input layer in the Caffe net */
     public String filterInputLayerName = "filter_input_layer";
 
+    /**
+     * The name of the sample weight input layer in the Caffe net. A net with this layer computes the clipped TD error
+     * loss itself, from the unclipped targets and the weights (see {@link #lossInGraph}).
+     */
+    public String weightInputLayerName = "weight_input_layer";
+
     /** The name of the q-value output blob in the Caffe net */
     public String qValuesBlobName = "q_values";
 
@@ -79,14 +92,56 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
     protected FloatMemoryDataLayer inputLayer;
     protected FloatMemoryDataLayer filterLayer;
     protected FloatMemoryDataLayer targetLayer;
+    protected FloatMemoryDataLayer weightLayer;
+
+    /**
+     * Whether the net clips the TD error in its loss and scales it by the sample weights, so that an update only
+     * forwards the states once, in the solver step. Otherwise the states are forwarded once more beforehand, to clip
+     * the targets to within 1 of their Q-values.
+     */
+    public boolean lossInGraph;
 
     public FloatPointer stateInputs;
     public FloatPointer primeStateInputs;
     public FloatPointer dummyInputData;
+
+    /** The sample weights of an unweighted minibatch */
+    protected FloatPointer unitWeights;
+
+    /** The buffers of the target stage of an update */
+    protected TDTargets tdTargets;
     public FloatBlob qValuesBlob;
 
+    /**
+     * A forward-only copy of the network at the inference batch size, sharing the training network's weights. Its
+     * inputs and outputs are used by one evaluation at a time: the evaluation methods hold the DQN's lock, and
+     * qValuesForState and qValuesForInferenceInputs must be called holding it too.
+     */
+    public FloatNet inferenceNet;
+
+    protected FloatMemoryDataLayer inferenceInputLayer;
+    protected FloatMemoryDataLayer inferenceFilterLayer;
+    protected FloatMemoryDataLayer inferenceTargetLayer;
+    protected FloatMemoryDataLayer inferenceWeightLayer;
+
+    public FloatPointer inferenceInputs;
+    protected FloatPointer inferenceDummyData;
+    public FloatBlob inferenceQValuesBlob;
+
+    /** The samples of {@link #updateQFunction(List, DQN, float[], float[])}, over stateInputs and primeStateInputs */
+    protected Minibatch sampleBatch;
+
     public DQN(String caffeSolverFile, ActionSet actionSet, NNStateConverter stateConverter, double gamma) {
+        this(caffeSolverFile, actionSet, stateConverter, gamma, 1);
+    }
+
+    /**
+     * Builds the network of the solver file, and an inference network that evaluates inferenceBatchSize states at a
+     * time when acting.
+     */
+    public DQN(String caffeSolverFile, ActionSet actionSet, NNStateConverter stateConverter, double gamma, int inferenceBatchSize) {
         this.solverFile = caffeSolverFile;
+        this.inferenceBatchSize = inferenceBatchSize;
         this.actionSet = actionSet;
         this.stateConverter = stateConverter;
         this.gamma = gamma;
@@ -101,11 +156,13 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
         this.stateConverter = vfa.stateConverter;
         this.gamma = vfa.gamma;
         this.inputSize = vfa.inputSize;
+        this.inferenceBatchSize = vfa.inferenceBatchSize;
 
         this.solverFile = vfa.solverFile;
         this.stateInputLayerName = vfa.stateInputLayerName;
         this.targetInputLayerName = vfa.targetInputLayerName;
         this.filterInputLayerName = vfa.filterInputLayerName;
+        this.weightInputLayerName = vfa.weightInputLayerName;
         this.qValuesBlobName = vfa.qValuesBlobName;
 
         constructNetwork();
@@ -116,12 +173,8 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
         SolverParameter solver_param = new SolverParameter();
         ReadProtoFromTextFileOrDie(solverFile, solver_param);
 
-        if (solver_param.solver_mode() == SolverParameter_SolverMode_GPU) {
-            Caffe.set_mode(Caffe.GPU);
-            Caffe.SetDevice(gpuDevice);
-        } else {
-            Caffe.set_mode(Caffe.CPU);
-        }
+        this.useGPU = solver_param.solver_mode() == SolverParameter_SolverMode_GPU;
+        bindThread();
 
         // construct the solver and network from file
         this.caffeSolver = new FloatRMSPropSolver(solver_param);
@@ -131,6 +184,10 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
         this.inputLayer = new FloatMemoryDataLayer(caffeNet.layer_by_name(stateInputLayerName));
         this.filterLayer = new FloatMemoryDataLayer(caffeNet.layer_by_name(filterInputLayerName));
         this.targetLayer = new FloatMemoryDataLayer(caffeNet.layer_by_name(targetInputLayerName));
+        this.lossInGraph = caffeNet.has_layer(weightInputLayerName);
+        if (lossInGraph) {
+            this.weightLayer = new FloatMemoryDataLayer(caffeNet.layer_by_name(weightInputLayerName));
+        }
 
         // set local variables from network
         this.batchSize = inputLayer.batch_size();
@@ -140,19 +197,88 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
         this.primeStateInputs = (new FloatPointer(batchSize * inputSize)).fill(0);
         this.stateInputs = (new FloatPointer(batchSize * inputSize)).fill(0);
         this.dummyInputData = (new FloatPointer(batchSize * inputSize)).fill(0);
+        this.unitWeights = new FloatPointer(batchSize * actionSet.size());
+        for (int i = 0; i < batchSize * actionSet.size(); i++) {
+            unitWeights.put(i, 1);
+        }
+        this.tdTargets = new TDTargets(batchSize, actionSet.size());
 
         // set the qValues blob
         this.qValuesBlob = caffeNet.blob_by_name(qValuesBlobName);
+
+        constructInferenceNetwork(solver_param);
+    }
+
+    /**
+     * Sets the calling thread to run Caffe in the solver's mode and on gpuDevice. Caffe keeps these per thread, and a
+     * thread left in CPU mode would copy the weights back from the GPU on every forward pass.
+     */
+    @Override
+    public void bindThread() {
+        if (useGPU) {
+            Caffe.set_mode(Caffe.GPU);
+            Caffe.SetDevice(gpuDevice);
+        } else {
+            Caffe.set_mode(Caffe.CPU);
+        }
+    }
+
+    /**
+     * Builds the inference network from the solver's network definition with the batch size of its input layers
+     * set to inferenceBatchSize, and shares the weights of the training network with it, so that updates to the
+     * training network need not be copied over.
+     */
+    protected void constructInferenceNetwork(SolverParameter solver_param) {
+        NetParameter net_param = new NetParameter();
+        if (solver_param.has_net_param()) {
+            net_param.CopyFrom(solver_param.net_param());
+        } else {
+            ReadNetParamsFromTextFileOrDie(solver_param.net().getString(), net_param);
+        }
+        net_param.mutable_state().set_phase(TEST);
+        for (int i = 0; i < net_param.layer_size(); i++) {
+            LayerParameter layer_param = net_param.mutable_layer(i);
+            if (layer_param.has_memory_data_param()) {
+                layer_param.mutable_memory_data_param().set_batch_size(inferenceBatchSize);
+            }
+        }
+
+        this.inferenceNet = new FloatNet(net_param);
+        inferenceNet.ShareTrainedLayersWith(caffeNet);
+
+        this.inferenceInputLayer = new FloatMemoryDataLayer(inferenceNet.layer_by_name(stateInputLayerName));
+        this.inferenceFilterLayer = new FloatMemoryDataLayer(inferenceNet.layer_by_name(filterInputLayerName));
+        this.inferenceTargetLayer = new FloatMemoryDataLayer(inferenceNet.layer_by_name(targetInputLayerName));
+        if (lossInGraph) {
+            this.inferenceWeightLayer = new FloatMemoryDataLayer(inferenceNet.layer_by_name(weightInputLayerName));
+        }
+
+        this.inferenceInputs = (new FloatPointer(inferenceBatchSize * inputSize)).fill(0);
+        this.inferenceDummyData = (new FloatPointer(inferenceBatchSize * inputSize)).fill(0);
+
+        this.inferenceQValuesBlob = inferenceNet.blob_by_name(qValuesBlobName);
     }
 
     public void updateQFunction(List<EnvironmentOutcome> samples, DQN staleVfa) {
+        updateQFunction(samples, staleVfa, null, null);
+    }
+
+    /**
+     * Updates toward the targets of the samples, scaling each sample's clipped TD error by its importance sampling
+     * weight if weights are given. If tdErrors is given, the unclipped TD errors are written to it. Returns false
+     * if there were too few samples to update.
+     */
+    public boolean updateQFunction(List<EnvironmentOutcome> samples, DQN staleVfa, float[] weights, float[] tdErrors) {
         int sampleSize = samples.size();
         if (sampleSize < batchSize) {
-            return;
+            return false;
         }
 
-        // Fill in input arrays
-        for (int i = 0; i < sampleSize; i++) {
+        // Fill in the minibatch
+        if (sampleBatch == null) {
+            sampleBatch = new Minibatch(batchSize, inputSize, stateInputs, primeStateInputs);
+        }
+        for (int i = 0; i < batchSize; i++) {
             EnvironmentOutcome eo = samples.get(i);
 
             int pos = i * inputSize;
@@ -161,55 +287,56 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
             if (eo.op != null) {
                 stateConverter.getStateInput(eo.op, primeStateInputs.position(pos));
             }
-        }
 
-        // Forward pass states
-        staleVfa.inputDataIntoLayers(primeStateInputs.position(0), dummyInputData, dummyInputData);
-        staleVfa.caffeNet.ForwardPrefilled();
-        // For getting the values for clipping
-        inputDataIntoLayers(stateInputs.position(0), dummyInputData, dummyInputData);
-        caffeNet.ForwardPrefilled();
-
-        // Calculate target values
-        int numActions = actionSet.size();
-        FloatPointer ys = (new FloatPointer(sampleSize * numActions)).zero();
-        FloatPointer actionFilter = (new FloatPointer(sampleSize * numActions)).zero();
-        for (int i = 0; i < sampleSize; i++) {
-            EnvironmentOutcome eo = samples.get(i);
-            float maxQ = blobMax(staleVfa.qValuesBlob, i);
-
-            // clip reward
-            double r = eo.r;
-            if (r > REWARD_CLIP) {
-                r = REWARD_CLIP;
-            } else if (r < -REWARD_CLIP) {
-                r = -REWARD_CLIP;
+            sampleBatch.actions[i] = actionSet.map(eo.a.actionName());
+            sampleBatch.rewards[i] = (float)eo.r;
+            sampleBatch.terminals[i] = eo.terminated;
+            if (weights != null) {
+                sampleBatch.weights[i] = weights[i];
             }
+        }
+        sampleBatch.size = batchSize;
+        sampleBatch.weighted = weights != null;
 
-            float y;
-            if (eo.terminated) {
-                y = (float)r;
-            } else {
-                y = (float)(r + gamma*maxQ);
-            }
+        return updateQFunction(sampleBatch, staleVfa, tdErrors);
+    }
 
-            int a = actionSet.map(eo.a.actionName());
-            int index = i*numActions + a;
+    /**
+     * Updates toward the targets of the minibatch, which must be full, scaling each sample's clipped TD error by its
+     * importance sampling weight if the minibatch is weighted. If tdErrors is given, the unclipped TD errors are
+     * written to it. Returns false if the minibatch holds too few samples to update.
+     */
+    public boolean updateQFunction(Minibatch batch, DQN staleVfa, float[] tdErrors) {
+        int sampleSize = batch.size;
+        if (sampleSize < batchSize) {
+            return false;
+        }
 
-            float q = qValuesBlob.data_at(i, a, 0, 0);
-            float delta_clip = 1;
-            if (y - q > delta_clip) {
-                y = q + delta_clip;
-            } else if (y - q < -delta_clip) {
-                y = q - delta_clip;
-            }
-            ys.put(index, y);
-            actionFilter.put(index, 1);
+        // Forward pass states
+        staleVfa.inputDataIntoLayers(batch.primeStateInputs.position(0), dummyInputData, dummyInputData);
+        staleVfa.caffeNet.ForwardPrefilled();
+        tdTargets.readNextQValues(staleVfa.qValuesBlob);
+        if (!lossInGraph) {
+            // For getting the values for clipping
+            inputDataIntoLayers(batch.stateInputs.position(0), dummyInputData, dummyInputData);
+            caffeNet.ForwardPrefilled();
+            tdTargets.readQValues(qValuesBlob);
         }
 
+        // Calculate target values, which the net clips itself if it computes the loss
+        tdTargets.compute(batch, gamma, !lossInGraph, tdErrors);
+
         // Backprop
-        inputDataIntoLayers(stateInputs.position(0), actionFilter, ys);
+        inputDataIntoLayers(batch.stateInputs.position(0), tdTargets.filterData, tdTargets.targetData, tdTargets.weightData);
         caffeSolver.Step(1);
+
+        if (lossInGraph && tdErrors != null) {
+            // the step forwarded the states before updating, so its Q-values are the ones the TD errors are of
+            tdTargets.readQValues(qValuesBlob);
+            tdTargets.tdErrors(batch, tdErrors);
+        }
+
+        return true;
     }
 
     public float blobMax(FloatBlob blob, int n) {
@@ -231,30 +358,80 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
         }
     }
 
+    /**
+     * Evaluates the state with the inference network, whose Q-values blob holds the state's Q-values first until the
+     * next evaluation. Callers hold the DQN's lock.
+     */
     public FloatBlob qValuesForState(State state) {
-        stateConverter.getStateInput(state, stateInputs.position(0));
-        inputDataIntoLayers(stateInputs, dummyInputData, dummyInputData);
-        caffeNet.ForwardPrefilled();
-        return qValuesBlob;
+        stateConverter.getStateInput(state, inferenceInputs.position(0));
+        return qValuesForInferenceInputs();
+    }
+
+    /**
+     * Evaluates the states in inferenceInputs with the inference network, returning its Q-values blob. Callers hold
+     * the DQN's lock.
+     */
+    public FloatBlob qValuesForInferenceInputs() {
+        inferenceInputLayer.Reset(inferenceInputs.position(0), inferenceDummyData, inferenceBatchSize);
+        inferenceFilterLayer.Reset(inferenceDummyData, inferenceDummyData, inferenceBatchSize);
+        inferenceTargetLayer.Reset(inferenceDummyData, inferenceDummyData, inferenceBatchSize);
+        if (inferenceWeightLayer != null) {
+            inferenceWeightLayer.Reset(inferenceDummyData, inferenceDummyData, inferenceBatchSize);
+        }
+        inferenceNet.ForwardPrefilled();
+        return inferenceQValuesBlob;
     }
 
     @Override
-    public double evaluate(State state, Action abstractGroundedAction) {
+    public synchronized double evaluate(State state, Action abstractGroundedAction) {
         FloatBlob output = qValuesForState(state);
 
         int action = actionSet.map(abstractGroundedAction.actionName());
         return output.data_at(0,action,0,0);
     }
 
+    /** Reads every action's Q-value from one forward pass of the state */
+    @Override
+    public synchronized float[] actionValues(State state, float[] qs) {
+        FloatBlob qValues = qValuesForState(state);
+
+        // the state is the first of the batch, so its Q-values are the first of the blob
+        qValues.cpu_data().get(qs, 0, actionSet.size());
+        return qs;
+    }
+
+    /** Evaluates the states inferenceBatchSize at a time with the inference network */
+    @Override
+    public synchronized void actionValues(State[] states, int n, float[] qs) {
+        int numActions = actionSet.size();
+        for (int first = 0; first < n; first += inferenceBatchSize) {
+            int batch = Math.min(n - first, inferenceBatchSize);
+            for (int k = 0; k < batch; k++) {
+                stateConverter.getStateInput(states[first + k], inferenceInputs.position(k * inputSize));
+            }
+            qValuesForInferenceInputs().cpu_data().get(qs, first * numActions, batch * numActions);
+        }
+    }
+
+    @Override
+    public int maxBatchSize() {
+        return inferenceBatchSize;
+    }
+
+    @Override
+    public ActionSet getActionSet() {
+        return actionSet;
+    }
+
     @Override
     public List<QValue> qValues(State state) {
 
-        FloatBlob qValues = qValuesForState(state);
         int numActions = actionSet.size();
+        float[] qs = actionValues(state, new float[numActions]);
 
         ArrayList<QValue> qValueList = new ArrayList<>(numActions);
         for (int a = 0; a < numActions; a++) {
-            QValue q = new QValue(state, new SimpleAction(actionSet.get(a)), qValues.data_at(0, a, 0, 0));
+            QValue q = new QValue(state, new SimpleAction(actionSet.get(a)), qs[a]);
             qValueList.add(q);
         }
 
@@ -271,18 +448,26 @@ public class DQN implements ParametricFunction.ParametricStateActionFunction, QP
 
     @Override
     public double value(State s) {
-        List<QValue> qs = this.qValues(s);
-        double max = Double.NEGATIVE_INFINITY;
-        for(QValue q : qs){
-            max = Math.max(max, q.q);
+        float[] qs = actionValues(s, new float[actionSet.size()]);
+        float max = Float.NEGATIVE_INFINITY;
+        for (float q : qs) {
+            max = Math.max(max, q);
         }
         return max;
     }
 
     public void inputDataIntoLayers(FloatPointer inputData, FloatPointer filterData, FloatPointer yData) {
+        inputDataIntoLayers(inputData, filterData, yData, unitWeights);
+    }
+
+    /** Also sets the sample weights, if the net computes its loss from them */
+    public void inputDataIntoLayers(FloatPointer inputData, FloatPointer filterData, FloatPointer yData, FloatPointer weightData) {
         inputLayer.Reset(inputData, dummyInputData, batchSize);
         filterLayer.Reset(filterData, dummyInputData, batchSize);
         targetLayer.Reset(yData, dummyInputData, batchSize);
+        if (weightLayer != null) {
+            weightLayer.Reset(weightData, dummyInputData, batchSize);
+        }
     }
 
     /** Saves the experience memory, caffe solver state and weights, and metadata to disk */
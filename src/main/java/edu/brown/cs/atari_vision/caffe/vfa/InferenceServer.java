@@ -0,0 +1,389 @@
+package edu.brown.cs.atari_vision.caffe.vfa;
+
+import burlap.behavior.valuefunction.QProvider;
+import burlap.behavior.valuefunction.QValue;
+import burlap.mdp.core.action.Action;
+import burlap.mdp.core.state.State;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Evaluates the states of many concurrent actors in batches on one network. Actors submit states, such as the
+ * {@link edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState} handles of their streams, and get
+ * futures of their Q-values back. A single worker thread takes the oldest waiting state, collects more until it has
+ * a full batch or the oldest state has waited maxLatency, evaluates them in one forward pass and hands every actor
+ * its Q-values.
+ *
+ * States are converted to network inputs on the worker thread, so the memory a state's frames are in must allow
+ * reads from another thread (see {@link edu.brown.cs.atari_vision.caffe.experiencereplay.MinibatchMemory#enableConcurrentReads()}).
+ * An actor waiting on its Q-values adds no frames, so the frames of its own state are not overwritten meanwhile.
+ *
+ * The worker owns the function's evaluations: it binds itself with {@link BatchActionValuesFunction#bindThread()},
+ * so a {@link DQN} runs its forward passes in the solver's mode and on its device, and while the server runs actors
+ * should evaluate states through it rather than through the function. A DQN holds its lock while evaluating, so an
+ * evaluation made directly on it waits for the worker's batch rather than overwriting its inputs. The DQN's
+ * inference network shares the training network's weights, so with training on another thread a batch may be
+ * evaluated with weights partway through an update.
+ *
+ * The server is also an {@link ActionValuesFunction} and {@link QProvider} that waits for the Q-values of a state,
+ * so an actor's policy can be built on it directly. The server reports how full its batches are and how long states
+ * waited before being evaluated, to tune maxLatency between throughput and action latency.
+ */
+public class InferenceServer implements ActionValuesFunction, QProvider {
+
+    /** The Q-values of a submitted state, set by the worker */
+    protected static class Request implements Future<float[]> {
+
+        protected final State state;
+        protected final long submitted;
+        protected final CountDownLatch done = new CountDownLatch(1);
+
+        protected float[] qs;
+        protected Throwable failure;
+
+        protected Request(State state) {
+            this.state = state;
+            this.submitted = System.nanoTime();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public float[] get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public float[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        protected float[] result() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return qs;
+        }
+    }
+
+    protected final BatchActionValuesFunction function;
+    protected final int batchSize;
+    protected final int numActions;
+    protected final long maxLatencyNanos;
+
+    protected final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    /** The requests of the batch being evaluated, and their states and Q-values */
+    protected final List<Request> pending;
+    protected final State[] states;
+    protected final float[] batchQs;
+
+    protected Thread worker;
+    protected volatile boolean running;
+
+    /** What the worker died of, after which the server fails every submit */
+    protected volatile Throwable failure;
+
+    /** Batches evaluated, the states in them, and the total time states waited before being evaluated */
+    protected long batches;
+    protected long evaluated;
+    protected long queueNanos;
+    protected long maxQueueNanos;
+
+    /** Evaluates states in the function's full batches, waiting at most maxLatencyMillis to fill one */
+    public InferenceServer(BatchActionValuesFunction function, double maxLatencyMillis) {
+        this.function = function;
+        this.batchSize = function.maxBatchSize();
+        this.numActions = function.getActionSet().size();
+        this.maxLatencyNanos = (long)(maxLatencyMillis * 1e6);
+
+        this.pending = new ArrayList<>(batchSize);
+        this.states = new State[batchSize];
+        this.batchQs = new float[batchSize * numActions];
+    }
+
+    /** Starts the worker, which submit does if it has not been started. Throws if the worker died. */
+    public synchronized void start() {
+        if (failure != null) {
+            throw new IllegalStateException("The inference server failed", failure);
+        }
+        if (worker != null) {
+            return;
+        }
+
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "inference-server");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Queues the state to be evaluated in the next batch, returning the future of its Q-values, indexed by action id */
+    public Future<float[]> submit(State state) {
+        start();
+        Request request = new Request(state);
+        queue.add(request);
+        if (failure != null) {
+            // the worker died after start, and may have failed the waiting requests before this one was queued
+            failQueued(new IllegalStateException("The inference server failed", failure));
+        }
+        return request;
+    }
+
+    protected void serve() {
+        try {
+            function.bindThread();
+            while (running) {
+                collectBatch();
+                evaluateBatch();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            synchronized (this) {
+                running = false;
+                if (worker == Thread.currentThread()) {
+                    worker = null;
+                }
+            }
+            failWaiting(failure != null ? new IllegalStateException("The inference server failed", failure) :
+                    new IllegalStateException("The inference server was stopped"));
+        }
+    }
+
+    /** Waits for a state, then for more until the batch is full or the first has waited maxLatency */
+    protected void collectBatch() throws InterruptedException {
+        Request first = queue.take();
+        pending.add(first);
+
+        long deadline = first.submitted + maxLatencyNanos;
+        while (pending.size() < batchSize) {
+            if (queue.drainTo(pending, batchSize - pending.size()) > 0) {
+                continue;
+            }
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            pending.add(next);
+        }
+    }
+
+    /** Evaluates the collected states in one forward pass and hands each request its Q-values */
+    protected void evaluateBatch() {
+        int n = pending.size();
+        long start = System.nanoTime();
+        long waited = 0;
+        long maxWaited = 0;
+        for (int k = 0; k < n; k++) {
+            Request request = pending.get(k);
+            states[k] = request.state;
+            waited += start - request.submitted;
+            maxWaited = Math.max(maxWaited, start - request.submitted);
+        }
+
+        try {
+            function.actionValues(states, n, batchQs);
+            for (int k = 0; k < n; k++) {
+                float[] qs = new float[numActions];
+                System.arraycopy(batchQs, k * numActions, qs, 0, numActions);
+                pending.get(k).qs = qs;
+            }
+        } catch (RuntimeException e) {
+            for (int k = 0; k < n; k++) {
+                pending.get(k).failure = e;
+            }
+        }
+
+        synchronized (this) {
+            batches++;
+            evaluated += n;
+            queueNanos += waited;
+            maxQueueNanos = Math.max(maxQueueNanos, maxWaited);
+        }
+
+        for (int k = 0; k < n; k++) {
+            pending.get(k).done.countDown();
+            states[k] = null;
+        }
+        pending.clear();
+    }
+
+    /** Fails the requests of an unfinished batch and any still queued. Only the worker, or a stop once it ended, calls this */
+    protected void failWaiting(Throwable failure) {
+        for (Request request : pending) {
+            fail(request, failure);
+        }
+        pending.clear();
+        failQueued(failure);
+    }
+
+    /** Fails the requests still queued, which any thread can do */
+    protected void failQueued(Throwable failure) {
+        List<Request> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        for (Request request : queued) {
+            fail(request, failure);
+        }
+    }
+
+    protected static void fail(Request request, Throwable failure) {
+        request.failure = failure;
+        request.done.countDown();
+    }
+
+    /**
+     * Stops the worker, failing the futures of any states it has not evaluated. The worker is joined outside the
+     * server's lock, which it takes to clear itself when it ends.
+     */
+    public void stop() {
+        Thread stopped;
+        synchronized (this) {
+            stopped = worker;
+            if (stopped == null) {
+                return;
+            }
+            running = false;
+        }
+
+        stopped.interrupt();
+        try {
+            stopped.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (worker == stopped) {
+                worker = null;
+            }
+        }
+        failQueued(new IllegalStateException("The inference server was stopped"));
+    }
+
+    /** Waits for the Q-values of the state */
+    @Override
+    public float[] actionValues(State state, float[] qs) {
+        Future<float[]> future = submit(state);
+        try {
+            System.arraycopy(future.get(), 0, qs, 0, numActions);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for Q-values", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Evaluating Q-values failed", e.getCause());
+        }
+        return qs;
+    }
+
+    @Override
+    public ActionSet getActionSet() {
+        return function.getActionSet();
+    }
+
+    @Override
+    public List<QValue> qValues(State s) {
+        float[] qs = actionValues(s, new float[numActions]);
+
+        ActionSet actionSet = getActionSet();
+        List<QValue> qValues = new ArrayList<>(numActions);
+        for (int a = 0; a < numActions; a++) {
+            qValues.add(new QValue(s, actionSet.getAction(a), qs[a]));
+        }
+        return qValues;
+    }
+
+    @Override
+    public double qValue(State s, Action a) {
+        return actionValues(s, new float[numActions])[getActionSet().map(a.actionName())];
+    }
+
+    @Override
+    public double value(State s) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (float q : actionValues(s, new float[numActions])) {
+            max = Math.max(max, q);
+        }
+        return max;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    public synchronized long batchesEvaluated() {
+        return batches;
+    }
+
+    public synchronized long statesEvaluated() {
+        return evaluated;
+    }
+
+    /** The average fraction of a batch that was filled with states */
+    public synchronized double batchFillRatio() {
+        return batches == 0 ? 0 : (double)evaluated / (batches * batchSize);
+    }
+
+    /** The average time a state waited to be evaluated, in milliseconds */
+    public synchronized double averageQueueMillis() {
+        return evaluated == 0 ? 0 : queueNanos / 1e6 / evaluated;
+    }
+
+    /** The longest time a state waited to be evaluated, in milliseconds */
+    public synchronized double maxQueueMillis() {
+        return maxQueueNanos / 1e6;
+    }
+
+    public synchronized void resetStats() {
+        batches = 0;
+        evaluated = 0;
+        queueNanos = 0;
+        maxQueueNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Evaluated %d states in %d batches of %d, %.1f%% full -- %.3fms average queueing, %.3fms max",
+                evaluated, batches, batchSize, 100 * batchFillRatio(), averageQueueMillis(), maxQueueMillis());
+    }
+}
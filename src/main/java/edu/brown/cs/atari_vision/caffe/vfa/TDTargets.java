@@ -0,0 +1,121 @@
+package edu.brown.cs.atari_vision.caffe.vfa;
+
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import org.bytedeco.javacpp.FloatPointer;
+
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.caffe.*;
+
+/**
+ * The target stage of a {@link DQN} update, with every buffer allocated once. The Q-values of a net are copied out
+ * of its blob in one bulk read, the targets, action filter and sample weights are computed in loops over Java
+ * arrays, and then copied into the native inputs of the net in one bulk write each, so an update makes a few JNI
+ * calls instead of a few per Q-value and allocates no buffers.
+ */
+public class TDTargets {
+
+    public final int batchSize;
+    public final int numActions;
+
+    /** The Q-values of the next states from the stale net, and of the states from the online net, row by row */
+    public final float[] nextQs;
+    public final float[] qs;
+
+    /** The target, action filter and weight inputs of the loss, row by row */
+    public final float[] targets;
+    public final float[] filter;
+    public final float[] weights;
+
+    public final FloatPointer targetData;
+    public final FloatPointer filterData;
+    public final FloatPointer weightData;
+
+    public TDTargets(int batchSize, int numActions) {
+        this.batchSize = batchSize;
+        this.numActions = numActions;
+
+        int size = batchSize * numActions;
+        this.nextQs = new float[size];
+        this.qs = new float[size];
+        this.targets = new float[size];
+        this.filter = new float[size];
+        this.weights = new float[size];
+
+        this.targetData = new FloatPointer(size);
+        this.filterData = new FloatPointer(size);
+        this.weightData = new FloatPointer(size);
+    }
+
+    /** Reads the Q-values of the next states from the stale net's Q-values blob */
+    public void readNextQValues(FloatBlob qValuesBlob) {
+        qValuesBlob.cpu_data().get(nextQs, 0, nextQs.length);
+    }
+
+    /** Reads the Q-values of the states from the online net's Q-values blob */
+    public void readQValues(FloatBlob qValuesBlob) {
+        qValuesBlob.cpu_data().get(qs, 0, qs.length);
+    }
+
+    /**
+     * Computes the targets of the full minibatch from the next states' Q-values. If clipTargets, the targets are
+     * clipped to within 1 of the states' Q-values and scaled toward them by the sample weights, for a net with a plain
+     * squared loss, and the TD errors are written to tdErrors if given; otherwise the targets are left unclipped and
+     * the weights are set for the net to clip and scale the loss itself.
+     */
+    public void compute(Minibatch batch, double gamma, boolean clipTargets, float[] tdErrors) {
+        Arrays.fill(targets, 0);
+        Arrays.fill(filter, 0);
+        Arrays.fill(weights, 0);
+
+        for (int i = 0; i < batchSize; i++) {
+            int row = i * numActions;
+
+            float maxQ = Float.NEGATIVE_INFINITY;
+            for (int index = row; index < row + numActions; index++) {
+                if (maxQ < nextQs[index]) {
+                    maxQ = nextQs[index];
+                }
+            }
+
+            // clip reward
+            float r = Math.max(-DQN.REWARD_CLIP, Math.min(DQN.REWARD_CLIP, batch.rewards[i]));
+            float y = batch.terminals[i] ? r : (float)(r + gamma*maxQ);
+
+            int index = row + batch.actions[i];
+            float weight = batch.weighted ? batch.weights[i] : 1;
+            if (clipTargets) {
+                float q = qs[index];
+                if (tdErrors != null) {
+                    tdErrors[i] = y - q;
+                }
+                float delta_clip = 1;
+                if (y - q > delta_clip) {
+                    y = q + delta_clip;
+                } else if (y - q < -delta_clip) {
+                    y = q - delta_clip;
+                }
+                if (batch.weighted) {
+                    // the loss is quadratic in (y - q), so scaling the error scales the gradient
+                    y = q + weight * (y - q);
+                }
+            }
+
+            targets[index] = y;
+            filter[index] = 1;
+            weights[index] = weight;
+        }
+
+        targetData.position(0).put(targets, 0, targets.length).position(0);
+        filterData.position(0).put(filter, 0, filter.length).position(0);
+        weightData.position(0).put(weights, 0, weights.length).position(0);
+    }
+
+    /** Writes the TD errors of the unclipped targets, with the states' Q-values read after computing them */
+    public void tdErrors(Minibatch batch, float[] tdErrors) {
+        for (int i = 0; i < batchSize; i++) {
+            int index = i * numActions + batch.actions[i];
+            tdErrors[i] = targets[index] - qs[index];
+        }
+    }
+}
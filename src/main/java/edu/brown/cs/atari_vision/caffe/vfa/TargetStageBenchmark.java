@@ -0,0 +1,132 @@
+package edu.brown.cs.atari_vision.caffe.vfa;
+
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.caffe;
+
+import java.util.Random;
+
+import static org.bytedeco.javacpp.caffe.*;
+
+/**
+ * Times the target stage of a {@link DQN} update outside Caffe's forward and backward passes: reading the Q-values
+ * of the stale and online nets, and computing the targets, action filter and TD errors into the inputs of the loss.
+ * It compares the stage as it was, which allocated the inputs for every update and read each Q-value with a JNI call,
+ * against {@link TDTargets}, on blobs filled with random Q-values.
+ *
+ * Usage: TargetStageBenchmark [batchSize [numActions [updates]]]
+ */
+public class TargetStageBenchmark {
+
+    static final double GAMMA = 0.99;
+    static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int numActions = args.length > 1 ? Integer.parseInt(args[1]) : 18;
+        int updates = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        Loader.load(caffe.class);
+
+        Random rng = new Random(0);
+        FloatBlob staleQValues = randomBlob(batchSize, numActions, rng);
+        FloatBlob qValues = randomBlob(batchSize, numActions, rng);
+
+        Minibatch batch = new Minibatch(batchSize, 1);
+        for (int i = 0; i < batchSize; i++) {
+            batch.actions[i] = rng.nextInt(numActions);
+            batch.rewards[i] = rng.nextInt(3) - 1;
+            batch.terminals[i] = rng.nextInt(10) == 0;
+        }
+        batch.size = batchSize;
+
+        TDTargets targets = new TDTargets(batchSize, numActions);
+        float[] tdErrors = new float[batchSize];
+
+        // both compute the same targets
+        FloatPointer legacy = legacyTargets(batch, staleQValues, qValues, numActions, tdErrors);
+        targets.readNextQValues(staleQValues);
+        targets.readQValues(qValues);
+        targets.compute(batch, GAMMA, true, tdErrors);
+        for (int i = 0; i < batchSize * numActions; i++) {
+            if (legacy.get(i) != targets.targets[i]) {
+                throw new IllegalStateException("The targets differ at " + i);
+            }
+        }
+
+        System.out.printf("Target stage of %d updates of %d samples and %d actions\n", updates, batchSize, numActions);
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int u = 0; u < updates; u++) {
+                legacyTargets(batch, staleQValues, qValues, numActions, tdErrors);
+            }
+            double legacyMicros = (System.nanoTime() - start) / 1e3 / updates;
+
+            start = System.nanoTime();
+            for (int u = 0; u < updates; u++) {
+                targets.readNextQValues(staleQValues);
+                targets.readQValues(qValues);
+                targets.compute(batch, GAMMA, true, tdErrors);
+            }
+            double micros = (System.nanoTime() - start) / 1e3 / updates;
+
+            System.out.printf("round %d: per-Q-value reads and new buffers %8.2f us/update, TDTargets %8.2f us/update (%.1fx)\n",
+                    round, legacyMicros, micros, legacyMicros / micros);
+        }
+    }
+
+    static FloatBlob randomBlob(int batchSize, int numActions, Random rng) {
+        FloatBlob blob = new FloatBlob(batchSize, numActions, 1, 1);
+        FloatPointer data = blob.mutable_cpu_data();
+        for (int i = 0; i < batchSize * numActions; i++) {
+            data.put(i, (float)rng.nextGaussian());
+        }
+        return blob;
+    }
+
+    /** The target stage as {@link DQN#updateQFunction(Minibatch, DQN, float[])} computed it before TDTargets */
+    static FloatPointer legacyTargets(Minibatch batch, FloatBlob staleQValues, FloatBlob qValues, int numActions, float[] tdErrors) {
+        int sampleSize = batch.size;
+        FloatPointer ys = (new FloatPointer(sampleSize * numActions)).zero();
+        FloatPointer actionFilter = (new FloatPointer(sampleSize * numActions)).zero();
+        for (int i = 0; i < sampleSize; i++) {
+            float maxQ = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < staleQValues.shape(1); c++) {
+                float num = staleQValues.data_at(i, c, 0, 0);
+                if (maxQ < num) {
+                    maxQ = num;
+                }
+            }
+
+            double r = batch.rewards[i];
+            if (r > DQN.REWARD_CLIP) {
+                r = DQN.REWARD_CLIP;
+            } else if (r < -DQN.REWARD_CLIP) {
+                r = -DQN.REWARD_CLIP;
+            }
+
+            float y;
+            if (batch.terminals[i]) {
+                y = (float)r;
+            } else {
+                y = (float)(r + GAMMA*maxQ);
+            }
+
+            int a = batch.actions[i];
+            int index = i*numActions + a;
+
+            float q = qValues.data_at(i, a, 0, 0);
+            tdErrors[i] = y - q;
+            float delta_clip = 1;
+            if (y - q > delta_clip) {
+                y = q + delta_clip;
+            } else if (y - q < -delta_clip) {
+                y = q - delta_clip;
+            }
+            ys.put(index, y);
+            actionFilter.put(index, 1);
+        }
+        return ys;
+    }
+}
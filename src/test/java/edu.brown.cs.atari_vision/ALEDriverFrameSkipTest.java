@@ -0,0 +1,281 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.ale.io.Actions;
+import edu.brown.cs.atari_vision.ale.io.PipelinedALEDriver;
+import edu.brown.cs.atari_vision.ale.io.RLData;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Checks that letting ALE skip frames itself gives the same transcript as skipping them in the driver. That holds
+ * without pooling only: ALE never sends the second to last frame of an act, so the driver rejects native frame skip
+ * combined with pooling.
+ */
+public class ALEDriverFrameSkipTest {
+
+    static final int FRAME_SKIP = 4;
+    static final int NUM_STEPS = 300;
+
+    static final int SYSTEM_RESET = Actions.map("system_reset");
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestNativeFrameSkipMatchesDriverFrameSkip() throws IOException {
+        FakeALEProcess driverSkipALE = new FakeALEProcess(1);
+        FakeALEProcess nativeSkipALE = new FakeALEProcess(FRAME_SKIP);
+
+        List<String> expected = transcript(new ALEDriver(driverSkipALE, FRAME_SKIP, false));
+        List<String> actual = transcript(new ALEDriver(nativeSkipALE, FRAME_SKIP, true));
+
+        Assert.assertEquals(NUM_STEPS, expected.size());
+        Assert.assertEquals(expected, actual);
+
+        // One round trip per act instead of one per frame
+        Assert.assertEquals(driverSkipALE.actionsReceived, FRAME_SKIP * nativeSkipALE.actionsReceived);
+    }
+
+    @Test
+    public void TestPipelinedNativeFrameSkip() throws IOException {
+        List<String> expected = transcript(new ALEDriver(new FakeALEProcess(1), FRAME_SKIP, false));
+        List<String> actual = transcript(new PipelinedALEDriver(new FakeALEProcess(FRAME_SKIP), FRAME_SKIP, true, 3));
+
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void TestNativeFrameSkipRejectsPooling() throws IOException {
+        for (ALEDriver.PoolingType poolingType : new ALEDriver.PoolingType[]{
+                ALEDriver.PoolingType.POOLING_TYPE_MAX, ALEDriver.PoolingType.POOLING_TYPE_MEAN}) {
+            ALEDriver driver = new ALEDriver(new FakeALEProcess(FRAME_SKIP), FRAME_SKIP, true);
+            driver.setPoolingType(poolingType);
+            assertRejected(driver);
+        }
+
+        // palette pair screens are max pooled by their consumer
+        ALEDriver driver = new ALEDriver(new FakeALEProcess(FRAME_SKIP), FRAME_SKIP, true);
+        driver.setScreenType(ALEDriver.ScreenType.SCREEN_TYPE_PALETTE_PAIR);
+        assertRejected(driver);
+
+        // pooling in the driver, or without frames to skip, still works
+        for (int frameSkip : new int[]{FRAME_SKIP, 1}) {
+            driver = new ALEDriver(new FakeALEProcess(1), frameSkip, frameSkip == 1);
+            driver.setPoolingType(ALEDriver.PoolingType.POOLING_TYPE_MAX);
+            driver.initPipes();
+            Assert.assertFalse(driver.act(0));
+            driver.close();
+        }
+    }
+
+    static void assertRejected(ALEDriver driver) throws IOException {
+        try {
+            driver.initPipes();
+            Assert.fail("Native frame skip was combined with pooling");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            driver.close();
+        }
+    }
+
+    /** Plays a fixed random action sequence, resetting on terminal states, and records every observation */
+    static List<String> transcript(ALEDriver driver) throws IOException {
+        driver.setUpdateScreen(true);
+        driver.setUpdateRL(true);
+        driver.setUpdateRam(false);
+        driver.setPoolingType(ALEDriver.PoolingType.POOLING_TYPE_NONE);
+        driver.initPipes();
+
+        Random rng = new Random(0);
+        List<String> transcript = new ArrayList<>();
+        boolean terminal = false;
+        for (int step = 0; step < NUM_STEPS; step++) {
+            int action = terminal ? SYSTEM_RESET : rng.nextInt(18);
+            Assert.assertFalse(driver.act(action));
+
+            RLData rlData = driver.getRLData();
+            terminal = rlData.isTerminal;
+
+            Mat screen = driver.getScreen();
+            byte[] pixels = new byte[screen.rows() * screen.cols() * screen.channels()];
+            screen.data().get(pixels);
+
+            transcript.add(String.format("%d %d %b %d %s", action, rlData.reward, rlData.isTerminal, rlData.lives,
+                    Arrays.toString(pixels)));
+        }
+
+        driver.close();
+        return transcript;
+    }
+
+    /**
+     * A deterministic stand in for an ALE process speaking the FIFO protocol, with an optional
+     *  native frame skip. Screens are small and run-length encoded.
+     */
+    static class FakeALEProcess extends Process {
+
+        static final int WIDTH = 8;
+        static final int HEIGHT = 6;
+
+        final int frameSkip;
+        /** The frame a game starts at, so that several fakes can be out of step */
+        final int firstFrame;
+
+        /** Every action received, in order */
+        final List<Integer> actions = Collections.synchronizedList(new ArrayList<Integer>());
+
+        final PipedInputStream stdout = new PipedInputStream(1 << 16);
+        final PipedOutputStream stdin = new PipedOutputStream();
+        final Thread thread;
+
+        volatile int actionsReceived;
+
+        int frame;
+        int lives;
+        boolean terminal;
+
+        FakeALEProcess(int frameSkip) throws IOException {
+            this(frameSkip, 0);
+        }
+
+        FakeALEProcess(int frameSkip, int firstFrame) throws IOException {
+            this.frameSkip = frameSkip;
+            this.firstFrame = firstFrame;
+
+            final PrintStream out = new PrintStream(new PipedOutputStream(stdout));
+            final BufferedReader in = new BufferedReader(new InputStreamReader(new PipedInputStream(stdin, 1 << 16)));
+
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(in, out);
+                    } catch (IOException e) {
+                        // the driver went away
+                    } finally {
+                        out.close();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void serve(BufferedReader in, PrintStream out) throws IOException {
+            out.printf("%d-%d\n", WIDTH, HEIGHT);
+            out.flush();
+            in.readLine();
+
+            reset();
+            int reward = 0;
+            while (true) {
+                out.printf("%s:%d,%d,%d:\n", screen(), terminal ? 1 : 0, reward, lives);
+                out.flush();
+
+                String line = in.readLine();
+                if (line == null) {
+                    return;
+                }
+                actionsReceived++;
+                int action = Integer.parseInt(line.split(",")[0]);
+                actions.add(action);
+
+                reward = 0;
+                if (action == SYSTEM_RESET) {
+                    reset();
+                    continue;
+                }
+                for (int f = 0; f < frameSkip; f++) {
+                    reward += emulate(action);
+                }
+            }
+        }
+
+        void reset() {
+            frame = firstFrame;
+            lives = 3;
+            terminal = false;
+        }
+
+        int emulate(int action) {
+            if (terminal) {
+                return 0;
+            }
+
+            frame++;
+            if (frame % 23 == 22) {
+                lives--;
+            }
+            terminal = lives == 0;
+
+            return (frame * 7 + action) % 5 - 1;
+        }
+
+        String screen() {
+            StringBuilder builder = new StringBuilder();
+            for (int row = 0; row < HEIGHT; row++) {
+                int color = (frame * 2 + row * 6) & 0xFE;
+                int split = frame % WIDTH;
+                if (split > 0) {
+                    builder.append(String.format("%02X%02X", color, split));
+                }
+                builder.append(String.format("%02X%02X", (color + 8) & 0xFE, WIDTH - split));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            thread.join();
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            if (thread.isAlive()) {
+                throw new IllegalThreadStateException();
+            }
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.ale.io.ALETranscriptPlayer;
+import edu.brown.cs.atari_vision.ale.io.ALETranscriptRecorder;
+import edu.brown.cs.atari_vision.ale.io.PipelinedALEDriver;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Records sessions with a fake ALE process and checks that replaying them gives the same observations.
+ */
+public class ALETranscriptTest {
+
+    static final int FRAME_SKIP = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestReplayMatchesRecording() throws IOException {
+        File file = folder.newFile("session.alet");
+
+        ALETranscriptRecorder recorder = new ALETranscriptRecorder(new ALEDriverFrameSkipTest.FakeALEProcess(1), file);
+        List<String> recorded = ALEDriverFrameSkipTest.transcript(new ALEDriver(recorder, FRAME_SKIP, false));
+
+        ALETranscriptPlayer player = new ALETranscriptPlayer(file);
+        List<String> replayed = ALEDriverFrameSkipTest.transcript(new ALEDriver(player, FRAME_SKIP, false));
+
+        Assert.assertEquals(recorded, replayed);
+        Assert.assertEquals(player.getRecordedInputBytes(), player.getInputBytes());
+    }
+
+    @Test
+    public void TestReplayWithPipelinedDriver() throws IOException {
+        File file = folder.newFile("session.alet");
+
+        ALETranscriptRecorder recorder = new ALETranscriptRecorder(new ALEDriverFrameSkipTest.FakeALEProcess(1), file);
+        List<String> recorded = ALEDriverFrameSkipTest.transcript(new PipelinedALEDriver(recorder, FRAME_SKIP, false, 3));
+
+        List<String> replayed = ALEDriverFrameSkipTest.transcript(new ALEDriver(new ALETranscriptPlayer(file), FRAME_SKIP, false));
+
+        Assert.assertEquals(recorded, replayed);
+    }
+
+    @Test
+    public void TestEndOfTranscriptClosesStream() throws IOException {
+        File file = folder.newFile("session.alet");
+
+        ALEDriver driver = new ALEDriver(new ALETranscriptRecorder(new ALEDriverFrameSkipTest.FakeALEProcess(1), file), 1, false);
+        driver.setUpdateScreen(true);
+        driver.setUpdateRL(true);
+        driver.initPipes();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertFalse(driver.act(0));
+        }
+        driver.close();
+
+        ALEDriver replay = new ALEDriver(new ALETranscriptPlayer(file), 1, false);
+        replay.setUpdateScreen(true);
+        replay.setUpdateRL(true);
+        replay.initPipes();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertFalse(replay.act(0));
+        }
+        Assert.assertTrue(replay.act(0));
+    }
+}
@@ -0,0 +1,171 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.ALEDriverFrameSkipTest.FakeALEProcess;
+import edu.brown.cs.atari_vision.ale.burlap.ALEVectorEnvironment;
+import edu.brown.cs.atari_vision.ale.io.ALEDriver;
+import edu.brown.cs.atari_vision.ale.io.Actions;
+import edu.brown.cs.atari_vision.ale.io.PipelinedALEDriver;
+import edu.brown.cs.atari_vision.ale.io.RLData;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Steps several fake ALE processes, out of step with each other, through an {@link ALEVectorEnvironment}, and checks
+ * every slot against a driver of its own stepped one action at a time.
+ */
+public class ALEVectorEnvironmentTest {
+
+    static final int NUM_SLOTS = 3;
+    static final int FRAME_SKIP = 4;
+    static final int NUM_STEPS = 200;
+    static final int FRAME_SIZE = FakeALEProcess.WIDTH * FakeALEProcess.HEIGHT * 3;
+
+    static final int SYSTEM_RESET = Actions.map("system_reset");
+
+    /** Keeps the whole BGR screen as the frame */
+    static class CopyPreProcessor implements PreProcessor {
+
+        @Override
+        public BytePointer convertScreenToData(Mat screen) {
+            return screen.data();
+        }
+
+        @Override
+        public void convertDataToInput(BytePointer data, FloatPointer input, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int outputSize() {
+            return FRAME_SIZE;
+        }
+    }
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestSlotsMatchTheirOwnDrivers() throws IOException {
+        stepAgainstReferences(false);
+    }
+
+    @Test
+    public void TestPipelinedSlotsMatchTheirOwnDrivers() throws IOException {
+        stepAgainstReferences(true);
+    }
+
+    void stepAgainstReferences(boolean pipelined) throws IOException {
+        FakeALEProcess[] processes = new FakeALEProcess[NUM_SLOTS];
+        ALEDriver[] drivers = new ALEDriver[NUM_SLOTS];
+        ALEDriver[] references = new ALEDriver[NUM_SLOTS];
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            int firstFrame = 9 * i;
+            processes[i] = new FakeALEProcess(1, firstFrame);
+            drivers[i] = pipelined ? new PipelinedALEDriver(processes[i], FRAME_SKIP, false, 3) :
+                    new ALEDriver(processes[i], FRAME_SKIP, false);
+
+            references[i] = new ALEDriver(new FakeALEProcess(1, firstFrame), FRAME_SKIP, false);
+            references[i].setUpdateScreen(true);
+            references[i].setUpdateRL(true);
+            references[i].setUpdateRam(false);
+            references[i].setPoolingType(ALEDriver.PoolingType.POOLING_TYPE_MAX);
+            references[i].initPipes();
+            references[i].act(SYSTEM_RESET);
+        }
+
+        ALEVectorEnvironment env = new ALEVectorEnvironment(drivers, new CopyPreProcessor());
+        ALEVectorEnvironment.BatchOutcome outcome = env.getOutcome();
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            Assert.assertEquals(references[i].getRLData().lives, outcome.lives[i]);
+            assertFrame(references[i], outcome, i);
+        }
+        Assert.assertFalse(Arrays.equals(frame(outcome, 0), frame(outcome, 1)));
+
+        Random rng = new Random(0);
+        int[] actions = new int[NUM_SLOTS];
+        int lifeLosses = 0;
+        int gameOvers = 0;
+        for (int step = 0; step < NUM_STEPS; step++) {
+            int[] received = new int[NUM_SLOTS];
+            int[] lives = new int[NUM_SLOTS];
+            for (int i = 0; i < NUM_SLOTS; i++) {
+                actions[i] = rng.nextInt(18);
+                received[i] = processes[i].actions.size();
+                lives[i] = outcome.lives[i];
+            }
+
+            env.step(actions);
+
+            for (int i = 0; i < NUM_SLOTS; i++) {
+                ALEDriver reference = references[i];
+                Assert.assertFalse(reference.act(actions[i]));
+                RLData rlData = reference.getRLData();
+                boolean gameOver = rlData.isTerminal;
+
+                Assert.assertEquals(rlData.reward, outcome.rewards[i]);
+                Assert.assertEquals(gameOver || rlData.lives < lives[i], outcome.terminals[i]);
+
+                // every slot got its own action, for every frame, and a reset only when its game was over
+                int[] expected = new int[FRAME_SKIP * (gameOver ? 2 : 1)];
+                Arrays.fill(expected, 0, FRAME_SKIP, actions[i]);
+                Arrays.fill(expected, FRAME_SKIP, expected.length, SYSTEM_RESET);
+                Assert.assertArrayEquals(expected, newActions(processes[i], received[i]));
+
+                if (gameOver) {
+                    gameOvers++;
+                    Assert.assertFalse(reference.act(SYSTEM_RESET));
+                    Assert.assertEquals(3, outcome.lives[i]);
+                } else if (outcome.terminals[i]) {
+                    // a lost life ends the episode, but the game goes on
+                    lifeLosses++;
+                    Assert.assertEquals(lives[i] - 1, outcome.lives[i]);
+                }
+                Assert.assertEquals(reference.getRLData().lives, outcome.lives[i]);
+                assertFrame(reference, outcome, i);
+            }
+        }
+        Assert.assertTrue(lifeLosses > 0);
+        Assert.assertTrue(gameOvers > 0);
+
+        env.close();
+        for (ALEDriver reference : references) {
+            reference.close();
+        }
+    }
+
+    static int[] newActions(FakeALEProcess process, int from) {
+        Object[] all = process.actions.toArray();
+        int[] actions = new int[all.length - from];
+        for (int k = 0; k < actions.length; k++) {
+            actions[k] = (Integer)all[from + k];
+        }
+        return actions;
+    }
+
+    static byte[] frame(ALEVectorEnvironment.BatchOutcome outcome, int slot) {
+        byte[] frame = new byte[FRAME_SIZE];
+        outcome.frames.position((long)slot * FRAME_SIZE).get(frame);
+        outcome.frames.position(0);
+        return frame;
+    }
+
+    static void assertFrame(ALEDriver reference, ALEVectorEnvironment.BatchOutcome outcome, int slot) {
+        byte[] expected = new byte[FRAME_SIZE];
+        reference.getScreen().data().get(expected);
+        Assert.assertArrayEquals(expected, frame(outcome, slot));
+    }
+}
@@ -0,0 +1,101 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.behavior.valuefunction.QProvider;
+import burlap.behavior.valuefunction.QValue;
+import burlap.mdp.core.action.Action;
+import burlap.mdp.core.state.State;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.policies.ActionValuesEpsilonGreedy;
+import edu.brown.cs.atari_vision.caffe.vfa.ActionValuesFunction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that the policy reads every Q-value from one evaluation, and only when it acts greedily.
+ */
+public class ActionValuesEpsilonGreedyTest {
+
+    /** Q-values that are the same in every state, counting how often they are evaluated */
+    static class FixedQValues implements QProvider, ActionValuesFunction {
+
+        ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2", "Action3", "Action4"});
+        float[] values;
+        int evaluations;
+
+        FixedQValues(float... values) {
+            this.values = values;
+        }
+
+        @Override
+        public ActionSet getActionSet() {
+            return actionSet;
+        }
+
+        @Override
+        public float[] actionValues(State state, float[] qs) {
+            evaluations++;
+            System.arraycopy(values, 0, qs, 0, values.length);
+            return qs;
+        }
+
+        @Override
+        public List<QValue> qValues(State s) {
+            throw new AssertionError("Q-values should be read all at once");
+        }
+
+        @Override
+        public double qValue(State s, Action a) {
+            throw new AssertionError("Q-values should be read all at once");
+        }
+
+        @Override
+        public double value(State s) {
+            throw new AssertionError("Q-values should be read all at once");
+        }
+    }
+
+    @Test
+    public void TestGreedyEvaluatesOnce() {
+        FixedQValues qValues = new FixedQValues(0.5f, -1, 2, 1.5f, 0);
+        ActionValuesEpsilonGreedy policy = new ActionValuesEpsilonGreedy(qValues, 0);
+
+        for (int step = 0; step < 100; step++) {
+            Assert.assertEquals("Action2", policy.action(null).actionName());
+        }
+        Assert.assertEquals(100, qValues.evaluations);
+    }
+
+    @Test
+    public void TestExploringDoesNotEvaluate() {
+        FixedQValues qValues = new FixedQValues(0.5f, -1, 2, 1.5f, 0);
+        ActionValuesEpsilonGreedy policy = new ActionValuesEpsilonGreedy(qValues, 1);
+
+        Set<String> taken = new HashSet<>();
+        for (int step = 0; step < 200; step++) {
+            taken.add(policy.action(null).actionName());
+        }
+        Assert.assertEquals(5, taken.size());
+        Assert.assertEquals(0, qValues.evaluations);
+    }
+
+    @Test
+    public void TestTiesBrokenAtRandom() {
+        float[] qs = {1, 3, 3, 0, 3};
+        Random rng = new Random(0);
+
+        int[] counts = new int[qs.length];
+        for (int i = 0; i < 3000; i++) {
+            counts[ActionValuesEpsilonGreedy.greedyAction(qs, rng)]++;
+        }
+        Assert.assertEquals(0, counts[0]);
+        Assert.assertEquals(0, counts[3]);
+        for (int a : new int[]{1, 2, 4}) {
+            Assert.assertTrue(counts[a] > 900 && counts[a] < 1100);
+        }
+    }
+}
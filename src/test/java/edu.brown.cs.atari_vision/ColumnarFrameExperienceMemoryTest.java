@@ -0,0 +1,480 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.MinibatchPrefetcher;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ReplayCheckpoint;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Feeds the same episodes to a {@link ColumnarFrameExperienceMemory} and a {@link FrameExperienceMemory}
+ * and checks that they hand out the same experiences.
+ */
+public class ColumnarFrameExperienceMemoryTest {
+
+    static final int FRAME_SIZE = 6;
+    static final int HISTORY = 4;
+    static final int MEMORY_SIZE = 50;
+
+    ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestSamplesMatchFrameExperienceMemory() {
+        FrameExperienceMemory objects = new FrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+
+        // several passes through the ring, with episodes of varying length
+        play(new Random(0), 7 * MEMORY_SIZE + 3, objects, columns);
+
+        RandomFactory.seedMapped(0, 1);
+        List<EnvironmentOutcome> expected = objects.sampleExperiences(32);
+        RandomFactory.seedMapped(0, 1);
+        List<EnvironmentOutcome> actual = columns.sampleExperiences(32);
+
+        assertSameExperiences(objects, expected, columns, actual);
+    }
+
+    @Test
+    public void TestSaveAndLoad() throws IOException {
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        play(new Random(1), 2 * MEMORY_SIZE + 11, columns);
+
+        String prefix = new File(folder.getRoot(), "memory").getPath();
+        columns.saveMemoryState(prefix);
+
+        ColumnarFrameExperienceMemory loaded = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        loaded.loadMemoryState(prefix);
+        Assert.assertEquals(columns.size, loaded.size);
+        Assert.assertEquals(columns.next, loaded.next);
+        Assert.assertEquals(columns.currentFrameIndex, loaded.currentFrameIndex);
+
+        RandomFactory.seedMapped(0, 2);
+        List<EnvironmentOutcome> expected = columns.sampleExperiences(MEMORY_SIZE);
+        RandomFactory.seedMapped(0, 2);
+        List<EnvironmentOutcome> actual = loaded.sampleExperiences(MEMORY_SIZE);
+
+        assertSameExperiences(columns, expected, loaded, actual);
+    }
+
+    @Test
+    public void TestIncrementalSave() throws IOException {
+        long blockSize = 4 * FRAME_SIZE;
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        ReplayCheckpoint checkpoint = new ReplayCheckpoint(columns, blockSize);
+        checkpoint.setChecksums(true);
+
+        Random rng = new Random(5);
+        play(rng, 2 * MEMORY_SIZE, columns);
+        File file = folder.newFile("memory.replay");
+        checkpoint.save(file);
+        long fullSize = checkpoint.getLastBytesWritten();
+
+        // continues the last episode in a new one, which is fine here
+        play(rng, 10, columns);
+        checkpoint.save(file);
+        Assert.assertTrue(checkpoint.getLastBytesWritten() < fullSize);
+
+        ColumnarFrameExperienceMemory loaded = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        new ReplayCheckpoint(loaded, blockSize).load(file);
+        Assert.assertEquals(columns.size, loaded.size);
+        Assert.assertEquals(columns.next, loaded.next);
+        Assert.assertEquals(columns.currentFrameIndex, loaded.currentFrameIndex);
+
+        RandomFactory.seedMapped(0, 5);
+        List<EnvironmentOutcome> expected = columns.sampleExperiences(MEMORY_SIZE);
+        RandomFactory.seedMapped(0, 5);
+        List<EnvironmentOutcome> actual = loaded.sampleExperiences(MEMORY_SIZE);
+
+        assertSameExperiences(columns, expected, loaded, actual);
+    }
+
+    @Test
+    public void TestCutIsWrittenAsTaken() throws IOException {
+        long blockSize = 4 * FRAME_SIZE;
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        ColumnarFrameExperienceMemory reference = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        ReplayCheckpoint checkpoint = new ReplayCheckpoint(columns, blockSize);
+        checkpoint.setChecksums(true);
+
+        Random rng = new Random(7);
+        play(rng, 2 * MEMORY_SIZE + 3, columns, reference);
+        File file = folder.newFile("memory.replay");
+        ReplayCheckpoint.Cut cut = checkpoint.cut(file);
+
+        // overwrite much of the ring before the cut is written
+        play(rng, MEMORY_SIZE / 2, columns);
+        cut.write();
+
+        ColumnarFrameExperienceMemory loaded = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        ReplayCheckpoint loadedCheckpoint = new ReplayCheckpoint(loaded, blockSize);
+        loadedCheckpoint.load(file);
+        Assert.assertEquals(reference.size, loaded.size);
+        Assert.assertEquals(reference.next, loaded.next);
+        Assert.assertEquals(reference.currentFrameIndex, loaded.currentFrameIndex);
+
+        RandomFactory.seedMapped(0, 7);
+        List<EnvironmentOutcome> expected = reference.sampleExperiences(MEMORY_SIZE);
+        RandomFactory.seedMapped(0, 7);
+        List<EnvironmentOutcome> actual = loaded.sampleExperiences(MEMORY_SIZE);
+
+        assertSameExperiences(reference, expected, loaded, actual);
+
+        // the next save only writes what changed since the cut
+        checkpoint.save(file);
+        Assert.assertTrue(checkpoint.getLastBytesWritten() < file.length());
+        loadedCheckpoint.load(file);
+        Assert.assertEquals(columns.next, loaded.next);
+
+        RandomFactory.seedMapped(0, 8);
+        expected = columns.sampleExperiences(MEMORY_SIZE);
+        RandomFactory.seedMapped(0, 8);
+        actual = loaded.sampleExperiences(MEMORY_SIZE);
+
+        assertSameExperiences(columns, expected, loaded, actual);
+    }
+
+    @Test
+    public void TestChecksumsDetectCorruption() throws IOException {
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        columns.getCheckpoint().setChecksums(true);
+        play(new Random(6), 2 * MEMORY_SIZE, columns);
+        File file = folder.newFile("memory.replay");
+        columns.getCheckpoint().save(file);
+
+        // flip a bit in the last frame
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 1);
+        }
+
+        ColumnarFrameExperienceMemory loaded = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        try {
+            loaded.getCheckpoint().load(file);
+            Assert.fail("Loaded a corrupt checkpoint");
+        } catch (IOException e) {
+            Assert.assertEquals(0, loaded.size);
+        }
+    }
+
+    @Test
+    public void TestMappedSegmentsMatchInMemory() throws IOException {
+        // room for the same number of frames in both: 60 in one ring, and 3 segments of 20
+        int size = 60 - (HISTORY - 1);
+        FrameExperienceMemory objects = new FrameExperienceMemory(size, HISTORY, new BytePreProcessor(), actionSet);
+        ColumnarFrameExperienceMemory mapped = new ColumnarFrameExperienceMemory(size, HISTORY, new BytePreProcessor(), actionSet,
+                false, folder.newFolder("replay"), (HISTORY - 1 + 20) * FRAME_SIZE);
+
+        play(new Random(3), 5 * size + 7, objects, mapped);
+
+        RandomFactory.seedMapped(0, 3);
+        List<EnvironmentOutcome> expected = objects.sampleExperiences(size);
+        RandomFactory.seedMapped(0, 3);
+        List<EnvironmentOutcome> actual = mapped.sampleExperiences(size);
+
+        // frame indices differ between the layouts, but the inputs must not
+        assertSameExperiences(objects, expected, mapped, actual, false);
+    }
+
+    @Test
+    public void TestMappedMemoryReopens() throws IOException {
+        File directory = folder.newFolder("replay");
+        ColumnarFrameExperienceMemory mapped = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                false, directory, (HISTORY - 1 + 20) * FRAME_SIZE);
+        play(new Random(4), 3 * MEMORY_SIZE + 5, mapped);
+        mapped.saveMemoryState(new File(folder.getRoot(), "memory").getPath());
+
+        ColumnarFrameExperienceMemory reopened = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                false, directory, (HISTORY - 1 + 20) * FRAME_SIZE);
+        Assert.assertEquals(mapped.size, reopened.size);
+        Assert.assertEquals(mapped.next, reopened.next);
+        Assert.assertEquals(mapped.currentFrameIndex, reopened.currentFrameIndex);
+
+        RandomFactory.seedMapped(0, 4);
+        List<EnvironmentOutcome> expected = mapped.sampleExperiences(MEMORY_SIZE);
+        RandomFactory.seedMapped(0, 4);
+        List<EnvironmentOutcome> actual = reopened.sampleExperiences(MEMORY_SIZE);
+
+        assertSameExperiences(mapped, expected, reopened, actual);
+
+        // a memory of another size starts over
+        ColumnarFrameExperienceMemory resized = new ColumnarFrameExperienceMemory(MEMORY_SIZE + 1, HISTORY, new BytePreProcessor(), actionSet,
+                false, directory, (HISTORY - 1 + 20) * FRAME_SIZE);
+        Assert.assertEquals(0, resized.size);
+    }
+
+    @Test
+    public void TestSampleIntoMatchesSampleExperiences() throws IOException {
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, true);
+        ColumnarFrameExperienceMemory mapped = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                true, folder.newFolder("replay"), (HISTORY - 1 + 20) * FRAME_SIZE);
+        Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+        Assert.assertFalse(columns.sampleInto(batch));
+
+        // several passes through the ring, and through the segments of the mapped memory
+        play(new Random(8), 5 * MEMORY_SIZE + 7, columns, mapped);
+
+        for (ColumnarFrameExperienceMemory memory : new ColumnarFrameExperienceMemory[]{columns, mapped}) {
+            RandomFactory.seedMapped(0, 9);
+            List<EnvironmentOutcome> expected = memory.sampleExperiences(batch.capacity);
+            RandomFactory.seedMapped(0, 9);
+            Assert.assertTrue(memory.sampleInto(batch));
+            Assert.assertEquals(expected.size(), batch.size);
+            Assert.assertFalse(batch.weighted);
+
+            FloatPointer expectedInput = new FloatPointer(HISTORY * FRAME_SIZE);
+            for (int k = 0; k < batch.size; k++) {
+                EnvironmentOutcome e = expected.get(k);
+                Assert.assertEquals(actionSet.map(e.a.actionName()), batch.actions[k]);
+                Assert.assertEquals(e.r, batch.rewards[k], 0);
+                Assert.assertEquals(e.terminated, batch.terminals[k]);
+
+                memory.getStateInput((FrameHistoryState)e.o, expectedInput);
+                assertSameInput(expectedInput, batch.stateInputs, k);
+                if (!e.terminated) {
+                    memory.getStateInput((FrameHistoryState)e.op, expectedInput);
+                    assertSameInput(expectedInput, batch.primeStateInputs, k);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void TestPrefetchingWhileAdding() throws InterruptedException {
+        final ColumnarFrameExperienceMemory memory = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new SlowBytePreProcessor(), actionSet);
+        MinibatchPrefetcher prefetcher = new MinibatchPrefetcher(memory, 32, HISTORY * FRAME_SIZE, 2, new Random(10));
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread actor = new Thread(actor(memory, new Random(11), stopped));
+        actor.start();
+
+        try {
+            int numBatches = 500;
+            for (int b = 0; b < numBatches; b++) {
+                Minibatch batch = prefetcher.take();
+                Assert.assertEquals(32, batch.size);
+                assertActorFrames(batch);
+            }
+            Assert.assertEquals(numBatches, prefetcher.minibatchesTaken());
+            Assert.assertTrue(prefetcher.minibatchesWaitedFor() <= numBatches);
+        } finally {
+            stopped.set(true);
+            actor.join();
+            prefetcher.stop();
+        }
+    }
+
+    /**
+     * Plays random episodes until stopped. Frame t is filled with frameValue(t), and the reward of an experience is
+     * the t of the frame it added, mod 1000.
+     */
+    static Runnable actor(FrameHistoryMemory memory, Random rng, AtomicBoolean stopped) {
+        return actor(memory, memory.actionSet, rng, stopped);
+    }
+
+    static Runnable actor(final ALEStateGenerator<FrameHistoryState> memory, final ActionSet actionSet, final Random rng,
+                          final AtomicBoolean stopped) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                BytePointer data = new BytePointer(FRAME_SIZE);
+                Mat frame = new Mat(1, FRAME_SIZE, CV_8U, data);
+                FrameHistoryState state = null;
+                for (int t = 0; !stopped.get(); t++) {
+                    data.fill(frameValue(t));
+                    if (state == null) {
+                        state = memory.initialState(frame);
+                    } else {
+                        boolean terminated = rng.nextInt(15) == 0;
+                        state = memory.nextState(frame, state, actionSet.getAction(rng.nextInt(3)), t % 1000, terminated);
+                    }
+                    if (t % 4 == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+    }
+
+    /** Checks that every sample of the minibatch is made of the frames an actor added for it */
+    static void assertActorFrames(Minibatch batch) {
+        for (int k = 0; k < batch.size; k++) {
+            int t = (int)batch.rewards[k];
+            // the oldest experience of a full memory has already lost its oldest frame to the ring
+            assertFramesUpTo(batch.stateInputs, k, t - 1, true);
+            if (!batch.terminals[k]) {
+                assertFramesUpTo(batch.primeStateInputs, k, t, false);
+            }
+        }
+    }
+
+    static int frameValue(int t) {
+        return (t % 100 + 100) % 100 + 1;
+    }
+
+    /**
+     * Checks that the k-th input ends with frame t, preceded by consecutive frames or padding. If the oldest frame
+     * may be overwritten, it is only checked to be a whole frame.
+     */
+    static void assertFramesUpTo(FloatPointer inputs, int k, int t, boolean oldestMayBeOverwritten) {
+        int inputSize = HISTORY * FRAME_SIZE;
+        boolean padding = false;
+        for (int h = HISTORY - 1; h >= 0; h--, t--) {
+            float first = inputs.get(k * inputSize + h * FRAME_SIZE);
+            if (first == 0 && h < HISTORY - 1) {
+                // the episode started after this frame, so the rest is padding
+                padding = true;
+            }
+            float expected = padding ? 0 : frameValue(t);
+            if (h == 0 && oldestMayBeOverwritten) {
+                expected = first;
+            }
+            for (int f = 0; f < FRAME_SIZE; f++) {
+                Assert.assertEquals(expected, inputs.get(k * inputSize + h * FRAME_SIZE + f), 0);
+            }
+        }
+    }
+
+    static void assertSameInput(FloatPointer expected, FloatPointer inputs, int k) {
+        int inputSize = HISTORY * FRAME_SIZE;
+        for (int j = 0; j < inputSize; j++) {
+            Assert.assertEquals(expected.get(j), inputs.get(k * inputSize + j), 0);
+        }
+    }
+
+    /** Plays random episodes, sending the same frames, actions and rewards to every memory */
+    static void play(Random rng, int steps, FrameHistoryMemory... memories) {
+        play(rng, steps, memories[0].actionSet, memories);
+    }
+
+    @SafeVarargs
+    static void play(Random rng, int steps, ActionSet actionSet, ALEStateGenerator<FrameHistoryState>... memories) {
+        BytePointer data = new BytePointer(FRAME_SIZE);
+        Mat frame = new Mat(1, FRAME_SIZE, CV_8U, data);
+
+        FrameHistoryState[] states = new FrameHistoryState[memories.length];
+        for (int step = 0; step < steps; step++) {
+            for (int f = 0; f < FRAME_SIZE; f++) {
+                data.put(f, (byte)rng.nextInt(128));
+            }
+            int action = rng.nextInt(3);
+            double reward = rng.nextInt(3) - 1;
+            boolean terminated = rng.nextInt(15) == 0;
+
+            for (int m = 0; m < memories.length; m++) {
+                ALEStateGenerator<FrameHistoryState> memory = memories[m];
+                if (states[m] == null) {
+                    states[m] = memory.initialState(frame);
+                } else {
+                    states[m] = memory.nextState(frame, states[m], actionSet.getAction(action), reward, terminated);
+                }
+            }
+        }
+    }
+
+    static void assertSameExperiences(FrameHistoryMemory expectedMemory, List<EnvironmentOutcome> expected,
+                                      FrameHistoryMemory actualMemory, List<EnvironmentOutcome> actual) {
+        assertSameExperiences(expectedMemory, expected, actualMemory, actual, true);
+    }
+
+    static void assertSameExperiences(FrameHistoryMemory expectedMemory, List<EnvironmentOutcome> expected,
+                                      FrameHistoryMemory actualMemory, List<EnvironmentOutcome> actual, boolean sameIndices) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            EnvironmentOutcome e = expected.get(i);
+            EnvironmentOutcome a = actual.get(i);
+
+            Assert.assertEquals(e.a.actionName(), a.a.actionName());
+            Assert.assertEquals(e.r, a.r, 0);
+            Assert.assertEquals(e.terminated, a.terminated);
+            assertSameState(expectedMemory, (FrameHistoryState)e.o, actualMemory, (FrameHistoryState)a.o, sameIndices);
+            if (e.terminated) {
+                Assert.assertNull(e.op);
+                Assert.assertNull(a.op);
+            } else {
+                assertSameState(expectedMemory, (FrameHistoryState)e.op, actualMemory, (FrameHistoryState)a.op, sameIndices);
+            }
+        }
+    }
+
+    static void assertSameState(FrameHistoryMemory expectedMemory, FrameHistoryState e,
+                                FrameHistoryMemory actualMemory, FrameHistoryState a, boolean sameIndices) {
+        if (sameIndices) {
+            Assert.assertEquals(e.index, a.index);
+        }
+        Assert.assertEquals(e.historyLength, a.historyLength);
+
+        FloatPointer expectedInput = new FloatPointer(FRAME_SIZE * HISTORY);
+        FloatPointer actualInput = new FloatPointer(FRAME_SIZE * HISTORY);
+        expectedMemory.getStateInput(e, expectedInput);
+        actualMemory.getStateInput(a, actualInput);
+        for (int k = 0; k < FRAME_SIZE * HISTORY; k++) {
+            Assert.assertEquals(expectedInput.get(k), actualInput.get(k), 0);
+        }
+    }
+
+    static class BytePreProcessor implements PreProcessor {
+
+        @Override
+        public BytePointer convertScreenToData(Mat screen) {
+            return screen.data();
+        }
+
+        @Override
+        public void convertDataToInput(BytePointer data, FloatPointer input, long size) {
+            long n = FRAME_SIZE * size;
+            for (long i = 0; i < n; i++) {
+                input.put(i, data.get(i));
+            }
+        }
+
+        @Override
+        public int outputSize() {
+            return FRAME_SIZE;
+        }
+    }
+
+    /** Converts slowly, so frames are often overwritten while they are read */
+    static class SlowBytePreProcessor extends BytePreProcessor {
+
+        @Override
+        public void convertDataToInput(BytePointer data, FloatPointer input, long size) {
+            super.convertDataToInput(data, input, size);
+            Thread.yield();
+        }
+    }
+}
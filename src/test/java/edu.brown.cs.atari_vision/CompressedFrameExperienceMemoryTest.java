@@ -0,0 +1,198 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.CompressedFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.MinibatchMemory;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static edu.brown.cs.atari_vision.ColumnarFrameExperienceMemoryTest.*;
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Feeds the same episodes to a {@link CompressedFrameExperienceMemory} and a {@link ColumnarFrameExperienceMemory}
+ * and checks that they sample the same minibatches, whether the frames compress or not.
+ */
+public class CompressedFrameExperienceMemoryTest {
+
+    static final int BLOCK_FRAMES = 3;
+    static final int CACHE_BLOCKS = 2;
+
+    ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestSamplesMatchColumnarMemory() {
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, true);
+        CompressedFrameExperienceMemory compressed = new CompressedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                true, BLOCK_FRAMES, CACHE_BLOCKS);
+        Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+        Assert.assertFalse(compressed.sampleInto(batch));
+
+        // random frames, which do not compress, over several passes through the blocks
+        play(new Random(0), 5 * MEMORY_SIZE + 7, actionSet, columns, compressed);
+        assertSameMinibatches(columns, compressed, 1);
+        Assert.assertTrue(compressed.bytesPerFrame() > FRAME_SIZE);
+
+        // the handles of sampled experiences read the same inputs as the minibatch
+        RandomFactory.seedMapped(0, 2);
+        List<EnvironmentOutcome> expected = compressed.sampleExperiences(batch.capacity);
+        RandomFactory.seedMapped(0, 2);
+        Assert.assertTrue(compressed.sampleInto(batch));
+        Assert.assertEquals(expected.size(), batch.size);
+
+        FloatPointer expectedInput = new FloatPointer(HISTORY * FRAME_SIZE);
+        for (int k = 0; k < batch.size; k++) {
+            EnvironmentOutcome e = expected.get(k);
+            Assert.assertEquals(actionSet.map(e.a.actionName()), batch.actions[k]);
+            Assert.assertEquals(e.r, batch.rewards[k], 0);
+            Assert.assertEquals(e.terminated, batch.terminals[k]);
+
+            compressed.getStateInput((FrameHistoryState)e.o, expectedInput);
+            assertSameInput(expectedInput, batch.stateInputs, k);
+            if (!e.terminated) {
+                compressed.getStateInput((FrameHistoryState)e.op, expectedInput);
+                assertSameInput(expectedInput, batch.primeStateInputs, k);
+            }
+        }
+    }
+
+    @Test
+    public void TestSimilarFramesCompress() {
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        CompressedFrameExperienceMemory compressed = new CompressedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                false, 8, CACHE_BLOCKS);
+
+        // frames that mostly change in one byte, if at all
+        BytePointer data = new BytePointer(FRAME_SIZE);
+        Mat frame = new Mat(1, FRAME_SIZE, CV_8U, data);
+        data.fill(7);
+        Random rng = new Random(3);
+        FrameHistoryState columnsState = null, compressedState = null;
+        for (int step = 0; step < 4 * MEMORY_SIZE; step++) {
+            int change = rng.nextInt(10);
+            if (change == 0) {
+                data.fill(rng.nextInt(128));
+            } else if (change < 5) {
+                data.put(rng.nextInt(FRAME_SIZE), (byte)rng.nextInt(128));
+            }
+            if (columnsState == null) {
+                columnsState = columns.initialState(frame);
+                compressedState = compressed.initialState(frame);
+            } else {
+                boolean terminated = rng.nextInt(15) == 0;
+                columnsState = columns.nextState(frame, columnsState, actionSet.getAction(1), 0, terminated);
+                compressedState = compressed.nextState(frame, compressedState, actionSet.getAction(1), 0, terminated);
+            }
+        }
+
+        Assert.assertTrue(compressed.bytesPerFrame() < FRAME_SIZE);
+        assertSameMinibatches(columns, compressed, 4);
+        Assert.assertTrue(compressed.cacheHitRate() > 0);
+    }
+
+    @Test
+    public void TestSaveAndLoad() throws IOException {
+        CompressedFrameExperienceMemory memory = new CompressedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                false, BLOCK_FRAMES, CACHE_BLOCKS);
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        play(new Random(5), 3 * MEMORY_SIZE, actionSet, memory, columns);
+
+        String prefix = new File(folder.getRoot(), "memory").getPath();
+        memory.saveMemoryState(prefix);
+
+        CompressedFrameExperienceMemory loaded = new CompressedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet,
+                false, BLOCK_FRAMES, CACHE_BLOCKS);
+        play(new Random(6), MEMORY_SIZE, actionSet, loaded);
+        loaded.loadMemoryState(prefix);
+        Assert.assertEquals(memory.size, loaded.size);
+        Assert.assertEquals(memory.bytesPerFrame(), loaded.bytesPerFrame(), 0);
+        assertSameMinibatches(columns, loaded, 7);
+
+        loaded.resetMemory();
+        Assert.assertTrue(loaded.sampleExperiences(32).isEmpty());
+    }
+
+    @Test
+    public void TestSamplingWhileAdding() throws InterruptedException {
+        CompressedFrameExperienceMemory memory = new CompressedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new SlowBytePreProcessor(), actionSet,
+                false, BLOCK_FRAMES, CACHE_BLOCKS);
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread actor = new Thread(actor(memory, actionSet, new Random(8), stopped));
+        actor.start();
+
+        try {
+            Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+            Random rng = new Random(9);
+            int numBatches = 0;
+            while (numBatches < 300) {
+                if (memory.sampleInto(batch, rng)) {
+                    assertActorFrames(batch);
+                    numBatches++;
+                }
+            }
+        } finally {
+            stopped.set(true);
+            actor.join();
+        }
+    }
+
+    /** Samples both memories with the same seed, checking the minibatches match */
+    static void assertSameMinibatches(ColumnarFrameExperienceMemory expectedMemory, MinibatchMemory actualMemory, long seed) {
+        Minibatch expected = new Minibatch(32, HISTORY * FRAME_SIZE);
+        Minibatch actual = new Minibatch(32, HISTORY * FRAME_SIZE);
+        for (int b = 0; b < 5; b++) {
+            Assert.assertTrue(expectedMemory.sampleInto(expected, new Random(seed + b)));
+            Assert.assertTrue(actualMemory.sampleInto(actual, new Random(seed + b)));
+
+            for (int k = 0; k < expected.size; k++) {
+                Assert.assertEquals(expected.indices[k], actual.indices[k]);
+                Assert.assertEquals(expected.historyLengths[k], actual.historyLengths[k]);
+                Assert.assertEquals(expected.actions[k], actual.actions[k]);
+                Assert.assertEquals(expected.rewards[k], actual.rewards[k], 0);
+                Assert.assertEquals(expected.terminals[k], actual.terminals[k]);
+
+                // the raw ring has already overwritten the oldest frame of the oldest experience
+                int from = expected.indices[k] == expectedMemory.next ? 1 : 0;
+                assertSameInputs(expected.stateInputs, actual.stateInputs, k, from);
+                if (!expected.terminals[k]) {
+                    assertSameInputs(expected.primeStateInputs, actual.primeStateInputs, k, 0);
+                }
+            }
+        }
+    }
+
+    /** Checks that the k-th inputs match, from frame from on */
+    static void assertSameInputs(FloatPointer expected, FloatPointer actual, int k, int from) {
+        int inputSize = HISTORY * FRAME_SIZE;
+        for (int j = k * inputSize + from * FRAME_SIZE; j < (k + 1) * inputSize; j++) {
+            Assert.assertEquals(expected.get(j), actual.get(j), 0);
+        }
+    }
+}
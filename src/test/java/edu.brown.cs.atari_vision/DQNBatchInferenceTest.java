@@ -0,0 +1,127 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.mdp.core.state.State;
+import edu.brown.cs.atari_vision.ale.io.Actions;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.vfa.DQN;
+import edu.brown.cs.atari_vision.caffe.vfa.InferenceServer;
+import edu.brown.cs.atari_vision.caffe.vfa.NNStateConverter;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.caffe;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates states in batches with the CPU network of dqn.prototxt, and checks that every state gets the Q-values it
+ * gets evaluated on its own, including through an {@link InferenceServer}'s worker thread.
+ */
+public class DQNBatchInferenceTest {
+
+    static final int INFERENCE_BATCH_SIZE = 4;
+    static final int INPUT_SIZE = 4 * 84 * 84;
+
+    /** Random inputs seeded by a state's index */
+    static class IndexStateConverter implements NNStateConverter<FrameHistoryState> {
+
+        @Override
+        public void getStateInput(FrameHistoryState state, FloatPointer input) {
+            Random rng = new Random(state.index);
+            float[] data = new float[INPUT_SIZE];
+            for (int i = 0; i < INPUT_SIZE; i++) {
+                data[i] = rng.nextFloat();
+            }
+            input.put(data, 0, INPUT_SIZE);
+        }
+
+        @Override
+        public void saveMemoryState(String filePrefix) {}
+
+        @Override
+        public void loadMemoryState(String filePrefix) {}
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    DQN batchDQN;
+    DQN singleDQN;
+    InferenceServer server;
+
+    @Before
+    public void setup() throws IOException {
+        Loader.load(caffe.class);
+
+        File solverFile = folder.newFile("dqn_solver_cpu.prototxt");
+        FileWriter writer = new FileWriter(solverFile);
+        writer.write("net: \"" + new File("dqn.prototxt").getAbsolutePath() + "\"\n"
+                + "solver_type: RMSPROP\nbase_lr: 0.00005\nlr_policy: \"fixed\"\nrms_decay: 0.95\ndelta: 0.01\n"
+                + "solver_mode: CPU\n");
+        writer.close();
+
+        IndexStateConverter converter = new IndexStateConverter();
+        batchDQN = new DQN(solverFile.getPath(), Actions.saActionSet(), converter, 0.99, INFERENCE_BATCH_SIZE);
+        singleDQN = new DQN(solverFile.getPath(), Actions.saActionSet(), converter, 0.99, 1);
+        singleDQN.updateParamsToMatch(batchDQN);
+    }
+
+    @After
+    public void teardown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    float[] singleQValues(int index) {
+        return singleDQN.actionValues(new FrameHistoryState(index, 4), new float[Actions.saActionSet().size()]);
+    }
+
+    @Test
+    public void TestBatchMatchesSingleStates() {
+        int numActions = batchDQN.actionSet.size();
+        int n = INFERENCE_BATCH_SIZE + 2;
+
+        // a full batch and a partial one
+        State[] states = new State[n];
+        for (int i = 0; i < n; i++) {
+            states[i] = new FrameHistoryState(i, 4);
+        }
+        float[] qs = new float[n * numActions];
+        batchDQN.actionValues(states, n, qs);
+        Assert.assertNotEquals(qs[0], qs[numActions], 1e-5f);
+
+        for (int i = 0; i < n; i++) {
+            float[] single = singleQValues(i);
+            for (int a = 0; a < numActions; a++) {
+                Assert.assertEquals(single[a], qs[i * numActions + a], 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void TestServerMatchesSingleStates() throws Exception {
+        server = new InferenceServer(batchDQN, 20);
+
+        List<Future<float[]>> futures = new ArrayList<>();
+        for (int i = 0; i < INFERENCE_BATCH_SIZE + 1; i++) {
+            futures.add(server.submit(new FrameHistoryState(i, 4)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertArrayEquals(singleQValues(i), futures.get(i).get(30, TimeUnit.SECONDS), 1e-5f);
+        }
+        Assert.assertEquals(2, server.batchesEvaluated());
+    }
+}
@@ -0,0 +1,166 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.ale.burlap.ALEStateGenerator;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.DedupFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static edu.brown.cs.atari_vision.ColumnarFrameExperienceMemoryTest.*;
+import static edu.brown.cs.atari_vision.CompressedFrameExperienceMemoryTest.assertSameMinibatches;
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Feeds the same episodes to a {@link DedupFrameExperienceMemory} and a {@link ColumnarFrameExperienceMemory} and
+ * checks that they sample the same minibatches, and that frames are shared and freed as the ring wraps.
+ */
+public class DedupFrameExperienceMemoryTest {
+
+    static final int CHUNK_FRAMES = 8;
+
+    ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestSamplesMatchColumnarMemory() {
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, true);
+        DedupFrameExperienceMemory dedup = new DedupFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, true, CHUNK_FRAMES);
+
+        playRepeats(new Random(0), 6 * MEMORY_SIZE, columns, dedup);
+        Assert.assertTrue(dedup.deduplicatedFrames() > 0);
+        Assert.assertTrue(dedup.distinctFrames() < dedup.framesHeld());
+        assertSameMinibatches(columns, dedup, 1);
+
+        // the samples' references were dropped, so the pool only grows with the frames held
+        playRepeats(new Random(1), 3 * MEMORY_SIZE, columns, dedup);
+        assertSameMinibatches(columns, dedup, 2);
+        Assert.assertTrue(dedup.distinctFrames() <= dedup.framesHeld());
+        Assert.assertTrue(dedup.bytesPerFrame() * dedup.framesHeld() <= (dedup.framesHeld() + CHUNK_FRAMES) * FRAME_SIZE);
+    }
+
+    @Test
+    public void TestIdenticalFramesShareOneEntry() {
+        DedupFrameExperienceMemory dedup = new DedupFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, false, CHUNK_FRAMES);
+        BytePointer data = new BytePointer(FRAME_SIZE);
+        Mat frame = new Mat(1, FRAME_SIZE, CV_8U, data);
+        data.fill(9);
+
+        FrameHistoryState state = dedup.initialState(frame);
+        for (int step = 0; step < 3 * MEMORY_SIZE; step++) {
+            state = dedup.nextState(frame, state, actionSet.getAction(0), 0, false);
+        }
+        Assert.assertEquals(1, dedup.distinctFrames());
+        Assert.assertEquals(3 * MEMORY_SIZE, dedup.deduplicatedFrames());
+
+        // once the ring has overwritten every copy, the entry is freed
+        for (int step = 0; step < MEMORY_SIZE + HISTORY + 1; step++) {
+            data.fill(10 + step);
+            state = dedup.nextState(frame, state, actionSet.getAction(0), 0, false);
+        }
+        Assert.assertEquals(dedup.framesHeld(), dedup.distinctFrames());
+
+        dedup.resetMemory();
+        Assert.assertEquals(0, dedup.distinctFrames());
+        Assert.assertTrue(dedup.sampleExperiences(32).isEmpty());
+    }
+
+    @Test
+    public void TestSaveAndLoad() {
+        DedupFrameExperienceMemory memory = new DedupFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, false, CHUNK_FRAMES);
+        ColumnarFrameExperienceMemory columns = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        playRepeats(new Random(3), 3 * MEMORY_SIZE, memory, columns);
+
+        String prefix = new File(folder.getRoot(), "memory").getPath();
+        memory.saveMemoryState(prefix);
+
+        DedupFrameExperienceMemory loaded = new DedupFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet, false, CHUNK_FRAMES);
+        play(new Random(4), MEMORY_SIZE, actionSet, loaded);
+        loaded.loadMemoryState(prefix);
+        Assert.assertEquals(memory.size, loaded.size);
+        Assert.assertEquals(memory.distinctFrames(), loaded.distinctFrames());
+        assertSameMinibatches(columns, loaded, 5);
+
+        // the loaded memory keeps deduplicating against the frames it loaded
+        long deduplicated = loaded.deduplicatedFrames();
+        playRepeats(new Random(3), MEMORY_SIZE, loaded);
+        Assert.assertTrue(loaded.deduplicatedFrames() > deduplicated);
+    }
+
+    @Test
+    public void TestSamplingWhileAdding() throws InterruptedException {
+        // the actor's frames repeat every 100 steps, which a memory this size still holds
+        DedupFrameExperienceMemory memory = new DedupFrameExperienceMemory(3 * MEMORY_SIZE, HISTORY, new SlowBytePreProcessor(), actionSet,
+                false, CHUNK_FRAMES);
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread actor = new Thread(actor(memory, actionSet, new Random(6), stopped));
+        actor.start();
+
+        try {
+            Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+            Random rng = new Random(7);
+            int numBatches = 0;
+            while (numBatches < 300) {
+                if (memory.sampleInto(batch, rng)) {
+                    assertActorFrames(batch);
+                    numBatches++;
+                }
+            }
+        } finally {
+            stopped.set(true);
+            actor.join();
+        }
+        Assert.assertTrue(memory.deduplicatedFrames() > 0);
+        Assert.assertTrue(memory.distinctFrames() <= 100);
+    }
+
+    /** Plays random episodes whose frames are mostly drawn from a few screens, sending them to every memory */
+    @SafeVarargs
+    static void playRepeats(Random rng, int steps, ALEStateGenerator<FrameHistoryState>... memories) {
+        BytePointer data = new BytePointer(FRAME_SIZE);
+        Mat frame = new Mat(1, FRAME_SIZE, CV_8U, data);
+        ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+
+        FrameHistoryState[] states = new FrameHistoryState[memories.length];
+        for (int step = 0; step < steps; step++) {
+            if (rng.nextInt(4) == 0) {
+                for (int f = 0; f < FRAME_SIZE; f++) {
+                    data.put(f, (byte)rng.nextInt(128));
+                }
+            } else {
+                data.fill(1 + rng.nextInt(5));
+            }
+            int action = rng.nextInt(3);
+            double reward = rng.nextInt(3) - 1;
+            boolean terminated = rng.nextInt(15) == 0;
+
+            for (int m = 0; m < memories.length; m++) {
+                if (states[m] == null) {
+                    states[m] = memories[m].initialState(frame);
+                } else {
+                    states[m] = memories[m].nextState(frame, states[m], actionSet.getAction(action), reward, terminated);
+                }
+            }
+        }
+    }
+}
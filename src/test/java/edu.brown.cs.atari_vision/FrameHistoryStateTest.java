@@ -2,6 +2,7 @@ package edu.brown.cs.atari_vision;
 
 import burlap.mdp.core.action.Action;
 import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameExperience;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameExperienceMemory;
 import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
 import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
@@ -16,8 +17,15 @@ import org.bytedeco.javacpp.opencv_core;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -28,6 +36,9 @@ public class FrameHistoryStateTest {
 
     FloatPointer input;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
 
     @Before
     public void setup() {
@@ -166,6 +177,94 @@ public class FrameHistoryStateTest {
         }
     }
 
+    /** A FrameHistoryState(123456789012L, 4) serialized before states had a stream */
+    static final String SINGLE_STREAM_STATE = "aced0005737200426564752e62726f776e2e63732e61746172695f766973696f6e2e6361" +
+            "6666652e657870657269656e63657265706c61792e4672616d65486973746f72795374617465987310aefb7cc64d02000249000d68" +
+            "6973746f72794c656e6774684a0005696e6465787870000000040000001cbe991a14";
+
+    @Test
+    public void TestLoadsSingleStreamState() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(hexBytes(SINGLE_STREAM_STATE)));
+        FrameHistoryState state = (FrameHistoryState)in.readObject();
+        in.close();
+
+        Assert.assertEquals(123456789012L, state.index);
+        Assert.assertEquals(4, state.historyLength);
+        Assert.assertEquals(0, state.stream);
+    }
+
+    /**
+     * A FrameExperienceMemory of 3 experiences of 2 byte frames, with a history of 2, saved before its frame history
+     * moved to FrameHistoryMemory. It holds two experiences: action 2 with reward 1, then action 1 with reward -1
+     * ending the episode.
+     */
+    static final String SINGLE_HISTORY_MEMORY =
+            "aced0005737200466564752e62726f776e2e63732e61746172695f766973696f6e2e63616666652e657870657269656e63657265" +
+            "706c61792e4672616d65457870657269656e63654d656d6f72797d0d3acc285c1e9e0200065a0017616c77617973496e636c7564" +
+            "654d6f7374526563656e744a001163757272656e744672616d65496e6465784900106d6178486973746f72794c656e6774684900" +
+            "046e65787449000473697a655b000b657870657269656e6365737400435b4c6564752f62726f776e2f63732f61746172695f7669" +
+            "73696f6e2f63616666652f657870657269656e63657265706c61792f4672616d65457870657269656e63653b7870000000000000" +
+            "000004000000020000000200000002757200435b4c6564752e62726f776e2e63732e61746172695f766973696f6e2e6361666665" +
+            "2e657870657269656e63657265706c61792e4672616d65457870657269656e63653b643ba56b8306e69d02000078700000000373" +
+            "7200406564752e62726f776e2e63732e61746172695f766973696f6e2e63616666652e657870657269656e63657265706c61792e" +
+            "4672616d65457870657269656e6365e867277987fac64e02000549000161440001725a000a7465726d696e617465644c00016f74" +
+            "00444c6564752f62726f776e2f63732f61746172695f766973696f6e2f63616666652f657870657269656e63657265706c61792f" +
+            "4672616d65486973746f727953746174653b4c00026f7071007e00067870000000023ff000000000000000737200426564752e62" +
+            "726f776e2e63732e61746172695f766973696f6e2e63616666652e657870657269656e63657265706c61792e4672616d65486973" +
+            "746f72795374617465987310aefb7cc64d02000249000d686973746f72794c656e6774684a0005696e6465787870000000010000" +
+            "0000000000027371007e00080000000200000000000000047371007e000500000001bff00000000000000171007e000a7070";
+
+    @Test
+    public void TestLoadsSingleHistoryMemory() throws IOException {
+        File prefix = folder.newFile("memory");
+        FileOutputStream out = new FileOutputStream(prefix.getPath() + ".ser");
+        out.write(hexBytes(SINGLE_HISTORY_MEMORY));
+        out.close();
+        out = new FileOutputStream(prefix.getPath() + ".framehist");
+        out.write(new byte[]{0, 0, 1, 1, 2, 2, 0, 0, 0, 0});
+        out.close();
+
+        ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+        FrameExperienceMemory memory = new FrameExperienceMemory(3, 2, new TestPreprocessor(2), actionSet);
+        memory.loadMemoryState(prefix.getPath());
+        assertSingleHistoryMemory(memory);
+
+        // and saved again, in the current layout
+        memory.saveMemoryState(prefix.getPath());
+        FrameExperienceMemory reloaded = new FrameExperienceMemory(3, 2, new TestPreprocessor(2), actionSet);
+        reloaded.loadMemoryState(prefix.getPath());
+        assertSingleHistoryMemory(reloaded);
+    }
+
+    static void assertSingleHistoryMemory(FrameExperienceMemory memory) {
+        Assert.assertEquals(4, memory.currentFrameIndex);
+        Assert.assertEquals(2, memory.next);
+        Assert.assertEquals(2, memory.size);
+
+        FrameExperience first = memory.experiences[0];
+        Assert.assertEquals(2, first.a);
+        Assert.assertEquals(1, first.r, 0);
+        Assert.assertFalse(first.terminated);
+        Assert.assertEquals(2, first.o.index);
+        Assert.assertEquals(4, first.op.index);
+        Assert.assertEquals(2, first.op.historyLength);
+
+        FrameExperience second = memory.experiences[1];
+        Assert.assertEquals(1, second.a);
+        Assert.assertEquals(-1, second.r, 0);
+        Assert.assertTrue(second.terminated);
+        Assert.assertEquals(4, second.o.index);
+        Assert.assertNull(second.op);
+        Assert.assertNull(memory.experiences[2]);
+    }
+
+    static byte[] hexBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
 
     public class TestPreprocessor implements PreProcessor {
         int frameSize;
@@ -0,0 +1,175 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.ale.screen.ColorPalette;
+import edu.brown.cs.atari_vision.ale.screen.NTSCPalette;
+import edu.brown.cs.atari_vision.caffe.preprocess.DQNPreProcessor;
+import edu.brown.cs.atari_vision.caffe.preprocess.FusedDQNPreProcessor;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * Compares the fused palette pair pipeline against the OpenCV one.
+ */
+public class FusedDQNPreProcessorTest {
+
+    static final int WIDTH = 160;
+    static final int HEIGHT = 210;
+    static final int OUTPUT_SIZE = 84*84;
+
+    ColorPalette palette;
+    Random rng;
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+
+        palette = new NTSCPalette();
+        rng = new Random(0);
+    }
+
+    @Test
+    public void TestMatchesLinearResize() {
+        FusedDQNPreProcessor preProcessor = new FusedDQNPreProcessor(palette);
+
+        for (int n = 0; n < 20; n++) {
+            byte[][] frames = randomFramePair();
+
+            // max pool the luminance, then resize with OpenCV's default bilinear interpolation
+            Mat pooled = new Mat();
+            max(toMat(lookup(frames[0], palette.luminanceTable(), 1), CV_8UC1),
+                    toMat(lookup(frames[1], palette.luminanceTable(), 1), CV_8UC1), pooled);
+            Mat expected = new Mat();
+            resize(pooled, expected, new Size(84, 84));
+
+            BytePointer actual = preProcessor.convertScreenToData(palettePair(frames));
+
+            byte[] expectedBytes = bytes(expected.data(), OUTPUT_SIZE);
+            byte[] actualBytes = bytes(actual, OUTPUT_SIZE);
+            for (int i = 0; i < OUTPUT_SIZE; i++) {
+                Assert.assertEquals(expectedBytes[i] & 0xFF, actualBytes[i] & 0xFF, 1);
+            }
+        }
+    }
+
+    @Test
+    public void TestMatchesDQNPreProcessor() {
+        FusedDQNPreProcessor fused = new FusedDQNPreProcessor(palette);
+        DQNPreProcessor reference = new DQNPreProcessor();
+
+        for (int n = 0; n < 20; n++) {
+            byte[][] frames = randomFramePair();
+
+            // the pipeline DQNTrainer runs with a GUI: gray screens, max pooled by the driver, then DQNPreProcessor's
+            // default resize
+            Mat pooled = new Mat();
+            max(toMat(lookup(frames[0], palette.luminanceTable(), 1), CV_8UC1),
+                    toMat(lookup(frames[1], palette.luminanceTable(), 1), CV_8UC1), pooled);
+            byte[] expectedBytes = bytes(reference.convertScreenToData(pooled), OUTPUT_SIZE);
+            byte[] actualBytes = bytes(fused.convertScreenToData(palettePair(frames)), OUTPUT_SIZE);
+
+            for (int i = 0; i < OUTPUT_SIZE; i++) {
+                Assert.assertEquals(expectedBytes[i] & 0xFF, actualBytes[i] & 0xFF, 1);
+            }
+        }
+    }
+
+    @Test
+    public void TestWritesInPlace() {
+        FusedDQNPreProcessor preProcessor = new FusedDQNPreProcessor(palette);
+        byte[][] frames = randomFramePair();
+        Mat screen = palettePair(frames);
+
+        byte[] expected = bytes(preProcessor.convertScreenToData(screen), OUTPUT_SIZE);
+
+        long offset = 3*OUTPUT_SIZE;
+        BytePointer history = (new BytePointer(5*OUTPUT_SIZE)).fill(7);
+        preProcessor.convertScreenToData(screen, history.position(offset));
+        Assert.assertEquals(offset, history.position());
+
+        byte[] all = bytes(history.position(0), 5*OUTPUT_SIZE);
+        for (int i = 0; i < all.length; i++) {
+            if (i >= offset && i < offset + OUTPUT_SIZE) {
+                Assert.assertEquals(expected[(int)(i - offset)], all[i]);
+            } else {
+                Assert.assertEquals(7, all[i]);
+            }
+        }
+    }
+
+    /** Two Atari-like screens: bands of identical rows made of horizontal runs, with a few
+     *  small sprites that differ between the two frames */
+    byte[][] randomFramePair() {
+        byte[] a = new byte[WIDTH*HEIGHT];
+        int y = 0;
+        while (y < HEIGHT) {
+            int bandHeight = Math.min(2 + rng.nextInt(11), HEIGHT - y);
+
+            int x = 0;
+            while (x < WIDTH) {
+                int length = Math.min(4 + rng.nextInt(40), WIDTH - x);
+                byte color = (byte)(2*rng.nextInt(128));
+                for (int r = y; r < y + bandHeight; r++) {
+                    for (int i = x; i < x + length; i++) {
+                        a[r*WIDTH + i] = color;
+                    }
+                }
+                x += length;
+            }
+            y += bandHeight;
+        }
+
+        byte[] b = a.clone();
+        for (int k = 0; k < 10; k++) {
+            int spriteY = rng.nextInt(HEIGHT - 4);
+            int spriteX = rng.nextInt(WIDTH - 8);
+            byte color = (byte)(2*rng.nextInt(128));
+            for (int r = spriteY; r < spriteY + 4; r++) {
+                for (int i = spriteX; i < spriteX + 8; i++) {
+                    b[r*WIDTH + i] = color;
+                }
+            }
+        }
+
+        return new byte[][]{a, b};
+    }
+
+    Mat palettePair(byte[][] frames) {
+        byte[] pair = new byte[2*WIDTH*HEIGHT];
+        for (int i = 0; i < WIDTH*HEIGHT; i++) {
+            pair[2*i] = frames[0][i];
+            pair[2*i + 1] = frames[1][i];
+        }
+        return toMat(pair, CV_8UC2);
+    }
+
+    static byte[] lookup(byte[] indices, byte[] table, int channels) {
+        byte[] out = new byte[indices.length * channels];
+        for (int i = 0; i < indices.length; i++) {
+            for (int c = 0; c < channels; c++) {
+                out[i*channels + c] = table[(indices[i] & 0xFF)*channels + c];
+            }
+        }
+        return out;
+    }
+
+    static Mat toMat(byte[] data, int type) {
+        Mat mat = new Mat(HEIGHT, WIDTH, type);
+        mat.data().put(data);
+        return mat;
+    }
+
+    static byte[] bytes(BytePointer pointer, int size) {
+        byte[] out = new byte[size];
+        pointer.get(out);
+        return out;
+    }
+}
@@ -0,0 +1,222 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.mdp.core.state.State;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.policies.ActionValuesEpsilonGreedy;
+import edu.brown.cs.atari_vision.caffe.vfa.BatchActionValuesFunction;
+import edu.brown.cs.atari_vision.caffe.vfa.InferenceServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Submits states from several actors at once and checks that each gets the Q-values of its own state, in batches.
+ */
+public class InferenceServerTest {
+
+    static final int BATCH_SIZE = 4;
+    static final int NUM_ACTIONS = 3;
+
+    /** Q-values of 10 times a state's index plus the action, evaluated in batches */
+    static class IndexQValues implements BatchActionValuesFunction {
+
+        ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+        volatile boolean failing;
+        volatile boolean bindFails;
+        volatile Thread boundThread;
+
+        @Override
+        public int maxBatchSize() {
+            return BATCH_SIZE;
+        }
+
+        @Override
+        public void actionValues(State[] states, int n, float[] qs) {
+            if (failing) {
+                throw new IllegalStateException("failing");
+            }
+            Assert.assertTrue(n <= BATCH_SIZE);
+            Assert.assertSame(boundThread, Thread.currentThread());
+            for (int k = 0; k < n; k++) {
+                actionValues(states[k], qs, k * NUM_ACTIONS);
+            }
+        }
+
+        @Override
+        public float[] actionValues(State state, float[] qs) {
+            return actionValues(state, qs, 0);
+        }
+
+        float[] actionValues(State state, float[] qs, int offset) {
+            long index = ((FrameHistoryState)state).index;
+            for (int a = 0; a < NUM_ACTIONS; a++) {
+                qs[offset + a] = 10 * index + a;
+            }
+            return qs;
+        }
+
+        @Override
+        public ActionSet getActionSet() {
+            return actionSet;
+        }
+
+        @Override
+        public void bindThread() {
+            if (bindFails) {
+                throw new IllegalStateException("binding failed");
+            }
+            boundThread = Thread.currentThread();
+        }
+    }
+
+    IndexQValues function = new IndexQValues();
+    InferenceServer server;
+
+    @After
+    public void teardown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void TestActorsGetTheirOwnQValues() throws InterruptedException {
+        server = new InferenceServer(function, 50);
+        int numActors = 8;
+        final int steps = 200;
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> actors = new ArrayList<>();
+        for (int actor = 0; actor < numActors; actor++) {
+            final int first = actor * steps;
+            actors.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        float[] qs = new float[NUM_ACTIONS];
+                        for (int step = 0; step < steps; step++) {
+                            server.actionValues(new FrameHistoryState(first + step, 4), qs);
+                            for (int a = 0; a < NUM_ACTIONS; a++) {
+                                Assert.assertEquals(10 * (first + step) + a, qs[a], 0);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            }));
+        }
+        for (Thread actor : actors) {
+            actor.start();
+        }
+        for (Thread actor : actors) {
+            actor.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        Assert.assertEquals(numActors * steps, server.statesEvaluated());
+        Assert.assertTrue(server.batchesEvaluated() < numActors * steps);
+        Assert.assertTrue(server.batchFillRatio() > 1.0 / BATCH_SIZE);
+        Assert.assertEquals(server.statesEvaluated(), server.batchesEvaluated() * BATCH_SIZE * server.batchFillRatio(), 1e-6);
+    }
+
+    @Test
+    public void TestPartialBatchWaitsForDeadline() throws Exception {
+        server = new InferenceServer(function, 20);
+
+        long start = System.nanoTime();
+        float[] qs = server.submit(new FrameHistoryState(7, 4)).get(5, TimeUnit.SECONDS);
+        double waitedMillis = (System.nanoTime() - start) / 1e6;
+
+        Assert.assertEquals(70, qs[0], 0);
+        Assert.assertTrue(waitedMillis >= 20);
+        Assert.assertEquals(1, server.batchesEvaluated());
+        Assert.assertEquals(0.25, server.batchFillRatio(), 0);
+        Assert.assertTrue(server.averageQueueMillis() >= 20);
+
+        // a full batch does not wait for the deadline
+        server.stop();
+        server = new InferenceServer(function, 60000);
+        List<Future<float[]>> futures = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            futures.add(server.submit(new FrameHistoryState(i, 4)));
+        }
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Assert.assertEquals(10 * i + 2, futures.get(i).get(5, TimeUnit.SECONDS)[2], 0);
+        }
+        Assert.assertEquals(1, server.batchesEvaluated());
+        Assert.assertEquals(1, server.batchFillRatio(), 0);
+    }
+
+    @Test
+    public void TestFailuresReachTheActor() throws Exception {
+        server = new InferenceServer(function, 1);
+
+        function.failing = true;
+        try {
+            server.submit(new FrameHistoryState(1, 4)).get(5, TimeUnit.SECONDS);
+            Assert.fail("The evaluation failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        function.failing = false;
+        Assert.assertEquals(21, server.submit(new FrameHistoryState(2, 4)).get(5, TimeUnit.SECONDS)[1], 0);
+
+        // states still waiting when the server stops are failed rather than left waiting
+        server.stop();
+        InferenceServer stopped = new InferenceServer(function, 60000);
+        Future<float[]> waiting = stopped.submit(new FrameHistoryState(3, 4));
+        stopped.stop();
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            Assert.fail("The server was stopped");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(waiting.isDone());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void TestWorkerFailureFailsFast() {
+        function.bindFails = true;
+        server = new InferenceServer(function, 1);
+
+        // the state submitted as the worker dies is failed, rather than left waiting for a worker that is gone
+        try {
+            server.actionValues(new FrameHistoryState(1, 4), new float[3]);
+            Assert.fail("The worker failed");
+        } catch (RuntimeException e) {
+            Assert.assertNotNull(e.getCause());
+        }
+
+        // and every later one fails at once, without starting another worker
+        function.bindFails = false;
+        try {
+            server.submit(new FrameHistoryState(2, 4));
+            Assert.fail("The worker failed");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("binding failed", e.getCause().getMessage());
+        }
+        Assert.assertNull(function.boundThread);
+    }
+
+    @Test
+    public void TestPolicyActsThroughServer() {
+        server = new InferenceServer(function, 1);
+        ActionValuesEpsilonGreedy policy = new ActionValuesEpsilonGreedy(server, 0);
+
+        Assert.assertEquals("Action2", policy.action(new FrameHistoryState(5, 4)).actionName());
+        Assert.assertEquals(52, server.value(new FrameHistoryState(5, 4)), 0);
+        Assert.assertEquals(2, server.statesEvaluated());
+    }
+}
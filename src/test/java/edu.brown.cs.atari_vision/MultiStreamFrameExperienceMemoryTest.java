@@ -0,0 +1,126 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.ColumnarFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.FrameHistoryState;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.MultiStreamFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.preprocess.PreProcessor;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static edu.brown.cs.atari_vision.ColumnarFrameExperienceMemoryTest.*;
+
+/**
+ * Checks that the streams of a {@link MultiStreamFrameExperienceMemory} keep their own frame histories, and that
+ * it can be sampled while several actors add to it.
+ */
+public class MultiStreamFrameExperienceMemoryTest {
+
+    static final int NUM_STREAMS = 3;
+
+    ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestStreamsAreIndependent() {
+        PreProcessor[] preProcessors = new PreProcessor[NUM_STREAMS];
+        ColumnarFrameExperienceMemory[] separate = new ColumnarFrameExperienceMemory[NUM_STREAMS];
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            preProcessors[s] = new BytePreProcessor();
+            separate[s] = new ColumnarFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        }
+        MultiStreamFrameExperienceMemory memory = new MultiStreamFrameExperienceMemory(NUM_STREAMS * MEMORY_SIZE, HISTORY, preProcessors, actionSet);
+        Assert.assertEquals(NUM_STREAMS * MEMORY_SIZE, memory.capacity());
+
+        // interleaved episodes, each stream getting the same ones as its separate memory
+        Random rng = new Random(0);
+        for (int round = 0; round < 40; round++) {
+            int s = rng.nextInt(NUM_STREAMS);
+            play(new Random(round), 1 + rng.nextInt(20), memory.stream(s), separate[s]);
+        }
+        Assert.assertEquals(NUM_STREAMS * MEMORY_SIZE, memory.size());
+
+        FloatPointer expectedInput = new FloatPointer(HISTORY * FRAME_SIZE);
+        FloatPointer actualInput = new FloatPointer(HISTORY * FRAME_SIZE);
+
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            RandomFactory.seedMapped(0, 1);
+            List<EnvironmentOutcome> expected = separate[s].sampleExperiences(32);
+            RandomFactory.seedMapped(0, 1);
+            List<EnvironmentOutcome> actual = memory.stream(s).sampleExperiences(32);
+            assertSameExperiences(separate[s], expected, memory.stream(s), actual);
+
+            // the memory reads the states of a stream from that stream
+            FrameHistoryState state = (FrameHistoryState)actual.get(0).o;
+            Assert.assertEquals(s, state.stream);
+            separate[s].getStateInput((FrameHistoryState)expected.get(0).o, expectedInput);
+            memory.getStateInput(state, actualInput);
+            assertSameInput(expectedInput, actualInput, 0);
+        }
+
+        Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+        Assert.assertTrue(memory.sampleInto(batch));
+        for (int k = 0; k < batch.size; k++) {
+            int s = batch.indices[k] / MEMORY_SIZE;
+            EnvironmentOutcome e = separate[s].experience(batch.indices[k] % MEMORY_SIZE);
+            Assert.assertEquals(actionSet.map(e.a.actionName()), batch.actions[k]);
+            Assert.assertEquals(e.r, batch.rewards[k], 0);
+            Assert.assertEquals(e.terminated, batch.terminals[k]);
+
+            separate[s].getStateInput((FrameHistoryState)e.o, expectedInput);
+            assertSameInput(expectedInput, batch.stateInputs, k);
+            if (!e.terminated) {
+                separate[s].getStateInput((FrameHistoryState)e.op, expectedInput);
+                assertSameInput(expectedInput, batch.primeStateInputs, k);
+            }
+        }
+    }
+
+    @Test
+    public void TestSamplingWhileActorsAdd() throws InterruptedException {
+        PreProcessor[] preProcessors = new PreProcessor[NUM_STREAMS];
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            preProcessors[s] = new SlowBytePreProcessor();
+        }
+        MultiStreamFrameExperienceMemory memory = new MultiStreamFrameExperienceMemory(NUM_STREAMS * MEMORY_SIZE, HISTORY, preProcessors, actionSet);
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread[] actors = new Thread[NUM_STREAMS];
+        for (int s = 0; s < NUM_STREAMS; s++) {
+            actors[s] = new Thread(actor(memory.stream(s), new Random(20 + s), stopped));
+            actors[s].start();
+        }
+
+        try {
+            Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+            Random rng = new Random(30);
+            int numBatches = 0;
+            while (numBatches < 300) {
+                if (memory.sampleInto(batch, rng)) {
+                    assertActorFrames(batch);
+                    numBatches++;
+                }
+            }
+        } finally {
+            stopped.set(true);
+            for (Thread actor : actors) {
+                actor.join();
+            }
+        }
+    }
+}
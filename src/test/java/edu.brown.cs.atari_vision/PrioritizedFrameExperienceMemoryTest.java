@@ -0,0 +1,158 @@
+package edu.brown.cs.atari_vision;
+
+import burlap.debugtools.RandomFactory;
+import burlap.mdp.singleagent.environment.EnvironmentOutcome;
+import edu.brown.cs.atari_vision.ale.burlap.action.ActionSet;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.PrioritizedFrameExperienceMemory;
+import edu.brown.cs.atari_vision.caffe.experiencereplay.SumTree;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static edu.brown.cs.atari_vision.ColumnarFrameExperienceMemoryTest.*;
+
+/**
+ * Checks the sum tree, and that the prioritized memory samples in proportion to the priorities it is given.
+ */
+public class PrioritizedFrameExperienceMemoryTest {
+
+    ActionSet actionSet = new ActionSet(new String[]{"Action0", "Action1", "Action2"});
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    @Test
+    public void TestSumTreeFindsProportionally() {
+        SumTree tree = new SumTree(5);
+        double[] priorities = {1, 0, 3, 2, 4};
+        for (int i = 0; i < priorities.length; i++) {
+            tree.set(i, priorities[i]);
+        }
+        Assert.assertEquals(10, tree.total(), 0);
+
+        // index 1 has no mass, so is never found
+        int[] expected = {0, 2, 2, 2, 3, 3, 4, 4, 4, 4};
+        for (int m = 0; m < 10; m++) {
+            Assert.assertEquals(expected[m], tree.find(m + 0.5));
+        }
+        Assert.assertEquals(4, tree.find(10));
+
+        tree.set(2, 0);
+        tree.set(1, 0.5);
+        Assert.assertEquals(7.5, tree.total(), 1e-12);
+        Assert.assertEquals(1, tree.find(1.2));
+        Assert.assertEquals(3, tree.find(1.5));
+
+        // many updates trigger a rebuild, which must agree with the updated sums
+        Random rng = new Random(0);
+        double total = 0;
+        for (int i = 0; i < 5; i++) {
+            double p = rng.nextDouble();
+            tree.set(i, p);
+            total += p;
+        }
+        Assert.assertEquals(total, tree.total(), 1e-12);
+    }
+
+    @Test
+    public void TestSamplingFollowsPriorities() {
+        PrioritizedFrameExperienceMemory memory = new PrioritizedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        memory.alpha = 1;
+        memory.epsilon = 0;
+        play(new Random(0), 2 * MEMORY_SIZE, memory);
+
+        // new experiences start out alike
+        for (int i = 1; i < MEMORY_SIZE; i++) {
+            Assert.assertEquals(memory.priority(0), memory.priority(i), 0);
+        }
+
+        // one experience with as much priority as all the others together
+        int[] indices = new int[MEMORY_SIZE];
+        float[] tdErrors = new float[MEMORY_SIZE];
+        for (int i = 0; i < MEMORY_SIZE; i++) {
+            indices[i] = i;
+            tdErrors[i] = i == 7 ? MEMORY_SIZE - 1 : 1;
+        }
+        memory.updatePriorities(indices, tdErrors, MEMORY_SIZE);
+
+        RandomFactory.seedMapped(0, 1);
+        int batchSize = 32;
+        for (int b = 0; b < 200; b++) {
+            int hits = 0;
+            List<EnvironmentOutcome> samples = memory.sampleExperiences(batchSize);
+            Assert.assertEquals(batchSize, samples.size());
+            Assert.assertEquals(batchSize, memory.numSampled());
+
+            float maxWeight = 0;
+            for (int k = 0; k < batchSize; k++) {
+                float weight = memory.importanceWeights()[k];
+                maxWeight = Math.max(maxWeight, weight);
+                if (memory.sampledIndices()[k] == 7) {
+                    hits++;
+
+                    // sampled the most, so scaled down the most
+                    Assert.assertEquals(1.0 / (MEMORY_SIZE - 1), weight, 1e-6);
+                }
+            }
+            Assert.assertEquals(1, maxWeight, 0);
+
+            // stratified, so half of each batch, give or take the strata at the edges of its range
+            Assert.assertTrue(Math.abs(hits - batchSize / 2) <= 1);
+        }
+    }
+
+    @Test
+    public void TestSampleIntoIsWeighted() {
+        PrioritizedFrameExperienceMemory memory = new PrioritizedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        memory.annealBeta(0.5, 1000);
+        play(new Random(2), 3 * MEMORY_SIZE, memory);
+
+        float[] tdErrors = new float[MEMORY_SIZE];
+        int[] indices = new int[MEMORY_SIZE];
+        Random rng = new Random(3);
+        for (int i = 0; i < MEMORY_SIZE; i++) {
+            indices[i] = i;
+            tdErrors[i] = rng.nextFloat() * 4 - 2;
+        }
+        memory.updatePriorities(indices, tdErrors, MEMORY_SIZE);
+
+        RandomFactory.seedMapped(0, 4);
+        memory.sampleExperiences(32);
+        Minibatch batch = new Minibatch(32, HISTORY * FRAME_SIZE);
+        RandomFactory.seedMapped(0, 4);
+        Assert.assertTrue(memory.sampleInto(batch));
+
+        Assert.assertTrue(batch.weighted);
+        for (int k = 0; k < batch.size; k++) {
+            Assert.assertEquals(memory.sampledIndices()[k], batch.indices[k]);
+            Assert.assertEquals(memory.importanceWeights()[k], batch.weights[k], 0);
+        }
+    }
+
+    @Test
+    public void TestNewExperiencesGetMaxPriority() {
+        PrioritizedFrameExperienceMemory memory = new PrioritizedFrameExperienceMemory(MEMORY_SIZE, HISTORY, new BytePreProcessor(), actionSet);
+        memory.alpha = 1;
+        memory.epsilon = 0;
+        Random rng = new Random(1);
+        play(rng, MEMORY_SIZE / 2, memory);
+
+        memory.updatePriorities(new int[]{0, 1}, new float[]{5, 0.5f}, 2);
+        // the first step starts an episode, the second adds an experience
+        int next = memory.next;
+        play(rng, 2, memory);
+        Assert.assertEquals(5, memory.priority(next), 0);
+        Assert.assertEquals(0.5, memory.priority(1), 0);
+
+        memory.resetMemory();
+        Assert.assertTrue(memory.sampleExperiences(32).isEmpty());
+    }
+}
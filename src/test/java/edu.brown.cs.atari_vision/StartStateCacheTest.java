@@ -0,0 +1,156 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.ale.io.*;
+import org.bytedeco.javacpp.opencv_core.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks the start state cache against a fake emulator whose state is a frame counter.
+ */
+public class StartStateCacheTest {
+
+    static final int SYSTEM_RESET = Actions.map("system_reset");
+
+    @Test
+    public void TestRestoreMatchesNoops() {
+        CountingBackend io = new CountingBackend();
+        StartStateCache cache = new StartStateCache(io, 31);
+
+        Random rng = new Random(0);
+        for (int episode = 0; episode < 200; episode++) {
+            int numNoops = rng.nextInt(32);
+
+            // play a bit, then start over
+            io.act(3);
+            io.act(4);
+
+            cache.restore(numNoops);
+            Assert.assertEquals(CountingBackend.RESET_FRAMES + numNoops, io.frame);
+            Assert.assertEquals(0, io.getRLData().reward);
+        }
+    }
+
+    @Test
+    public void TestEachPrefixIsEmulatedOnce() {
+        CountingBackend io = new CountingBackend();
+        StartStateCache cache = new StartStateCache(io, 31);
+
+        cache.restore(10);
+        cache.restore(5);
+        cache.restore(31);
+        cache.restore(0);
+        int actsAfterFilling = io.acts;
+
+        // one reset and 31 no-ops in total
+        Assert.assertEquals(32, actsAfterFilling);
+
+        for (int n = 0; n <= 31; n++) {
+            cache.restore(n);
+        }
+        Assert.assertEquals(actsAfterFilling, io.acts);
+
+        cache.clear();
+        Assert.assertEquals(32, io.released);
+    }
+
+    static class CountingBackend implements SnapshotALEBackend {
+        /** Frames a reset takes, like a game's reset animation */
+        static final int RESET_FRAMES = 100;
+
+        int frame;
+        int acts;
+        int released;
+        RLData rlData = new RLData();
+
+        class CountingSnapshot implements Snapshot {
+            final int frame;
+
+            CountingSnapshot(int frame) {
+                this.frame = frame;
+            }
+
+            @Override
+            public void release() {
+                released++;
+            }
+        }
+
+        @Override
+        public Snapshot snapshot() {
+            return new CountingSnapshot(frame);
+        }
+
+        @Override
+        public void restore(Snapshot snapshot) {
+            frame = ((CountingSnapshot)snapshot).frame;
+            rlData.reward = 0;
+        }
+
+        @Override
+        public boolean act(int act) {
+            acts++;
+            if (act == SYSTEM_RESET) {
+                frame = RESET_FRAMES;
+                rlData.reward = 0;
+            } else {
+                frame++;
+                rlData.reward = 1;
+            }
+            return false;
+        }
+
+        @Override
+        public RLData getRLData() {
+            return rlData;
+        }
+
+        @Override
+        public void setUpdateScreen(boolean updateScreen) {}
+
+        @Override
+        public void setUpdateRam(boolean updateRam) {}
+
+        @Override
+        public void setUpdateRL(boolean updateRL) {}
+
+        @Override
+        public void setPoolingType(ALEDriver.PoolingType poolingType) {}
+
+        @Override
+        public void setScreenType(ALEDriver.ScreenType screenType) {}
+
+        @Override
+        public ALEDriver.ScreenType getScreenType() {
+            return ALEDriver.ScreenType.SCREEN_TYPE_BGR;
+        }
+
+        @Override
+        public void init() {}
+
+        @Override
+        public Mat getScreen() {
+            return null;
+        }
+
+        @Override
+        public ConsoleRAM getRAM() {
+            return null;
+        }
+
+        @Override
+        public boolean wantsTerminate() {
+            return false;
+        }
+
+        @Override
+        public int getFrameSkip() {
+            return 1;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
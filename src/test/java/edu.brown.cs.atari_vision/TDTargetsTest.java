@@ -0,0 +1,89 @@
+package edu.brown.cs.atari_vision;
+
+import edu.brown.cs.atari_vision.caffe.experiencereplay.Minibatch;
+import edu.brown.cs.atari_vision.caffe.vfa.TDTargets;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the targets, action filter and weights that {@link TDTargets} computes from the Q-values of a minibatch.
+ */
+public class TDTargetsTest {
+
+    static final double GAMMA = 0.5;
+
+    @Before
+    public void setup() {
+        Loader.load(opencv_core.class);
+    }
+
+    /** Three samples of two actions: a clipped error, an error within the clip, and a terminal */
+    Minibatch batch() {
+        Minibatch batch = new Minibatch(3, 1);
+        set(batch.actions, 1, 0, 1);
+        System.arraycopy(new float[]{5, 0, -1}, 0, batch.rewards, 0, 3);
+        System.arraycopy(new boolean[]{false, false, true}, 0, batch.terminals, 0, 3);
+        System.arraycopy(new float[]{0.5f, 2, 1}, 0, batch.weights, 0, 3);
+        batch.size = 3;
+        return batch;
+    }
+
+    static void set(int[] actions, int... values) {
+        System.arraycopy(values, 0, actions, 0, values.length);
+    }
+
+    TDTargets targets(float[] nextQs, float[] qs) {
+        TDTargets targets = new TDTargets(3, 2);
+        System.arraycopy(nextQs, 0, targets.nextQs, 0, nextQs.length);
+        System.arraycopy(qs, 0, targets.qs, 0, qs.length);
+        return targets;
+    }
+
+    @Test
+    public void TestClippedTargets() {
+        TDTargets targets = targets(new float[]{4, 2, -1, 0.5f, 9, 9}, new float[]{0, 0, 0.1f, 7, 7, 7});
+        float[] tdErrors = new float[3];
+        targets.compute(batch(), GAMMA, true, tdErrors);
+
+        // rewards are clipped to 1, and errors to within 1 of the Q-value
+        Assert.assertArrayEquals(new float[]{1 + 2 - 0, 0.25f - 0.1f, -1 - 7}, tdErrors, 1e-6f);
+        Assert.assertArrayEquals(new float[]{0, 1, 0.25f, 0, 0, 6}, targets.targets, 1e-6f);
+        Assert.assertArrayEquals(new float[]{0, 1, 1, 0, 0, 1}, targets.filter, 0);
+        Assert.assertEquals(1, targets.targetData.get(1), 1e-6f);
+        Assert.assertEquals(0.25f, targets.targetData.get(2), 1e-6f);
+
+        // weights scale the clipped error
+        Minibatch weighted = batch();
+        weighted.weighted = true;
+        targets.compute(weighted, GAMMA, true, tdErrors);
+        Assert.assertArrayEquals(new float[]{0, 0.5f, 0.1f + 2 * 0.15f, 0, 0, 6}, targets.targets, 1e-6f);
+    }
+
+    @Test
+    public void TestTargetsForLossInGraph() {
+        TDTargets targets = targets(new float[]{4, 2, -1, 0.5f, 9, 9}, new float[]{0, 0, 0.1f, 7, 7, 7});
+        Minibatch batch = batch();
+        batch.weighted = true;
+        targets.compute(batch, GAMMA, false, null);
+
+        // the targets are left unclipped, and the weights set for the net
+        Assert.assertArrayEquals(new float[]{0, 3, 0.25f, 0, 0, -1}, targets.targets, 1e-6f);
+        Assert.assertArrayEquals(new float[]{0, 0.5f, 2, 0, 0, 1}, targets.weights, 0);
+        Assert.assertEquals(2, targets.weightData.get(2), 0);
+
+        // the TD errors are read against the Q-values of the states
+        float[] tdErrors = new float[3];
+        targets.tdErrors(batch, tdErrors);
+        Assert.assertArrayEquals(new float[]{3, 0.15f, -8}, tdErrors, 1e-6f);
+
+        // unweighted samples all weigh 1, and earlier inputs are cleared
+        batch.weighted = false;
+        set(batch.actions, 0, 0, 0);
+        targets.compute(batch, GAMMA, false, null);
+        Assert.assertArrayEquals(new float[]{1, 0, 1, 0, 1, 0}, targets.weights, 0);
+        Assert.assertArrayEquals(new float[]{1, 0, 1, 0, 1, 0}, targets.filter, 0);
+    }
+}